@@ -0,0 +1,28 @@
+#
+# jmxsh-cds.tcl
+#
+# Run by 'ant flat' to decide which classes go in the class data
+# sharing archive: those that connecting and reading an attribute
+# load.  It serves the platform mbeans from its own JVM, through an
+# RMI registry on a free port, so that no server needs to be running.
+#
+package require java
+
+set socket [java::new java.net.ServerSocket 0]
+set port [$socket getLocalPort]
+$socket close
+
+java::call java.rmi.registry.LocateRegistry createRegistry $port
+set url [java::new javax.management.remote.JMXServiceURL "service:jmx:rmi:///jndi/rmi://localhost:$port/jmxrmi"]
+set mbs [java::call java.lang.management.ManagementFactory getPlatformMBeanServer]
+set server [java::call javax.management.remote.JMXConnectorServerFactory newJMXConnectorServer $url [java::null] $mbs]
+$server start
+
+jmx_connect -h localhost -p $port
+jmx_get -m java.lang:type=Runtime Uptime
+jmx_get -m java.lang:type=Memory HeapMemoryUsage
+jmx_list java.lang:*
+jmx_invoke -m java.lang:type=Memory gc
+jmx_close
+
+$server stop
@@ -31,19 +31,16 @@ package jmxsh;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.PatternSyntaxException;
 
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanOperationInfo;
 import javax.management.MBeanParameterInfo;
 
 import org.apache.log4j.Logger;
-import org.apache.oro.text.GlobCompiler;
-import org.apache.oro.text.regex.MalformedPatternException;
-import org.apache.oro.text.regex.Pattern;
-import org.apache.oro.text.regex.PatternCompiler;
-import org.apache.oro.text.regex.PatternMatcher;
-import org.apache.oro.text.regex.Perl5Matcher;
 
 import tcl.lang.TclException;
 import tcl.lang.TclList;
@@ -54,24 +51,58 @@ class BrowseMode extends Mode {
 
     enum Menu { ATTRIBUTE, ATTROP, DOMAIN, MBEAN, NONE, OPERATION, SERVER }
 
-    static BrowseMode instance = new BrowseMode();
+    static private BrowseMode instance;
 
-    static private PatternCompiler GLOB_COMPILER = new GlobCompiler();
     static private Logger logger = Logger.getLogger(BrowseMode.class);
-    static private PatternMatcher PERL5_MATCHER = new Perl5Matcher();
+
+    /** Items shown at a time in the server, domain and mbean menus. */
+    static final int PAGE_SIZE = 20;
 
     private List<MBeanAttributeInfo> attributes;
     private Menu currentMenu;
 
+    /** The whole listing of the menu, sorted, and what it lists. */
+    private String[] names;
+    private String listing;
+
+    /** The names matching the glob, or null until filtered again. */
     private String[] items;
+    /** Index in items of the first one shown. */
+    private int first;
     private int maxChoice;
     private List<MBeanOperationInfo> operations;
-    private Pattern pattern;
+    private String glob;
+    private Matcher pattern;
     private String prompt;
 
+    /** Created the first time browse mode is entered. */
+    static synchronized BrowseMode getInstance() {
+	if (instance == null) {
+	    instance = new BrowseMode();
+	}
+	return instance;
+    }
+
+    /** Go to the domain menu after a connection, if browsing has begun. */
+    static synchronized void connected() {
+	if (instance != null) {
+	    instance.listing = null;
+	    instance.setDomainMenuLevel();
+	}
+    }
+
+    /** Go back to the server menu after a close, if browsing has begun. */
+    static synchronized void closed() {
+	if (instance != null) {
+	    instance.listing = null;
+	    instance.setServerMenuLevel();
+	}
+    }
+
     private BrowseMode() {
 	this.prompt = "";
-	this.currentMenu = Menu.SERVER;
+	this.currentMenu = (JInterp.getGlobal("SERVER", null) == null) ? Menu.SERVER : Menu.DOMAIN;
+	this.glob = null;
 	this.pattern = null;
 	this.attributes = new ArrayList<MBeanAttributeInfo>();
 	this.operations = new ArrayList<MBeanOperationInfo>();
@@ -125,10 +156,20 @@ class BrowseMode extends Mode {
 	sb.append("move a level up or down in the browsing hierarchy, based\n");
 	sb.append("on your browsing history.\n");
 	sb.append("\n");
+	sb.append("Long lists are shown a page at a time.  Enter 'next' or\n");
+	sb.append("'prev' (or 'n' or 'p') to turn the page, or 'jump N' (or\n");
+	sb.append("'j N') to go to page N; items keep their numbers on every\n");
+	sb.append("page.  A list is read from the server once, when you come\n");
+	sb.append("to it; enter 'refresh' (or 'r') to read it again.\n");
+	sb.append("\n");
 	sb.append("If you enter some other non-numerical string,\n");
 	sb.append("that string will be treated as a glob pattern (case-\n");
 	sb.append("insensitive, with *'s prefixed and suffixed) and applied\n");
-	sb.append("to the current listing of JMX items.\n");
+	sb.append("to the current listing of JMX items.  The words above are\n");
+	sb.append("not patterns: 'up', 'down', 'refresh', their one-letter\n");
+	sb.append("forms, and, on a paged list, 'next', 'prev', 'n', 'p'\n");
+	sb.append("and anything starting 'j ' or 'jump '.  To filter on one\n");
+	sb.append("of these, put a * in front, e.g. '*n'.\n");
 	sb.append("\n");
 	sb.append("To clear a glob currently in effect, enter a single space\n");
 	sb.append("and hit enter.\n");
@@ -162,7 +203,7 @@ class BrowseMode extends Mode {
 	msb.append(" Attribute List:\n\n");
 	
 	for (MBeanAttributeInfo attr : attrArray) {
-	    if (this.pattern != null && !PERL5_MATCHER.matches(attr.getName(), this.pattern)) 
+	    if (this.pattern != null && !this.pattern.reset(attr.getName()).matches()) 
 		continue;
 
 	    this.attributes.add(attr);
@@ -191,7 +232,7 @@ class BrowseMode extends Mode {
 	    msb.append("\n Operation List:\n\n");
 
 	for (MBeanOperationInfo op : operArray) {
-	    if (this.pattern != null && !PERL5_MATCHER.matches(op.getName(), this.pattern)) 
+	    if (this.pattern != null && !this.pattern.reset(op.getName()).matches()) 
 		continue;
 
 	    this.operations.add(op);
@@ -215,7 +256,7 @@ class BrowseMode extends Mode {
 	    sb.append(op.getName());
 	    sb.append("(");
 	    try {
-		TclList.append(JInterp.instance, paramTclList, TclString.newInstance(op.getName()));
+		TclList.append(JInterp.current(), paramTclList, TclString.newInstance(op.getName()));
 	    }
 	    catch (TclException e) {
 		logger.error("Error creating parameter list.", e);
@@ -231,7 +272,7 @@ class BrowseMode extends Mode {
 		    sb.append(", ");
 		}
 		try {
-		    TclList.append(JInterp.instance, paramTclList, TclString.newInstance(typeName));
+		    TclList.append(JInterp.current(), paramTclList, TclString.newInstance(typeName));
 		}
 		catch (TclException e) {
 		    logger.error("Error creating typename list.", e);
@@ -250,49 +291,80 @@ class BrowseMode extends Mode {
 	return msb.toString();
     }
 
+    /**
+       The current page of the server, domain or mbean menu.  The
+       listing is read and sorted once, the glob applied to it once,
+       and only the page shown is formatted, so turning pages and
+       redrawing cost the same however many mbeans the domain has.
+    */
     String getMenu() {
 
 	StringBuilder sb = new StringBuilder(500);
 	Context context = Context.fromTcl();
+	String key = this.currentMenu + " " + context.server + " " + context.domain;
 
-	this.items = null;
+	if (!key.equals(this.listing)) {
+	    switch (this.currentMenu) {
 
-	switch (this.currentMenu) {
+	    case SERVER:
+		this.names = Jmx.getInstance().getServers();
+		break;
+
+	    case DOMAIN:
+		this.names = Jmx.getInstance().getDomains(context.server);
+		break;
+
+	    case MBEAN:
+		this.names = Jmx.getInstance().getMBeans(context.server, context.domain, "");
+		break;
+
+	    default:
+		throw new IllegalStateException("Invalid Mode.");
 
+	    }
+	    Arrays.sort(this.names);
+	    this.listing = key;
+	    this.items = null;
+	}
+
+	switch (this.currentMenu) {
 	case SERVER:
-	    this.items = Jmx.getInstance().getServers();
 	    this.prompt = "Select a server:";
 	    break;
-
 	case DOMAIN:
-	    this.items = Jmx.getInstance().getDomains(context.server);
 	    this.prompt = "Select a domain:";
 	    break;
-
-	case MBEAN:
-	    this.items = Jmx.getInstance().getMBeans(context.server, context.domain);
+	default:
 	    this.prompt = "Select an mbean:";
 	    break;
-
-	default:
-	    throw new IllegalStateException("Invalid Mode.");
-
 	}
 
-	List<String> menu = new ArrayList<String>();
-	for (String item: this.items) {
-	    if (this.pattern == null || PERL5_MATCHER.matches(item, this.pattern)) {
-		menu.add(item);
+	if (this.items == null) {
+	    if (this.pattern == null) {
+		this.items = this.names;
 	    }
+	    else {
+		List<String> menu = new ArrayList<String>();
+		for (String item: this.names) {
+		    if (this.pattern.reset(item).matches()) {
+			menu.add(item);
+		    }
+		}
+		this.items = menu.toArray(new String[menu.size()]);
+	    }
+	    this.first = 0;
 	}
 
-	this.items = new String[menu.size()];
-	this.items = menu.toArray(this.items);
-
-	for (int i=1; i<=this.items.length; i++) {
+	int last = Math.min(this.first + PAGE_SIZE, this.items.length);
+	for (int i=this.first+1; i<=last; i++) {
 	    sb.append(String.format("     %1$3d. %2$s\n", i, this.items[i-1]));
 	}
 
+	if (this.items.length > PAGE_SIZE) {
+	    sb.append(String.format("\n     Page %d of %d, %d-%d of %d: 'n' next, 'p' previous, 'j N' page N.\n",
+				    this.first / PAGE_SIZE + 1, pages(), this.first + 1, last, this.items.length));
+	}
+
 	if (this.items.length == 0) {
 	    sb.append("\n     (((((     No options available.\n\n");
 	    this.prompt = "(no options available):";
@@ -302,6 +374,21 @@ class BrowseMode extends Mode {
 	return sb.toString();
     }
 
+    /** Whether the menu shown is one of those getMenu() pages. */
+    private boolean isPaged() {
+	return this.items != null && this.currentMenu != Menu.ATTROP
+	    && this.currentMenu != Menu.ATTRIBUTE && this.currentMenu != Menu.OPERATION;
+    }
+
+    private int pages() {
+	return Math.max(1, (this.items.length + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /** Show page 'page', counting from 0, or the nearest there is. */
+    private void turnTo(int page) {
+	this.first = Math.max(0, Math.min(page, pages() - 1)) * PAGE_SIZE;
+    }
+
     String getPrePromptDisplay() {
 
 	StringBuilder sb = new StringBuilder(1000);
@@ -353,10 +440,8 @@ class BrowseMode extends Mode {
 	    sb.append(context.attrop);
 	}
 	if (this.pattern != null) {
-	    String pattstr = this.pattern.getPattern();
-	    pattstr = pattstr.substring(2, pattstr.length()-2);
 	    sb.append("\n  GLOB:   ");
-	    sb.append("*" + pattstr + "*");
+	    sb.append("*" + this.glob + "*");
 	    sb.append(" (space to clear)");
 	}
 
@@ -370,6 +455,31 @@ class BrowseMode extends Mode {
     }
 
     String handleInput(String input) {
+	if (isPaged()) {
+	    if (input.equals("next") || input.equals("n")) {
+		turnTo(this.first / PAGE_SIZE + 1);
+		return null;
+	    }
+	    if (input.equals("prev") || input.equals("p")) {
+		turnTo(this.first / PAGE_SIZE - 1);
+		return null;
+	    }
+	    if (input.startsWith("j ") || input.startsWith("jump ")) {
+		try {
+		    turnTo(Integer.parseInt(input.substring(input.indexOf(' ')).trim()) - 1);
+		}
+		catch (NumberFormatException e) {
+		    System.out.println("Please give a page number, between 1 and " + pages() + ".");
+		    Readline.getInstance().readline("Press enter to continue.");
+		}
+		return null;
+	    }
+	}
+	if (input.equals("refresh") || input.equals("r")) {
+	    this.listing = null;
+	    return null;
+	}
+
 	if (input.equals("up") || input.equals("u")) {
 	    switch (this.currentMenu) {
 	    case SERVER:
@@ -424,15 +534,19 @@ class BrowseMode extends Mode {
 	    choice = Integer.parseInt(input);
 	}
 	catch (NumberFormatException e) { 
+	    this.items = null;
 	    if (input.equals(" ")) {
+		this.glob = null;
 		this.pattern = null;
 	    }
 	    else {
 		try {
-		    this.pattern = GLOB_COMPILER.compile("*" + input + "*", GlobCompiler.CASE_INSENSITIVE_MASK);
+		    this.pattern = PatternCache.getInstance().glob("*" + input + "*", true).matcher("");
+		    this.glob = input;
 		}
-		catch (MalformedPatternException me) {
-		    System.out.println("Invalid glob pattern '" + input + "' - " + me.getMessage()); 
+		catch (PatternSyntaxException pe) {
+		    System.out.println("Invalid glob pattern '" + input + "' - " + pe.getDescription()); 
+		    this.glob = null;
 		    this.pattern = null;
 		}
 	    }
@@ -501,7 +615,7 @@ class BrowseMode extends Mode {
 	    String value = Readline.getInstance().readline(this.prompt);
 	    Object valueObj = null;
 	    try {
-		valueObj = Utils.tcl2java(TclString.newInstance(value), signature[i].getType());
+		valueObj = Converters.forFeature(signature[i], signature[i].getType()).convert(TclString.newInstance(value));
 	    }
 	    catch (IllegalArgumentException e) {
 		System.out.println("Unable to create Java object, aborting.");
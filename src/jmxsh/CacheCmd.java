@@ -0,0 +1,155 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Inspect, flush, or resize the MBeanInfo cache of a connection. */
+class CacheCmd implements Command {
+
+    private final static CacheCmd instance = new CacheCmd();
+
+    private Options opts;
+
+    static CacheCmd getInstance() {
+	return instance;
+    }
+
+    private CacheCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("Server whose cache should be used.")
+		.withArgName("SERVER")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("flush")
+		.withDescription("Discard every cached MBeanInfo.")
+		.hasArg(false)
+		.create("f")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("size")
+		.withDescription("Set the maximum number of cached MBeanInfo entries (0 disables the cache).")
+		.withArgName("SIZE")
+		.hasArg()
+		.create("z")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+
+	    if (cl.hasOption("help")) {
+		new HelpFormatter().printHelp (
+		    "jmx_cache [-?] [-f] [-z size] [-s server]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_cache shows the state of the MBeanInfo cache kept for");
+		System.out.println("a connection.  jmx_get, jmx_set, jmx_invoke and the browse");
+		System.out.println("mode use this cache to avoid fetching the MBeanInfo again");
+		System.out.println("for every call.  Entries are dropped automatically when the");
+		System.out.println("server reports that an MBean was registered or unregistered.");
+		System.out.println("");
+		System.out.println("It returns a list of name/value pairs, suitable for 'array set'.");
+		return;
+	    }
+
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+
+	    if (server == null) {
+		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	    }
+
+	    MBeanInfoCache cache = Jmx.getInstance().getCache(server);
+	    if (cache == null) {
+		throw new TclException(interp, "Not connected to " + server + ".", TCL.ERROR);
+	    }
+
+	    if (cl.hasOption("flush")) {
+		cache.flush();
+	    }
+
+	    if (cl.hasOption("size")) {
+		if (Daemon.inScript()) {
+		    throw new TclException(interp, "The cache size is shared by every daemon worker; set it in a -i file.", TCL.ERROR);
+		}
+		Jmx.getInstance().resizeCache(server, Integer.parseInt(cl.getOptionValue("size")));
+	    }
+
+	    TclObject result = TclList.newInstance();
+	    TclList.append(interp, result, TclString.newInstance("size"));
+	    TclList.append(interp, result, TclInteger.newInstance(cache.size()));
+	    TclList.append(interp, result, TclString.newInstance("max"));
+	    TclList.append(interp, result, TclInteger.newInstance(cache.getMaxSize()));
+	    TclList.append(interp, result, TclString.newInstance("hits"));
+	    TclList.append(interp, result, TclString.newInstance(String.valueOf(cache.getHits())));
+	    TclList.append(interp, result, TclString.newInstance("misses"));
+	    TclList.append(interp, result, TclString.newInstance(String.valueOf(cache.getMisses())));
+	    TclList.append(interp, result, TclString.newInstance("invalidations"));
+	    TclList.append(interp, result, TclString.newInstance(String.valueOf(cache.getInvalidations())));
+	    interp.setResult(result);
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(NumberFormatException e)      {
+	    throw new TclException(interp, "Invalid cache size: " + e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -75,22 +75,10 @@ class CloseCmd implements Command {
 	for(int i = 0; i < argv.length - 1; i++)
 	    args[i] = argv[i + 1].toString();
 	    
-	CommandLine cl = (new PosixParser()).parse(this.opts, args);
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
 	return cl;
     }
 
-    private void getDefaults(Interp interp) {
-	this.server = null;
-
-	try {
-	    this.server = interp.getVar("SERVER", TCL.GLOBAL_ONLY).toString();
-	}
-	catch (TclException e) { 
-	    /* If one doesn't exist, it will just be null. */
-	}
-
-    }
-
     public void cmdProc(Interp interp, TclObject argv[])
         throws TclException {
 
@@ -110,17 +98,22 @@ class CloseCmd implements Command {
 		return;
 	    }
 
-	    getDefaults(interp);
-
-	    String serverToClose = cl.getOptionValue("server", this.server);
+	    String server = Utils.getGlobal(interp, "SERVER");
+	    String serverToClose = cl.getOptionValue("server", server);
 
 	    if (serverToClose == null) {
 		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
 	    }
 
+	    for (Subscription subscription : Subscription.getAll()) {
+		if (subscription.server.equals(serverToClose)) {
+		    subscription.unsubscribe();
+		}
+	    }
+
 	    Jmx.getInstance().close(serverToClose);
 
-	    if (serverToClose.equals(this.server)) {
+	    if (serverToClose.equals(server)) {
 		// We need this to avoid getting a "cannot unset non-existent variable"
 		// error, which I could not find a way to suppress nicely.
 		TclObject space = TclString.newInstance(" ");
@@ -132,7 +125,7 @@ class CloseCmd implements Command {
 		interp.unsetVar("DOMAIN", TCL.GLOBAL_ONLY);
 		interp.unsetVar("MBEAN", TCL.GLOBAL_ONLY);
 		interp.unsetVar("ATTROP", TCL.GLOBAL_ONLY);
-		BrowseMode.instance.setServerMenuLevel();
+		BrowseMode.closed();
 	    }
 
 	}
@@ -147,7 +140,6 @@ class CloseCmd implements Command {
 
     private static Logger logger = Logger.getLogger(CloseCmd.class);
 
-    private String server;
     private Options opts;
 
 
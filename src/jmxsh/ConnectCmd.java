@@ -38,10 +38,15 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 import org.apache.log4j.Logger;
 
+import java.util.Map;
+
 import tcl.lang.Command;
 import tcl.lang.Interp;
+import tcl.lang.TCL;
 import tcl.lang.TclException;
+import tcl.lang.TclList;
 import tcl.lang.TclObject;
+import tcl.lang.TclString;
 
 
 
@@ -117,6 +122,30 @@ class ConnectCmd implements Command {
 		         .withArgName("PROTOCOL")
 		         .create("R")
 	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("hosts-file")
+			 .withDescription("Connect to every server listed in this file, in parallel.")
+			 .withArgName("FILE")
+			 .hasArg()
+			 .create("f")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("concurrency")
+			 .withDescription("With -f, connections opened at once (default " + HostsFile.DEFAULT_CONCURRENCY + ").")
+			 .withArgName("N")
+			 .hasArg()
+			 .create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("timeout")
+			 .withDescription("Milliseconds to wait for the connection (default " + Jmx.DEFAULT_CONNECT_TIMEOUT + ", or " + HostsFile.DEFAULT_TIMEOUT + " for each with -f).")
+			 .withArgName("MILLIS")
+			 .hasArg()
+			 .create("t")
+	);
     }
 
     private CommandLine parseCommandLine(TclObject argv[]) 
@@ -127,7 +156,7 @@ class ConnectCmd implements Command {
 	for(int i = 0; i < argv.length - 1; i++)
 	    args[i] = argv[i + 1].toString();
 	    
-	CommandLine cl = (new PosixParser()).parse(this.opts, args);
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
 	return cl;
     }
 
@@ -160,11 +189,43 @@ class ConnectCmd implements Command {
     }
 
 
+    private void connectAll(Interp interp, CommandLine commandLine)
+	throws TclException {
+
+	String protocol = commandLine.getOptionValue("protocol", "rmi");
+	String path = commandLine.getOptionValue("url_path");
+	String user = commandLine.getOptionValue("user");
+	String password = commandLine.getOptionValue("password");
+
+	if (Main.interactive && user != null && password == null) {
+	    password = Readline.getInstance().readline("Password: ", '*');
+	}
+
+	Map<String, FanOut.Outcome<Boolean>> outcomes = null;
+	try {
+	    int concurrency = Integer.parseInt(commandLine.getOptionValue("concurrency", String.valueOf(HostsFile.DEFAULT_CONCURRENCY)));
+	    long timeout = Long.parseLong(commandLine.getOptionValue("timeout", String.valueOf(HostsFile.DEFAULT_TIMEOUT)));
+	    outcomes = HostsFile.connect(HostsFile.read(commandLine.getOptionValue("hosts-file"), protocol, path), user, password, concurrency, timeout);
+	}
+	catch (IllegalArgumentException e) {
+	    throw new TclException(interp, e.getMessage(), TCL.ERROR);
+	}
+
+	TclObject result = TclList.newInstance();
+	for (Map.Entry<String, FanOut.Outcome<Boolean>> entry : outcomes.entrySet()) {
+	    TclList.append(interp, result, TclString.newInstance(entry.getKey()));
+	    TclList.append(interp, result, Utils.outcome2list(entry.getValue(), null));
+	}
+	interp.setResult(result);
+    }
+
+
     public void cmdProc(Interp interp, TclObject argv[])
         throws TclException {
 
         try {
 	    CommandLine cl = parseCommandLine(argv);
+	    Utils.applyTimeout(interp, cl);
 	    
 	    if (cl.hasOption("help")) {
 		new HelpFormatter().printHelp (
@@ -176,6 +237,17 @@ class ConnectCmd implements Command {
 		);
 
 		System.out.println("jmx_connect establishes a connection to a JMX server.");
+		System.out.println("");
+		System.out.println("With -f, it connects to every server in a file at once instead.");
+		System.out.println("Each line holds 'host:port', 'host port' or a service URL; blank");
+		System.out.println("lines and lines starting with '#' are skipped.  A summary is");
+		System.out.println("printed, and the result lists each server's status (ok, error");
+		System.out.println("or timeout).  Every server connected is added to SERVERS.");
+		return;
+	    }
+
+	    if (cl.hasOption("hosts-file")) {
+		this.connectAll(interp, cl);
 		return;
 	    }
 
@@ -186,7 +258,10 @@ class ConnectCmd implements Command {
 	}
         catch (RuntimeException e) {
 	    logger.error("Runtime Exception", e);
-	    throw new TclException(interp, "Runtime exception.", 1);
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	finally {
+	    Jmx.getInstance().setThreadTimeout(null);
 	}
     }
 
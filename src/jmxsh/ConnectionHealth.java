@@ -0,0 +1,318 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.*;
+import javax.management.remote.*;
+import org.apache.log4j.*;
+
+/**
+   Watches one connection and brings it back when it breaks.
+
+   The connector tells us when it has given up on the server
+   (JMXConnectionNotification.FAILED), and a cheap call is made every
+   PROBE_INTERVAL to catch what it misses.  A call that times out
+   makes the connection suspect, and it is probed at once.  Once a
+   connection is found broken, new connectors are tried with
+   exponential backoff and jitter until one works, and Jmx swaps it
+   in under the same URL.
+
+   While that is going on, callers either wait for the connection to
+   come back, up to a deadline, or fail at once, depending on the
+   policy of the connection.
+
+   The scheduler only keeps time.  Probes and reconnects block for up
+   to their timeouts, so they run on the FanOut pool, at most one at
+   a time for each connection; a dead host then holds up nobody but
+   itself.
+*/
+
+class ConnectionHealth implements NotificationListener {
+
+    enum State { UP, SUSPECT, RECONNECTING, CLOSED }
+
+    enum Policy { WAIT, FAIL }
+
+    static final long PROBE_INTERVAL = 30000;
+    static final long BASE_DELAY = 500;
+    static final long MAX_DELAY = 60000;
+    static final long DEFAULT_WAIT = 10000;
+    static final long PROBE_TIMEOUT = 10000;
+
+    static private Logger logger = Logger.getLogger(ConnectionHealth.class);
+
+    static private ScheduledExecutorService scheduler =
+	Executors.newSingleThreadScheduledExecutor(new FanOut.NamedThreadFactory("jmxsh-health"));
+
+    static private Random random = new Random();
+
+    final JMXServiceURL url;
+    final String urlStr;
+    final Map<String, ?> environment;
+
+    private volatile State state;
+    private volatile Policy policy;
+    private volatile long waitMillis;
+
+    private ScheduledFuture<?> probe;
+    private final ReentrantLock busy = new ReentrantLock();
+    private int attempt;
+    private long failures;
+    private long timeouts;
+    private long reconnects;
+    private String lastError;
+
+    ConnectionHealth(JMXServiceURL url, Map<String, ?> environment) {
+	this.url = url;
+	this.urlStr = url.toString();
+	this.environment = environment;
+	this.state = State.UP;
+	this.policy = Policy.WAIT;
+	this.waitMillis = DEFAULT_WAIT;
+    }
+
+    /** Start watching a (new) connector for this URL. */
+    synchronized void watch(JMXConnector connector) {
+	connector.addConnectionNotificationListener(this, null, null);
+	if (this.probe == null) {
+	    this.probe = scheduler.scheduleWithFixedDelay(new Runnable() {
+		public void run() {
+		    probeLater();
+		}
+	    }, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+    }
+
+    /** Stop watching; the connection has been closed on purpose. */
+    synchronized void stop() {
+	this.state = State.CLOSED;
+	if (this.probe != null) {
+	    this.probe.cancel(false);
+	}
+	notifyAll();
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+	if (JMXConnectionNotification.FAILED.equals(notification.getType())) {
+	    suspect("Connection failed: " + notification.getMessage());
+	}
+    }
+
+    /**
+       Make a cheap call to the server, with a short deadline, and
+       treat a network error or timeout as a failure.  Waits for a
+       probe or reconnect already under way.
+    */
+    void probe() {
+	this.busy.lock();
+	try {
+	    doProbe();
+	}
+	finally {
+	    this.busy.unlock();
+	}
+    }
+
+    /** Probe on the pool, unless a probe or reconnect is under way already. */
+    private void probeLater() {
+	FanOut.execute(new Runnable() {
+	    public void run() {
+		if (!busy.tryLock()) {
+		    return;
+		}
+		try {
+		    doProbe();
+		}
+		finally {
+		    busy.unlock();
+		}
+	    }
+	});
+    }
+
+    private void doProbe() {
+	if (this.state != State.UP && this.state != State.SUSPECT) {
+	    return;
+	}
+	Jmx.getInstance().setThreadTimeout(PROBE_TIMEOUT);
+	try {
+	    Jmx.getInstance().getMBSC(this.urlStr).getMBeanCount();
+	    synchronized (this) {
+		if (this.state == State.SUSPECT) {
+		    this.state = State.UP;
+		}
+	    }
+	}
+	catch (IOException e) {
+	    suspect("Probe failed: " + e.getMessage());
+	}
+	catch (RuntimeException e) {
+	    logger.debug("Probe of " + this.urlStr + " failed.", e);
+	}
+	finally {
+	    Jmx.getInstance().setThreadTimeout(null);
+	}
+    }
+
+    /** A call was abandoned; probe the connection now, off the caller's thread. */
+    synchronized void check(String reason) {
+	this.timeouts++;
+	if (this.state != State.UP) {
+	    return;
+	}
+	this.state = State.SUSPECT;
+	this.lastError = reason;
+	probeLater();
+    }
+
+    /** Mark the connection as broken, and start reconnecting unless already doing so. */
+    synchronized void suspect(String reason) {
+	if (this.state != State.UP && this.state != State.SUSPECT) {
+	    return;
+	}
+	logger.warn("Connection to " + this.urlStr + " lost (" + reason + "), reconnecting.");
+	this.state = State.RECONNECTING;
+	this.lastError = reason;
+	this.failures++;
+	this.attempt = 0;
+	schedule();
+    }
+
+    private void schedule() {
+	scheduler.schedule(new Runnable() {
+	    public void run() {
+		FanOut.execute(new Runnable() {
+		    public void run() {
+			busy.lock();
+			try {
+			    reconnect();
+			}
+			finally {
+			    busy.unlock();
+			}
+		    }
+		});
+	    }
+	}, backoff(this.attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /** Exponential, capped, with the upper half randomized so that many clients spread out. */
+    static long backoff(int attempt) {
+	long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 16));
+	synchronized (random) {
+	    return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+    }
+
+    private void reconnect() {
+	synchronized (this) {
+	    if (this.state != State.RECONNECTING) {
+		return;
+	    }
+	}
+
+	try {
+	    if (!Jmx.getInstance().reconnect(this)) {
+		return;
+	    }
+	}
+	catch (Exception e) {
+	    logger.debug("Reconnect to " + this.urlStr + " failed.", e);
+	    synchronized (this) {
+		this.lastError = "Reconnect failed: " + e.getMessage();
+		this.attempt++;
+		if (this.state == State.RECONNECTING) {
+		    schedule();
+		}
+	    }
+	    return;
+	}
+
+	synchronized (this) {
+	    if (this.state == State.RECONNECTING) {
+		this.state = State.UP;
+		this.reconnects++;
+	    }
+	    notifyAll();
+	}
+	logger.warn("Reconnected to " + this.urlStr + " after " + (this.attempt + 1) + " attempts.");
+	Subscription.reattach(this.urlStr);
+    }
+
+    /**
+       Return once the connection is usable.  A suspect one counts as
+       usable until a probe says otherwise.  If it is being
+       reconnected, wait for that or fail, as the policy says.
+    */
+    void awaitUp() {
+	if (this.state == State.UP) {
+	    return;
+	}
+
+	synchronized (this) {
+	    long deadline = System.currentTimeMillis() + this.waitMillis;
+	    while (this.state == State.RECONNECTING && this.policy == Policy.WAIT) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+		    break;
+		}
+		try {
+		    wait(remaining);
+		}
+		catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    break;
+		}
+	    }
+
+	    if (this.state == State.RECONNECTING) {
+		throw new IllegalStateException("Connection to " + this.urlStr + " is down, reconnecting (" + this.lastError + ").");
+	    }
+	}
+    }
+
+    State getState() { return this.state; }
+
+    Policy getPolicy() { return this.policy; }
+
+    void setPolicy(Policy policy) { this.policy = policy; }
+
+    long getWaitMillis() { return this.waitMillis; }
+
+    void setWaitMillis(long waitMillis) { this.waitMillis = waitMillis; }
+
+    synchronized int getAttempt() { return this.attempt; }
+
+    synchronized long getFailures() { return this.failures; }
+
+    synchronized long getReconnects() { return this.reconnects; }
+
+    synchronized long getTimeouts() { return this.timeouts; }
+
+    synchronized String getLastError() { return this.lastError; }
+
+}
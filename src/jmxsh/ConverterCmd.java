@@ -0,0 +1,150 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Register Tcl scripts that convert values to a Java type. */
+class ConverterCmd implements Command {
+
+    private final static ConverterCmd instance = new ConverterCmd();
+
+    private Options opts;
+
+    static ConverterCmd getInstance() {
+	return instance;
+    }
+
+    private ConverterCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("remove")
+		.withDescription("Remove the converter for TYPE.")
+		.hasArg(false)
+		.create("r")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help")) {
+		new HelpFormatter().printHelp (
+		    "jmx_converter [-?] [-r] [TYPE [SCRIPT]]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_converter controls how jmx_set and jmx_invoke turn Tcl");
+		System.out.println("values into Java objects of a given type.  TYPE is the class");
+		System.out.println("name as it appears in the MBeanInfo, e.g. java.util.Date or [I.");
+		System.out.println("");
+		System.out.println("  proc scanDate {s} { return [clock scan $s]000 }");
+		System.out.println("  jmx_converter java.util.Date scanDate");
+		System.out.println("    calls scanDate with the value appended, then converts what");
+		System.out.println("    it returns with the built-in converter for the type (here,");
+		System.out.println("    milliseconds).  It may also return a Java object reference.");
+		System.out.println("  jmx_converter java.util.Date     returns the script.");
+		System.out.println("  jmx_converter -r java.util.Date  goes back to the built-in one.");
+		System.out.println("  jmx_converter                    lists every registered script.");
+		System.out.println("");
+		System.out.println("The built-in converters take numbers and booleans as Tcl reads");
+		System.out.println("them, lists for arrays, name/value lists for CompositeData,");
+		System.out.println("lists of those for TabularData (or key/value lists for maps),");
+		System.out.println("milliseconds or yyyy-MM-dd[ HH:mm:ss] for dates, and constant");
+		System.out.println("names for enums.");
+		return;
+	    }
+
+	    if ((cl.hasOption("remove") || args.length > 1) && Daemon.inScript()) {
+		throw new TclException(interp, "Converters are shared by every daemon worker; register them in a -i file.", TCL.ERROR);
+	    }
+
+	    if (cl.hasOption("remove")) {
+		if (args.length != 1) {
+		    throw new TclException(interp, "No type specified.", TCL.ERROR);
+		}
+		if (!Converters.unregister(args[0])) {
+		    throw new TclException(interp, "No converter registered for " + args[0] + ".", TCL.ERROR);
+		}
+		return;
+	    }
+
+	    if (args.length == 0) {
+		TclObject result = TclList.newInstance();
+		for (Map.Entry<String, TclObject> entry : Converters.getRegistered().entrySet()) {
+		    TclList.append(interp, result, TclString.newInstance(entry.getKey()));
+		    TclList.append(interp, result, entry.getValue());
+		}
+		interp.setResult(result);
+		return;
+	    }
+
+	    if (args.length == 1) {
+		TclObject script = Converters.getRegistered().get(args[0]);
+		if (script == null) {
+		    throw new TclException(interp, "No converter registered for " + args[0] + ".", TCL.ERROR);
+		}
+		interp.setResult(script);
+		return;
+	    }
+
+	    if (args.length > 2) {
+		throw new TclException(interp, "Too many arguments; quote the script as one word.", TCL.ERROR);
+	    }
+
+	    Converters.register(args[0], TclString.newInstance(args[1]));
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,588 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.lang.reflect.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+import tcl.lang.*;
+
+/**
+   Registry of converters from Tcl values to the Java types named in
+   MBeanInfo.
+
+   The converter for a type is worked out once and reused.  Primitives
+   and their wrappers read the integer, double or boolean internal
+   representation of the Tcl object directly, so a number that Tcl
+   already holds as a number is never turned into a string and parsed
+   back.  Arrays are converted from Tcl lists, ObjectName and Date
+   from strings (Dates may also be given as milliseconds), and enums
+   by constant name.  Any other class needs a constructor, or a static
+   valueOf(), that takes a String.
+
+   Open MBean parameters and attributes (which is what MXBeans have)
+   carry an OpenType; for those, CompositeData is built from a list of
+   item name/value pairs, TabularData from a list of such rows (or from
+   a flat key/value list, for the key/value tables MXBeans use for
+   maps), and arrays element by element.
+
+   Whatever the type, a Java object reference (as made by java::new)
+   is passed through as it is.  Converters registered from Tcl with
+   jmx_converter take precedence over the built-in ones.
+*/
+
+class Converters {
+
+    static private ConcurrentMap<String, Converter> builtins = new ConcurrentHashMap<String, Converter>();
+    static private ConcurrentMap<String, TclObject> scripts = new ConcurrentHashMap<String, TclObject>();
+
+    static private final String[] DATE_FORMATS = {
+	"yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+	"yyyy-MM-dd'T'HH:mm:ssZ",
+	"yyyy-MM-dd'T'HH:mm:ss",
+	"yyyy-MM-dd HH:mm:ss",
+	"yyyy-MM-dd",
+    };
+
+    /** The converter for a type name, as found in an MBeanInfo. */
+    static Converter get(String type) {
+	Converter converter = builtins.get(type);
+	if (converter == null) {
+	    converter = new Typed(type, resolve(type));
+	    Converter existing = builtins.putIfAbsent(type, converter);
+	    if (existing != null) {
+		converter = existing;
+	    }
+	}
+	return converter;
+    }
+
+    /**
+       The converter for a parameter or attribute: by its OpenType if
+       it has one, by its type name otherwise.
+    */
+    static Converter forFeature(MBeanFeatureInfo info, String type) {
+	OpenType<?> openType = null;
+	if (info instanceof OpenMBeanParameterInfo) {
+	    openType = ((OpenMBeanParameterInfo) info).getOpenType();
+	}
+	else if (info instanceof OpenMBeanAttributeInfo) {
+	    openType = ((OpenMBeanAttributeInfo) info).getOpenType();
+	}
+	else if (info.getDescriptor() != null) {
+	    Object field = info.getDescriptor().getFieldValue("openType");
+	    if (field instanceof OpenType) {
+		openType = (OpenType<?>) field;
+	    }
+	}
+	return (openType == null) ? get(type) : get(openType);
+    }
+
+    /** The converter for an Open MBean type. */
+    static Converter get(OpenType<?> openType) {
+	if (openType instanceof CompositeType) {
+	    return new Typed(openType.getClassName(), composite((CompositeType) openType));
+	}
+	if (openType instanceof TabularType) {
+	    return new Typed(openType.getClassName(), tabular((TabularType) openType));
+	}
+	if (openType instanceof ArrayType && ((ArrayType<?>) openType).getDimension() == 1) {
+	    ArrayType<?> arrayType = (ArrayType<?>) openType;
+	    return new Typed(openType.getClassName(), array(loadClass(arrayType.getClassName()).getComponentType(), get(arrayType.getElementOpenType())));
+	}
+	return get(openType.getClassName());
+    }
+
+    /** Convert values of type with a Tcl script, given the value as its last word. */
+    static void register(String type, TclObject script) {
+	script.preserve();
+	TclObject old = scripts.put(type, script);
+	if (old != null) {
+	    old.release();
+	}
+    }
+
+    static boolean unregister(String type) {
+	TclObject old = scripts.remove(type);
+	if (old != null) {
+	    old.release();
+	}
+	return old != null;
+    }
+
+    static Map<String, TclObject> getRegistered() {
+	return new TreeMap<String, TclObject>(scripts);
+    }
+
+    /**
+       Checks for a script registered for its type and for a Java
+       object reference, then hands the value to a built-in converter.
+    */
+    static private class Typed implements Converter {
+	private String type;
+	private Converter builtin;
+
+	Typed(String type, Converter builtin) {
+	    this.type = type;
+	    this.builtin = builtin;
+	}
+
+	public Object convert(TclObject obj) {
+	    if (!scripts.isEmpty()) {
+		TclObject script = scripts.get(this.type);
+		if (script != null) {
+		    return runScript(this.type, script, obj, this.builtin);
+		}
+	    }
+	    Object reference = reference(obj);
+	    return (reference != null) ? reference : this.builtin.convert(obj);
+	}
+    }
+
+    /** The object a Java object reference stands for, or null if obj is not one. */
+    static private Object reference(TclObject obj) {
+	InternalRep rep = obj.getInternalRep();
+	if (rep instanceof ReflectObject
+	    || (!obj.isIntType() && !obj.isDoubleType() && obj.toString().startsWith("java0x"))) {
+	    try {
+		return ReflectObject.get(JInterp.current(), obj);
+	    }
+	    catch (TclException e) {
+		JInterp.current().resetResult();
+	    }
+	}
+	return null;
+    }
+
+    static private Object runScript(String type, TclObject script, TclObject value, Converter builtin) {
+	Interp interp = JInterp.current();
+	TclObject command = TclList.newInstance();
+	command.preserve();
+	try {
+	    for (TclObject word : TclList.getElements(interp, script)) {
+		TclList.append(interp, command, word);
+	    }
+	    TclList.append(interp, command, value);
+	    interp.eval(command, TCL.EVAL_GLOBAL);
+	    TclObject result = interp.getResult();
+	    result.preserve();
+	    try {
+		Object reference = reference(result);
+		return (reference != null) ? reference : builtin.convert(result);
+	    }
+	    finally {
+		result.release();
+	    }
+	}
+	catch (TclException e) {
+	    throw new IllegalArgumentException("Converter for " + type + " failed: " + interp.getResult().toString());
+	}
+	finally {
+	    command.release();
+	}
+    }
+
+    static private Converter resolve(String type) {
+	if (type.equals("int") || type.equals("java.lang.Integer")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    return Integer.valueOf(getInt(obj));
+		}
+	    };
+	}
+	if (type.equals("long") || type.equals("java.lang.Long")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    return Long.valueOf(getLong(obj));
+		}
+	    };
+	}
+	if (type.equals("double") || type.equals("java.lang.Double")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    return Double.valueOf(getDouble(obj));
+		}
+	    };
+	}
+	if (type.equals("float") || type.equals("java.lang.Float")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    return Float.valueOf((float) getDouble(obj));
+		}
+	    };
+	}
+	if (type.equals("boolean") || type.equals("java.lang.Boolean")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    try {
+			return Boolean.valueOf(TclBoolean.get(JInterp.current(), obj));
+		    }
+		    catch (TclException e) {
+			throw invalid(obj, "boolean");
+		    }
+		}
+	    };
+	}
+	if (type.equals("short") || type.equals("java.lang.Short")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    int value = getInt(obj);
+		    if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+			throw invalid(obj, "short");
+		    }
+		    return Short.valueOf((short) value);
+		}
+	    };
+	}
+	if (type.equals("byte") || type.equals("java.lang.Byte")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    int value = getInt(obj);
+		    if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
+			throw invalid(obj, "byte");
+		    }
+		    return Byte.valueOf((byte) value);
+		}
+	    };
+	}
+	if (type.equals("char") || type.equals("java.lang.Character")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    String value = obj.toString();
+		    if (value.length() != 1) {
+			throw invalid(obj, "char");
+		    }
+		    return Character.valueOf(value.charAt(0));
+		}
+	    };
+	}
+	if (type.equals("java.lang.String")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    return obj.toString();
+		}
+	    };
+	}
+	if (type.equals("javax.management.ObjectName")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    return Jmx.getInstance().getObjectName(obj.toString());
+		}
+	    };
+	}
+	if (type.equals("java.util.Date")) {
+	    return new Converter() {
+		public Object convert(TclObject obj) {
+		    return getDate(obj);
+		}
+	    };
+	}
+
+	// Old-style short names, e.g. "long" or "string" for java.lang.
+	String className = type;
+	if (type.indexOf('.') == -1 && !type.startsWith("[")) {
+	    className = "java.lang." + Character.toUpperCase(type.charAt(0)) + type.substring(1);
+	    if (!className.equals(type)) {
+		return resolve(className);
+	    }
+	}
+
+	Class<?> cls = null;
+	try {
+	    cls = Class.forName(className);
+	}
+	catch (ClassNotFoundException e) {
+	    return unsupported(className, "class not found locally.");
+	}
+
+	if (cls.isArray()) {
+	    return array(cls.getComponentType(), get(cls.getComponentType().getName()));
+	}
+	if (cls.isEnum()) {
+	    return enumeration(cls);
+	}
+	return fromString(cls);
+    }
+
+    /**
+       Read an integer as the baseline did: decimal, even with leading
+       zeros, and only hex (0x...) through Tcl, whose octal rules would
+       turn 010 into 8 and reject 08.
+    */
+    static private int getInt(TclObject obj) {
+	String text = obj.toString().trim();
+	try {
+	    return Integer.parseInt(text);
+	}
+	catch (NumberFormatException e) {
+	    if (!isHex(text)) {
+		throw invalid(obj, "int");
+	    }
+	}
+	try {
+	    return TclInteger.get(JInterp.current(), obj);
+	}
+	catch (TclException e) {
+	    throw invalid(obj, "int");
+	}
+    }
+
+    static private long getLong(TclObject obj) {
+	// Jacl integers are 32 bits, so larger values are parsed here.
+	String text = obj.toString().trim();
+	try {
+	    return Long.parseLong(text);
+	}
+	catch (NumberFormatException e) {
+	    if (!isHex(text)) {
+		throw invalid(obj, "long");
+	    }
+	}
+	try {
+	    return TclInteger.get(JInterp.current(), obj);
+	}
+	catch (TclException e) {
+	    throw invalid(obj, "long");
+	}
+    }
+
+    static private boolean isHex(String text) {
+	String lower = text.toLowerCase();
+	return lower.startsWith("0x") || lower.startsWith("-0x");
+    }
+
+    static private double getDouble(TclObject obj) {
+	try {
+	    return TclDouble.get(JInterp.current(), obj);
+	}
+	catch (TclException e) {
+	    throw invalid(obj, "double");
+	}
+    }
+
+    static private Date getDate(TclObject obj) {
+	String value = obj.toString().trim();
+	if (obj.isIntType()) {
+	    return new Date(getInt(obj));
+	}
+	try {
+	    return new Date(Long.parseLong(value));
+	}
+	catch (NumberFormatException e) {
+	    /* Not milliseconds, try the date formats. */
+	}
+	for (String format : DATE_FORMATS) {
+	    ParsePosition position = new ParsePosition(0);
+	    Date date = new SimpleDateFormat(format).parse(value, position);
+	    if (date != null && position.getIndex() == value.length()) {
+		return date;
+	    }
+	}
+	throw new IllegalArgumentException("Invalid date '" + value + "', expected milliseconds or yyyy-MM-dd[ HH:mm:ss].");
+    }
+
+    static private IllegalArgumentException invalid(TclObject obj, String type) {
+	JInterp.current().resetResult();
+	return new IllegalArgumentException("Invalid " + type + " value '" + obj.toString() + "'.");
+    }
+
+    static private Converter unsupported(final String className, final String reason) {
+	return new Converter() {
+	    public Object convert(TclObject obj) {
+		throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + className + "' - " + reason);
+	    }
+	};
+    }
+
+    static private Class<?> loadClass(String className) {
+	try {
+	    return Class.forName(className);
+	}
+	catch (ClassNotFoundException e) {
+	    throw new IllegalArgumentException("Class " + className + " not found locally.", e);
+	}
+    }
+
+    static private Converter array(final Class<?> componentType, final Converter element) {
+	return new Converter() {
+	    public Object convert(TclObject obj) {
+		TclObject[] elements = elements(obj);
+		Object result = Array.newInstance(componentType, elements.length);
+		for (int i = 0; i < elements.length; i++) {
+		    Array.set(result, i, element.convert(elements[i]));
+		}
+		return result;
+	    }
+	};
+    }
+
+    static private Converter enumeration(final Class<?> cls) {
+	return new Converter() {
+	    public Object convert(TclObject obj) {
+		String value = obj.toString();
+		for (Object constant : cls.getEnumConstants()) {
+		    if (((Enum<?>) constant).name().equalsIgnoreCase(value)) {
+			return constant;
+		    }
+		}
+		throw new IllegalArgumentException("Invalid value '" + value + "' for " + cls.getName() + ", should be one of " + Arrays.toString(cls.getEnumConstants()) + ".");
+	    }
+	};
+    }
+
+    static private Converter fromString(final Class<?> cls) {
+	final String className = cls.getName();
+	Constructor<?> ctor = null;
+	Method valueOf = null;
+
+	try {
+	    ctor = cls.getConstructor(new Class[]{String.class});
+	}
+	catch (NoSuchMethodException e) {
+	    try {
+		valueOf = cls.getMethod("valueOf", new Class[]{String.class});
+		if (!Modifier.isStatic(valueOf.getModifiers())) {
+		    valueOf = null;
+		}
+	    }
+	    catch (NoSuchMethodException ee) {
+		/* Neither, see below. */
+	    }
+	}
+
+	if (ctor == null && valueOf == null) {
+	    return unsupported(className, "cannot convert from string.");
+	}
+
+	final Constructor<?> constructor = ctor;
+	final Method method = valueOf;
+
+	return new Converter() {
+	    public Object convert(TclObject obj) {
+		try {
+		    if (constructor != null) {
+			return constructor.newInstance(new Object[]{obj.toString()});
+		    }
+		    return method.invoke(null, new Object[]{obj.toString()});
+		}
+		catch (InstantiationException e) {
+		    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + className + "' - class cannot be instantiated.", e);
+		}
+		catch (IllegalAccessException e) {
+		    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + className + "' - cannot access constructor.", e);
+		}
+		catch (InvocationTargetException e) {
+		    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + className + "' - exception thrown in constructor.", e);
+		}
+	    }
+	};
+    }
+
+    static private Converter composite(final CompositeType type) {
+	final Map<String, Converter> items = new HashMap<String, Converter>();
+	for (String item : type.keySet()) {
+	    items.put(item, get(type.getType(item)));
+	}
+
+	return new Converter() {
+	    public Object convert(TclObject obj) {
+		TclObject[] elements = elements(obj);
+		if (elements.length % 2 != 0) {
+		    throw new IllegalArgumentException("Expected a list of item names and values for " + type.getTypeName() + ".");
+		}
+		Map<String, Object> values = new HashMap<String, Object>();
+		for (String item : type.keySet()) {
+		    values.put(item, null);
+		}
+		for (int i = 0; i < elements.length; i += 2) {
+		    String item = elements[i].toString();
+		    Converter converter = items.get(item);
+		    if (converter == null) {
+			throw new IllegalArgumentException("No item '" + item + "' in " + type.getTypeName() + ", should be one of " + type.keySet() + ".");
+		    }
+		    values.put(item, converter.convert(elements[i + 1]));
+		}
+		try {
+		    return new CompositeDataSupport(type, values);
+		}
+		catch (OpenDataException e) {
+		    throw new IllegalArgumentException("Invalid " + type.getTypeName() + ": " + e.getMessage(), e);
+		}
+	    }
+	};
+    }
+
+    static private Converter tabular(final TabularType type) {
+	final CompositeType rowType = type.getRowType();
+	final Converter row = composite(rowType);
+	final boolean isMap = rowType.keySet().size() == 2
+	    && rowType.containsKey("key") && rowType.containsKey("value");
+	final Converter key = isMap ? get(rowType.getType("key")) : null;
+	final Converter value = isMap ? get(rowType.getType("value")) : null;
+
+	return new Converter() {
+	    public Object convert(TclObject obj) {
+		TabularDataSupport result = new TabularDataSupport(type);
+		TclObject[] elements = elements(obj);
+		try {
+		    if (isMap) {
+			if (elements.length % 2 != 0) {
+			    throw new IllegalArgumentException("Expected a list of keys and values for " + type.getTypeName() + ".");
+			}
+			for (int i = 0; i < elements.length; i += 2) {
+			    result.put(new CompositeDataSupport(rowType,
+				new String[] { "key", "value" },
+				new Object[] { key.convert(elements[i]), value.convert(elements[i + 1]) }));
+			}
+		    }
+		    else {
+			for (TclObject element : elements) {
+			    result.put((CompositeData) row.convert(element));
+			}
+		    }
+		}
+		catch (OpenDataException e) {
+		    throw new IllegalArgumentException("Invalid " + type.getTypeName() + ": " + e.getMessage(), e);
+		}
+		catch (KeyAlreadyExistsException e) {
+		    throw new IllegalArgumentException("Duplicate row in " + type.getTypeName() + ": " + e.getMessage(), e);
+		}
+		return result;
+	    }
+	};
+    }
+
+    static private TclObject[] elements(TclObject obj) {
+	try {
+	    return TclList.getElements(JInterp.current(), obj);
+	}
+	catch (TclException e) {
+	    JInterp.current().resetResult();
+	    throw new IllegalArgumentException("Expected a Tcl list, got '" + obj.toString() + "'.");
+	}
+    }
+
+}
@@ -0,0 +1,461 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.*;
+import tcl.lang.*;
+
+/**
+   Runs scripts sent by thin clients (see Client), for jmxsh -L, so
+   that a check which reads one attribute costs a round trip on the
+   loopback interface instead of a JVM start, a Tcl interpreter and
+   a JMX connection.
+
+   The daemon listens on 127.0.0.1 only.  A client must present a
+   random key, which is written with the port to a file only the
+   owner can read.  Whoever can read that file can run any Tcl,
+   exec included, as the daemon's user.
+
+   A fixed number of worker threads each own a warm interpreter,
+   with the -i files already sourced.  Connections opened at startup
+   or by any script stay open and are shared: jmx_close does nothing
+   for clients, and exit ends the script, not the daemon.  After each
+   script, the globals and procs it created are removed and SERVER is
+   reset to the daemon's default.
+
+   What every worker shares can be set up by the -i files but not
+   changed by scripts, whose changes would outlive them: jmx_timeout,
+   jmx_converter, jmx_cache -z, jmx_health -p and -w, and starting or
+   stopping pollers (jmx_poll, jmx_record) and the exporter
+   (jmx_export).  jmx_subscribe is refused, as its callbacks need the
+   shell's event loop, which the daemon does not run.
+
+   While a worker runs a script, its stdout and stderr, whether from
+   puts or from a command printing help, go to that script's client.
+*/
+
+class Daemon {
+
+    static final int DEFAULT_WORKERS = 4;
+
+    static private Logger logger = Logger.getLogger(Daemon.class);
+
+    static private ThreadOutput stdout;
+    static private ThreadOutput stderr;
+
+    private String key;
+    private String[] includes;
+    private String defaultServer;
+    private BlockingQueue<Socket> pending = new LinkedBlockingQueue<Socket>();
+
+    /** Ends a client's script with an exit code. */
+    static private class Exit extends RuntimeException {
+	final int code;
+
+	Exit(int code) {
+	    super("exit " + code);
+	    this.code = code;
+	}
+    }
+
+    /**
+       Stands in for System.out or System.err: writes go to the client
+       of the calling worker, or else where they always went.
+    */
+    static private class ThreadOutput extends OutputStream {
+	private OutputStream fallback;
+	private ThreadLocal<OutputStream> target = new ThreadLocal<OutputStream>();
+
+	ThreadOutput(OutputStream fallback) {
+	    this.fallback = fallback;
+	}
+
+	void bind(OutputStream out) {
+	    this.target.set(out);
+	}
+
+	void unbind() {
+	    this.target.remove();
+	}
+
+	private OutputStream get() {
+	    OutputStream out = this.target.get();
+	    return (out == null) ? this.fallback : out;
+	}
+
+	public void write(int b) throws IOException {
+	    get().write(b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    get().write(b, off, len);
+	}
+
+	public void flush() throws IOException {
+	    get().flush();
+	}
+    }
+
+    /** One kind of output to a client, as length-prefixed frames. */
+    static private class FrameOutput extends OutputStream {
+	private DataOutputStream out;
+	private byte type;
+
+	FrameOutput(DataOutputStream out, byte type) {
+	    this.out = out;
+	    this.type = type;
+	}
+
+	public void write(int b) throws IOException {
+	    write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    if (len == 0) {
+		return;
+	    }
+	    synchronized (this.out) {
+		this.out.writeByte(this.type);
+		this.out.writeInt(len);
+		this.out.write(b, off, len);
+	    }
+	}
+
+	public void flush() throws IOException {
+	    synchronized (this.out) {
+		this.out.flush();
+	    }
+	}
+    }
+
+    private Daemon(String[] includes) {
+	this.includes = (includes == null) ? new String[0] : includes;
+	this.defaultServer = Jmx.getInstance().getDefaultServer();
+
+	byte[] random = new byte[16];
+	new SecureRandom().nextBytes(random);
+	StringBuilder hex = new StringBuilder();
+	for (byte b : random) {
+	    hex.append(String.format("%02x", b & 0xff));
+	}
+	this.key = hex.toString();
+    }
+
+    /** Whether the calling thread is a worker, sourcing the -i files or running a script. */
+    static boolean isWorker() {
+	return Thread.currentThread() instanceof Worker;
+    }
+
+    /** Whether the calling thread is a worker running a client's script. */
+    static boolean inScript() {
+	Thread thread = Thread.currentThread();
+	return thread instanceof Worker && ((Worker) thread).serving;
+    }
+
+    /**
+       Start the workers and serve clients until the process is killed.
+
+       @param port Port on 127.0.0.1, or 0 for any free one.
+       @param daemonFile Where to write the port and key for clients.
+       @param includes Files each worker sources before its first script.
+    */
+    static void serve(int port, int workers, String daemonFile, String[] includes)
+	throws IOException {
+
+	if (workers < 1) {
+	    throw new IllegalArgumentException("There must be at least one worker.");
+	}
+
+	Daemon daemon = new Daemon(includes);
+	ServerSocket listener = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+	daemon.writeDaemonFile(new File(daemonFile), listener.getLocalPort());
+
+	synchronized (Daemon.class) {
+	    if (stdout == null) {
+		stdout = new ThreadOutput(new FileOutputStream(FileDescriptor.out));
+		stderr = new ThreadOutput(new FileOutputStream(FileDescriptor.err));
+		System.setOut(new PrintStream(stdout, true));
+		System.setErr(new PrintStream(stderr, true));
+	    }
+	}
+
+	CountDownLatch ready = new CountDownLatch(workers);
+	for (int i = 1; i <= workers; i++) {
+	    daemon.new Worker(i, ready).start();
+	}
+	try {
+	    ready.await();
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return;
+	}
+
+	System.err.println("Serving " + workers + " workers on 127.0.0.1:" + listener.getLocalPort() + "; clients read " + daemonFile + ".");
+	logger.info("Daemon listening on port " + listener.getLocalPort());
+
+	while (true) {
+	    Socket socket = listener.accept();
+	    daemon.pending.add(socket);
+	}
+    }
+
+    /**
+       Write "port key", readable by the owner only.  The key goes into
+       a file that is owner-only from its creation, which is then moved
+       into place, so no one else ever has it open.
+    */
+    private void writeDaemonFile(File file, int port)
+	throws IOException {
+
+	Path target = file.getAbsoluteFile().toPath();
+	String prefix = target.getFileName() + ".";
+	Path temp;
+	if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+	    temp = Files.createTempFile(target.getParent(), prefix, ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+	}
+	else {
+	    // No POSIX permissions here; the directory's ACL decides.
+	    temp = Files.createTempFile(target.getParent(), prefix, ".tmp");
+	}
+
+	try {
+	    Writer out = new OutputStreamWriter(Files.newOutputStream(temp), "UTF-8");
+	    try {
+		out.write(port + " " + this.key + "\n");
+	    }
+	    finally {
+		out.close();
+	    }
+	    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	finally {
+	    Files.deleteIfExists(temp);
+	}
+	file.deleteOnExit();
+    }
+
+    /** A thread with its own interpreter, running one script at a time. */
+    private class Worker extends Thread {
+	private CountDownLatch ready;
+	private JInterp interp;
+	private Set<String> globals;
+	private Set<String> procs;
+	private boolean serving;
+
+	Worker(int number, CountDownLatch ready) {
+	    super("jmxsh-daemon-" + number);
+	    setDaemon(true);
+	    this.ready = ready;
+	}
+
+	public void run() {
+	    try {
+		setUp();
+	    }
+	    finally {
+		this.ready.countDown();
+	    }
+
+	    while (true) {
+		Socket socket = null;
+		try {
+		    socket = pending.take();
+		}
+		catch (InterruptedException e) {
+		    return;
+		}
+		handle(socket);
+	    }
+	}
+
+	private void setUp() {
+	    this.interp = JInterp.createForThread();
+	    this.interp.createCommand("exit", new Command() {
+		public void cmdProc(Interp interp, TclObject argv[]) throws TclException {
+		    throw new Exit((argv.length > 1) ? TclInteger.get(interp, argv[1]) : 0);
+		}
+	    });
+	    this.interp.createCommand("jmx_close", new Command() {
+		public void cmdProc(Interp interp, TclObject argv[]) {
+		    // Connections belong to the daemon, for the next client.
+		}
+	    });
+
+	    for (String include : includes) {
+		try {
+		    JInterp.evaluateFile(include);
+		}
+		catch (RuntimeException e) {
+		    logger.error("Error sourcing " + include + " in " + getName(), e);
+		    System.err.println(getName() + ": " + e.getMessage());
+		}
+	    }
+
+	    resetServer();
+	    this.globals = names("info globals");
+	    this.procs = names("info procs");
+	    this.serving = true;
+	}
+
+	private void handle(Socket socket) {
+	    try {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+
+		if (in.readInt() != Client.MAGIC || in.readInt() != Client.VERSION) {
+		    throw new IOException("Not a jmxsh client, or a different version.");
+		}
+		if (!MessageDigest.isEqual(in.readUTF().getBytes("UTF-8"), key.getBytes("UTF-8"))) {
+		    throw new IOException("Wrong key.");
+		}
+		String name = in.readUTF();
+		int length = in.readInt();
+		if (length < 0 || length > Client.MAX_SCRIPT) {
+		    throw new IOException("Bad script length " + length + ".");
+		}
+		byte[] script = new byte[length];
+		in.readFully(script);
+		int argc = in.readInt();
+		if (argc < 0 || argc > Client.MAX_ARGS) {
+		    throw new IOException("Bad argument count " + argc + ".");
+		}
+		String[] argv = new String[argc];
+		for (int i = 0; i < argc; i++) {
+		    argv[i] = in.readUTF();
+		}
+
+		int code = run(name, new String(script, "UTF-8"), argv, new FrameOutput(out, Client.OUT), new FrameOutput(out, Client.ERR));
+		synchronized (out) {
+		    out.writeByte(Client.EXIT);
+		    out.writeInt(code);
+		    out.flush();
+		}
+	    }
+	    catch (IOException e) {
+		logger.info("Dropped client: " + e.getMessage());
+	    }
+	    finally {
+		try {
+		    socket.close();
+		}
+		catch (IOException e) {
+		    logger.debug("Error closing client socket.", e);
+		}
+	    }
+	}
+
+	private int run(String name, String script, String[] argv, OutputStream out, OutputStream err) {
+	    stdout.bind(out);
+	    stderr.bind(err);
+	    try {
+		JInterp.setGlobal("argv0", name);
+		JInterp.setGlobal("argv", argv, 0);
+		JInterp.setGlobal("argc", argv.length);
+		resetServer();
+		this.interp.eval(script);
+		return 0;
+	    }
+	    catch (TclException e) {
+		if (e.getCompletionCode() == TCL.RETURN) {
+		    return 0;
+		}
+		String errorInfo = JInterp.getGlobal("errorInfo", null);
+		System.err.println((errorInfo != null) ? errorInfo : this.interp.getResult().toString());
+		return 1;
+	    }
+	    catch (Exit e) {
+		return e.code;
+	    }
+	    catch (RuntimeException e) {
+		logger.error("Error running " + name, e);
+		System.err.println("Error: " + e.getMessage());
+		return 1;
+	    }
+	    finally {
+		System.out.flush();
+		System.err.flush();
+		stdout.unbind();
+		stderr.unbind();
+		cleanUp();
+	    }
+	}
+
+	/** Point SERVER and SERVERS at the daemon's connections. */
+	private void resetServer() {
+	    JInterp.unsetGlobal("SERVER");
+	    JInterp.unsetGlobal("SERVERS");
+	    for (String server : Jmx.getInstance().getServers()) {
+		JInterp.setGlobal("SERVERS", server, server);
+	    }
+	    if (defaultServer != null && Jmx.getInstance().isConnected(defaultServer)) {
+		JInterp.setGlobal("SERVER", defaultServer);
+	    }
+	}
+
+	/** Remove what the last script defined, so the next starts clean. */
+	private void cleanUp() {
+	    try {
+		for (String name : names("info globals")) {
+		    if (!this.globals.contains(name)) {
+			this.interp.unsetVar(name, TCL.GLOBAL_ONLY);
+		    }
+		}
+		for (String name : names("info procs")) {
+		    if (!this.procs.contains(name)) {
+			this.interp.deleteCommand(name);
+		    }
+		}
+	    }
+	    catch (TclException e) {
+		logger.warn("Error cleaning up after a script.", e);
+	    }
+	    this.interp.resetResult();
+	}
+
+	private Set<String> names(String command) {
+	    Set<String> result = new HashSet<String>();
+	    try {
+		this.interp.eval(command);
+		for (TclObject name : TclList.getElements(this.interp, this.interp.getResult())) {
+		    result.add(name.toString());
+		}
+	    }
+	    catch (TclException e) {
+		logger.warn("Error evaluating " + command, e);
+	    }
+	    return result;
+	}
+    }
+
+}
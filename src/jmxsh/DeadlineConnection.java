@@ -0,0 +1,90 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import javax.management.MBeanServerConnection;
+
+/**
+   Wraps an MBeanServerConnection so that every call on it is made
+   through FanOut.call(), with the deadline Jmx gives for the calling
+   thread: its invoke timeout for operations, its call timeout for the
+   rest.
+
+   A call that overruns throws FanOut.CallTimeoutException, which is
+   an IOException, so callers see it the same way as any other
+   network failure.
+*/
+
+class DeadlineConnection implements InvocationHandler {
+
+    private final MBeanServerConnection target;
+
+    private DeadlineConnection(MBeanServerConnection target) {
+	this.target = target;
+    }
+
+    static MBeanServerConnection wrap(MBeanServerConnection target) {
+	return (MBeanServerConnection) Proxy.newProxyInstance(
+	    MBeanServerConnection.class.getClassLoader(),
+	    new Class<?>[] { MBeanServerConnection.class },
+	    new DeadlineConnection(target)
+	);
+    }
+
+    public Object invoke(Object proxy, final Method method, final Object[] args)
+	throws Throwable {
+
+	if (method.getDeclaringClass() == Object.class) {
+	    return call(method, args);
+	}
+
+	long timeout = method.getName().equals("invoke")
+	    ? Jmx.getInstance().getInvokeTimeout()
+	    : Jmx.getInstance().getCallTimeout();
+
+	return FanOut.call(new Callable<Object>() {
+	    public Object call() throws Exception {
+		return DeadlineConnection.this.call(method, args);
+	    }
+	}, timeout, null);
+    }
+
+    private Object call(Method method, Object[] args) throws Exception {
+	try {
+	    return method.invoke(this.target, args);
+	}
+	catch (InvocationTargetException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof Exception) {
+		throw (Exception) cause;
+	    }
+	    throw (Error) cause;
+	}
+	catch (IllegalAccessException e) {
+	    throw new IllegalStateException("Cannot call " + method.getName() + ".", e);
+	}
+    }
+
+}
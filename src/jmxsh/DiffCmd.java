@@ -0,0 +1,293 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Compare two servers, or a server and a dump, attribute by attribute. */
+class DiffCmd implements Command {
+
+    private final static DiffCmd instance = new DiffCmd();
+
+    private Options opts;
+
+    static DiffCmd getInstance() {
+	return instance;
+    }
+
+    private DiffCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("mbean")
+		.withDescription("ObjectName pattern of the mbeans to compare (default *:*).")
+		.withArgName("PATTERN")
+		.hasArg()
+		.create("m")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("ignore")
+		.withDescription("Skip attributes whose name matches one of these globs, e.g. {*Time Uptime}.")
+		.withArgName("GLOBS")
+		.hasArg()
+		.create("x")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("threshold")
+		.withDescription("Ignore numeric changes smaller than this percentage (default 0).")
+		.withArgName("PERCENT")
+		.hasArg()
+		.create("t")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("concurrency")
+		.withDescription("MBeans read at the same time on each live server (default " + Dumper.DEFAULT_CONCURRENCY + ").")
+		.withArgName("COUNT")
+		.hasArg()
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("output")
+		.withDescription("Write the differences to this file instead of returning them.")
+		.withArgName("FILE")
+		.hasArg()
+		.create("o")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    /** A connected server, or else a dump file. */
+    private Snapshot open(String side, String pattern, int concurrency)
+	throws IOException {
+
+	if (Jmx.getInstance().isConnected(side)) {
+	    return Snapshot.live(side, pattern, concurrency);
+	}
+	if (new File(side).isFile()) {
+	    return Snapshot.file(side, pattern);
+	}
+	throw new IllegalArgumentException("'" + side + "' is neither a connected server nor a dump file.");
+    }
+
+    /** Differences as a Tcl list of {kind mbean attribute left right delta percent}. */
+    static private class ListReport implements Differ.Report {
+	private Interp interp;
+	private TclObject result;
+
+	ListReport(Interp interp) {
+	    this.interp = interp;
+	    this.result = TclList.newInstance();
+	}
+
+	public void difference(String kind, Snapshot.Entry left, Snapshot.Entry right, Number delta, Double relative) {
+	    Snapshot.Entry either = (left != null) ? left : right;
+	    try {
+		TclObject item = TclList.newInstance();
+		TclList.append(this.interp, item, TclString.newInstance(kind));
+		TclList.append(this.interp, item, TclString.newInstance(either.mbean));
+		TclList.append(this.interp, item, TclString.newInstance(either.attribute));
+		TclList.append(this.interp, item, TclString.newInstance((left == null) ? "" : left.toString()));
+		TclList.append(this.interp, item, TclString.newInstance((right == null) ? "" : right.toString()));
+		TclList.append(this.interp, item, (delta == null) ? TclString.newInstance("") : ResultConverter.scalar(delta));
+		TclList.append(this.interp, item, (relative == null) ? TclString.newInstance("") : ResultConverter.scalar(relative));
+		TclList.append(this.interp, this.result, item);
+	    }
+	    catch (TclException e) {
+		throw new IllegalStateException("Error building result list.");
+	    }
+	}
+    }
+
+    /** Differences as text, one per line, in the style of diff. */
+    static private class FileReport implements Differ.Report {
+	private Writer out;
+
+	FileReport(Writer out) {
+	    this.out = out;
+	}
+
+	public void difference(String kind, Snapshot.Entry left, Snapshot.Entry right, Number delta, Double relative)
+	    throws IOException {
+
+	    if (left == null) {
+		this.out.write("+ " + right.mbean + " " + right.attribute + ": " + right + "\n");
+		return;
+	    }
+	    if (right == null) {
+		this.out.write("- " + left.mbean + " " + left.attribute + ": " + left + "\n");
+		return;
+	    }
+
+	    this.out.write("~ " + left.mbean + " " + left.attribute + ": " + left + " -> " + right);
+	    if (delta != null) {
+		this.out.write(" (" + ((delta.doubleValue() > 0) ? "+" : "") + delta);
+		if (relative != null) {
+		    this.out.write(String.format(", %+.2f%%", relative));
+		}
+		this.out.write(")");
+	    }
+	    this.out.write("\n");
+	}
+    }
+
+    private TclObject counters(Interp interp, Differ differ)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	TclList.append(interp, result, TclString.newInstance("compared"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(differ.getCompared())));
+	TclList.append(interp, result, TclString.newInstance("changed"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(differ.getChanged())));
+	TclList.append(interp, result, TclString.newInstance("added"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(differ.getAdded())));
+	TclList.append(interp, result, TclString.newInstance("removed"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(differ.getRemoved())));
+	TclList.append(interp, result, TclString.newInstance("ignored"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(differ.getIgnored())));
+	return result;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help") || args.length == 0 || args.length > 2) {
+		new HelpFormatter().printHelp (
+		    "jmx_diff [-?] [-m pattern] [-x globs] [-t percent] [-c count] [-o file] LEFT [RIGHT]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_diff compares the attributes of two servers, or of a");
+		System.out.println("server and a dump written by jmx_dump (e.g. an hour ago).");
+		System.out.println("LEFT and RIGHT are each a connected server or a dump file;");
+		System.out.println("RIGHT defaults to $SERVER.  Live servers are read at the");
+		System.out.println("same time, and memory use does not depend on their size.");
+		System.out.println("");
+		System.out.println("Returns a list with one element per difference:");
+		System.out.println("  {KIND MBEAN ATTRIBUTE LEFT RIGHT DELTA PERCENT}");
+		System.out.println("where KIND is changed, added (RIGHT only) or removed (LEFT");
+		System.out.println("only).  DELTA and PERCENT are set for numbers: RIGHT-LEFT, and");
+		System.out.println("that as a percentage of LEFT.  With -o, the differences are");
+		System.out.println("written to the file instead, and counters are returned.");
+		System.out.println("");
+		System.out.println("  jmx_diff -x {*Time Uptime} -t 5 before.ndjson");
+		return;
+	    }
+
+	    	    String pattern = cl.getOptionValue("mbean", "*:*");
+	    String left = args[0];
+	    String right = (args.length > 1) ? args[1] : Utils.getGlobal(interp, "SERVER");
+
+	    if (right == null) {
+		throw new TclException(interp, "No server to compare with; please set SERVER variable or give RIGHT.", TCL.ERROR);
+	    }
+
+	    double threshold = 0;
+	    int concurrency = 0;
+	    try {
+		threshold = Double.parseDouble(cl.getOptionValue("threshold", "0"));
+		concurrency = Integer.parseInt(cl.getOptionValue("concurrency", String.valueOf(Dumper.DEFAULT_CONCURRENCY)));
+	    }
+	    catch (NumberFormatException e) {
+		throw new TclException(interp, "Invalid threshold or concurrency: " + e.getMessage(), TCL.ERROR);
+	    }
+
+	    TclObject[] globs = TclList.getElements(interp, TclString.newInstance(cl.getOptionValue("ignore", "")));
+	    String[] ignore = new String[globs.length];
+	    for (int i = 0; i < globs.length; i++) {
+		ignore[i] = globs[i].toString();
+	    }
+	    Differ differ = new Differ(ignore, threshold);
+
+	    Snapshot leftSnapshot = null;
+	    Snapshot rightSnapshot = null;
+	    Writer out = null;
+	    try {
+		leftSnapshot = open(left, pattern, concurrency);
+		rightSnapshot = open(right, pattern, concurrency);
+
+		String filename = cl.getOptionValue("output");
+		if (filename != null) {
+		    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"), 65536);
+		    differ.diff(leftSnapshot, rightSnapshot, new FileReport(out));
+		    interp.setResult(counters(interp, differ));
+		}
+		else {
+		    ListReport report = new ListReport(interp);
+		    differ.diff(leftSnapshot, rightSnapshot, report);
+		    interp.setResult(report.result);
+		}
+	    }
+	    finally {
+		if (leftSnapshot != null) {
+		    leftSnapshot.close();
+		}
+		if (rightSnapshot != null) {
+		    rightSnapshot.close();
+		}
+		if (out != null) {
+		    out.close();
+		}
+	    }
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(IOException e)        {
+	    throw new TclException(interp, "Error during diff: " + e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
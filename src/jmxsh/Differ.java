@@ -0,0 +1,211 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+   Compares two snapshots attribute by attribute, as jmx_diff does.
+
+   Both snapshots come in the same order, so they are merged like
+   two sorted files: only the current entry of each side is held,
+   whatever the size of the servers.  An attribute present on one
+   side only is reported as removed (left only) or added (right
+   only); one whose values differ as changed.
+
+   Values that are numbers on both sides, whether read live or from
+   a dump, are compared as numbers and reported with their absolute
+   and relative (percent of the left value) difference.  Anything
+   else is compared as text.
+*/
+
+class Differ {
+
+    /** Receives each difference, in order. */
+    interface Report {
+	void difference(String kind, Snapshot.Entry left, Snapshot.Entry right, Number delta, Double relative)
+	    throws IOException;
+    }
+
+    static private final Pattern INTEGER = Pattern.compile("-?\\d{1,18}");
+    static private final Pattern DECIMAL = Pattern.compile("-?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+
+    private List<Matcher> ignore;
+    private double threshold;
+
+    private long compared;
+    private long changed;
+    private long added;
+    private long removed;
+    private long ignored;
+
+    /**
+       @param ignore Globs; attributes whose name matches one of them
+		     are skipped.
+       @param threshold Numeric changes smaller than this percentage
+			of the left value are not reported.
+    */
+    Differ(String[] ignore, double threshold) {
+	this.ignore = new ArrayList<Matcher>();
+	for (String glob : ignore) {
+	    this.ignore.add(PatternCache.getInstance().glob(glob, false).matcher(""));
+	}
+	this.threshold = threshold;
+    }
+
+    void diff(Snapshot left, Snapshot right, Report report)
+	throws IOException {
+
+	Snapshot.Entry l = next(left);
+	Snapshot.Entry r = next(right);
+
+	while (l != null || r != null) {
+	    int order = (l == null) ? 1 : (r == null) ? -1 : l.compareTo(r);
+
+	    if (order < 0) {
+		this.removed++;
+		report.difference("removed", l, null, null, null);
+		l = next(left);
+	    }
+	    else if (order > 0) {
+		this.added++;
+		report.difference("added", null, r, null, null);
+		r = next(right);
+	    }
+	    else {
+		this.compared++;
+		compare(l, r, report);
+		l = next(left);
+		r = next(right);
+	    }
+	}
+    }
+
+    /** The next entry that is not ignored. */
+    private Snapshot.Entry next(Snapshot snapshot)
+	throws IOException {
+
+	Snapshot.Entry entry = snapshot.next();
+	while (entry != null && isIgnored(entry.attribute)) {
+	    this.ignored++;
+	    entry = snapshot.next();
+	}
+	return entry;
+    }
+
+    private boolean isIgnored(String attribute) {
+	for (Matcher matcher : this.ignore) {
+	    if (matcher.reset(attribute).matches()) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private void compare(Snapshot.Entry left, Snapshot.Entry right, Report report)
+	throws IOException {
+
+	Number a = number(left);
+	Number b = number(right);
+
+	if (a == null || b == null) {
+	    if (!left.toString().equals(right.toString())) {
+		this.changed++;
+		report.difference("changed", left, right, null, null);
+	    }
+	    return;
+	}
+
+	Number delta = null;
+	double difference = 0;
+	if (a instanceof Long && b instanceof Long) {
+	    long d = b.longValue() - a.longValue();
+	    delta = Long.valueOf(d);
+	    difference = d;
+	}
+	else {
+	    difference = b.doubleValue() - a.doubleValue();
+	    if (Math.abs(difference) < 9.0e12) {
+		// To the six places a dump keeps, hiding 0.1+0.2 noise.
+		difference = Math.round(difference * 1000000.0) / 1000000.0;
+	    }
+	    delta = Double.valueOf(difference);
+	}
+	if (difference == 0) {
+	    return;
+	}
+
+	Double relative = null;
+	if (a.doubleValue() != 0) {
+	    relative = Double.valueOf(difference / Math.abs(a.doubleValue()) * 100.0);
+	    if (Math.abs(relative.doubleValue()) < this.threshold) {
+		return;
+	    }
+	}
+
+	this.changed++;
+	report.difference("changed", left, right, delta, relative);
+    }
+
+    /**
+       The value as a Long or Double, or null if it is not a number.
+       Values from a CSV dump are strings, so they are parsed.
+    */
+    static Number number(Snapshot.Entry entry) {
+	if (entry.error != null || entry.value == null || entry.value instanceof Boolean) {
+	    return null;
+	}
+	if (entry.value instanceof Double || entry.value instanceof Float) {
+	    return Double.valueOf(((Number) entry.value).doubleValue());
+	}
+	if (entry.value instanceof Long || entry.value instanceof Integer
+	    || entry.value instanceof Short || entry.value instanceof Byte) {
+	    return Long.valueOf(((Number) entry.value).longValue());
+	}
+	if (entry.value instanceof Number) {
+	    return Double.valueOf(((Number) entry.value).doubleValue());
+	}
+
+	String text = entry.value.toString();
+	if (INTEGER.matcher(text).matches()) {
+	    return Long.valueOf(text);
+	}
+	if (DECIMAL.matcher(text).matches()) {
+	    return Double.valueOf(text);
+	}
+	return null;
+    }
+
+    long getCompared() { return this.compared; }
+
+    long getChanged() { return this.changed; }
+
+    long getAdded() { return this.added; }
+
+    long getRemoved() { return this.removed; }
+
+    long getIgnored() { return this.ignored; }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Write every readable attribute of every mbean to a file. */
+class DumpCmd implements Command {
+
+    private final static DumpCmd instance = new DumpCmd();
+
+    private Options opts;
+
+    static DumpCmd getInstance() {
+	return instance;
+    }
+
+    private DumpCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("Server to dump, or * for every connected server.")
+		.withArgName("SERVER")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("mbean")
+		.withDescription("ObjectName pattern of the mbeans to dump (default *:*).")
+		.withArgName("PATTERN")
+		.hasArg()
+		.create("m")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("format")
+		.withDescription("Output format, csv or ndjson (default ndjson).")
+		.withArgName("FORMAT")
+		.hasArg()
+		.create("f")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("concurrency")
+		.withDescription("MBeans read at the same time (default " + Dumper.DEFAULT_CONCURRENCY + ").")
+		.withArgName("COUNT")
+		.hasArg()
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("output")
+		.withDescription("File to write the dump to, or - for standard output.")
+		.withArgName("FILE")
+		.hasArg()
+		.create("o")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    /**
+       Dump the servers to a file, or to standard output if filename
+       is "-", and return the Dumper with its counters.
+    */
+    static Dumper dump(String[] servers, String pattern, String filename, SampleWriter.Format format, int concurrency)
+	throws IOException {
+
+	boolean stdout = filename.equals("-");
+	OutputStream stream = stdout ? (OutputStream) System.out : new FileOutputStream(filename);
+	SampleWriter writer = new SampleWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 65536), format, true);
+	try {
+	    writer.writeHeader();
+	    return Dumper.dump(servers, pattern, writer, concurrency);
+	}
+	finally {
+	    if (stdout) {
+		writer.flush();
+	    }
+	    else {
+		writer.close();
+	    }
+	}
+    }
+
+    private TclObject stats(Interp interp, Dumper dumper)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	TclList.append(interp, result, TclString.newInstance("servers"));
+	TclList.append(interp, result, TclInteger.newInstance(dumper.getServers()));
+	TclList.append(interp, result, TclString.newInstance("mbeans"));
+	TclList.append(interp, result, TclInteger.newInstance(dumper.getMBeans()));
+	TclList.append(interp, result, TclString.newInstance("values"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(dumper.getValues())));
+	TclList.append(interp, result, TclString.newInstance("errors"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(dumper.getErrors())));
+	TclList.append(interp, result, TclString.newInstance("millis"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(dumper.getMillis())));
+	return result;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+
+	    if (cl.hasOption("help")) {
+		new HelpFormatter().printHelp (
+		    "jmx_dump [-?] [-s server] [-m pattern] [-f csv|ndjson] [-c count] -o file",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_dump reads every readable attribute of every mbean");
+		System.out.println("matching the pattern, one bulk getAttributes call per mbean,");
+		System.out.println("and writes one line per attribute.  Output is streamed, so");
+		System.out.println("large servers can be dumped in constant memory.");
+		System.out.println("");
+		System.out.println("Lines are sorted by server, ObjectName and attribute.");
+		System.out.println("CompositeData is written one item per line, named");
+		System.out.println("Attribute.item.  Attributes that cannot be read are written");
+		System.out.println("with an error (the error column in CSV, an \"error\" field in");
+		System.out.println("NDJSON) rather than stopping the dump.");
+		System.out.println("");
+		System.out.println("Returns a list of counters: servers, mbeans, values, errors and millis.");
+		System.out.println("The same dump can be taken without a shell with 'jmxsh -D FILE'.");
+		return;
+	    }
+
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+	    String filename = cl.getOptionValue("output");
+
+	    if (server == null) {
+		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	    }
+
+	    if (filename == null) {
+		throw new TclException(interp, "No output file specified; please use the -o option.", TCL.ERROR);
+	    }
+
+	    SampleWriter.Format format = null;
+	    int concurrency = 0;
+	    try {
+		format = SampleWriter.Format.valueOf(cl.getOptionValue("format", "ndjson").toUpperCase());
+		concurrency = Integer.parseInt(cl.getOptionValue("concurrency", String.valueOf(Dumper.DEFAULT_CONCURRENCY)));
+	    }
+	    catch (IllegalArgumentException e) {
+		throw new TclException(interp, "Invalid format or concurrency: " + e.getMessage(), TCL.ERROR);
+	    }
+
+	    String[] servers = server.equals("*") ? Jmx.getInstance().getServers() : new String[] { server };
+	    Dumper dumper = dump(servers, cl.getOptionValue("mbean", "*:*"), filename, format, concurrency);
+	    interp.setResult(stats(interp, dumper));
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(IOException e)        {
+	    throw new TclException(interp, "Error writing dump: " + e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
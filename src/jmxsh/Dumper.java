@@ -0,0 +1,294 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+import javax.management.openmbean.*;
+import org.apache.log4j.*;
+
+/**
+   Writes every readable attribute of every MBean on one or more
+   servers, as jmx_dump and the --dump option do.
+
+   Servers are dumped one after the other, domain by domain.  Within
+   a domain, the MBeans are read on a worker pool, each with one bulk
+   getAttributes call, but at most 'concurrency' of them are in
+   flight, and each is written out as soon as it and those before it
+   are done.  Memory use therefore depends on the concurrency, not on
+   the number of MBeans.
+
+   The output is ordered by server, then by canonical ObjectName,
+   then by attribute, so that two dumps can be compared line by line.
+   CompositeData values are flattened into one line per item, named
+   attribute.item, and arrays of them and TabularData into one per
+   row, named attribute[i].item; the key/value tables MXBeans use for
+   maps become attribute.key.  Other arrays are written as [a, b, c].
+   Attributes that cannot be read are written as errors, with the
+   reason.
+*/
+
+class Dumper {
+
+    static final int DEFAULT_CONCURRENCY = 8;
+    static final int MAX_DEPTH = 4;
+
+    static private Logger logger = Logger.getLogger(Dumper.class);
+
+    private Sink sink;
+    private ObjectName pattern;
+    private int concurrency;
+
+    private int servers;
+    private int mbeans;
+    private long values;
+    private long errors;
+    private long millis;
+
+    /** Where a dump goes: a SampleWriter, or a diff. */
+    interface Sink {
+	void sample(long timestamp, String server, String mbean, String attribute, Object value)
+	    throws IOException;
+
+	void error(long timestamp, String server, String mbean, String attribute, String message)
+	    throws IOException;
+    }
+
+    /** One line of output, before it is written. */
+    static class Row implements Comparable<Row> {
+	String attribute;
+	Object value;
+	String error;
+
+	Row(String attribute, Object value, String error) {
+	    this.attribute = attribute;
+	    this.value = value;
+	    this.error = error;
+	}
+
+	public int compareTo(Row other) {
+	    return this.attribute.compareTo(other.attribute);
+	}
+    }
+
+    /** Everything read from one MBean. */
+    static class Reading {
+	String mbean;
+	long timestamp;
+	List<Row> rows;
+    }
+
+    private Dumper(Sink sink, String pattern, int concurrency) {
+	if (concurrency < 1) {
+	    throw new IllegalArgumentException("Concurrency must be at least 1.");
+	}
+	this.sink = sink;
+	this.pattern = Jmx.getInstance().getObjectName(pattern);
+	this.concurrency = concurrency;
+    }
+
+    /**
+       Dump the MBeans matching pattern on each server.
+    */
+    static Dumper dump(String[] servers, String pattern, Sink sink, int concurrency)
+	throws IOException {
+
+	Dumper dumper = new Dumper(sink, pattern, concurrency);
+	long start = System.currentTimeMillis();
+	ExecutorService pool = Executors.newFixedThreadPool(concurrency, new FanOut.NamedThreadFactory("jmxsh-dump"));
+	try {
+	    for (String server : servers) {
+		dumper.dumpServer(server, pool);
+		dumper.servers++;
+	    }
+	}
+	finally {
+	    pool.shutdownNow();
+	    dumper.millis = System.currentTimeMillis() - start;
+	}
+	return dumper;
+    }
+
+    private void dumpServer(final String server, ExecutorService pool)
+	throws IOException {
+
+	String[] domains = Jmx.getInstance().getDomains(server);
+	// Sorted with the colon, so that the output is in ObjectName order.
+	for (int i = 0; i < domains.length; i++) {
+	    domains[i] = domains[i] + ":";
+	}
+	Arrays.sort(domains);
+
+	for (String domain : domains) {
+	    if (!this.pattern.isDomainPattern() && !domain.equals(this.pattern.getDomain() + ":")) {
+		continue;
+	    }
+
+	    LinkedList<Future<Reading>> inFlight = new LinkedList<Future<Reading>>();
+	    for (final String mbean : getNames(server, domain)) {
+		if (inFlight.size() >= this.concurrency) {
+		    write(server, inFlight.removeFirst());
+		}
+		inFlight.add(pool.submit(new Callable<Reading>() {
+		    public Reading call() {
+			return read(server, mbean);
+		    }
+		}));
+	    }
+	    while (!inFlight.isEmpty()) {
+		write(server, inFlight.removeFirst());
+	    }
+	}
+    }
+
+    /** The canonical names in one domain that match the pattern, sorted. */
+    private List<String> getNames(String server, String domain) {
+	List<String> result = new ArrayList<String>();
+	for (String name : Jmx.getInstance().queryNames(server, domain + "*")) {
+	    ObjectName objectName = Jmx.getInstance().getObjectName(name);
+	    if (this.pattern.apply(objectName)) {
+		result.add(objectName.getCanonicalName());
+	    }
+	}
+	Collections.sort(result);
+	return result;
+    }
+
+    static private Reading read(String server, String mbean) {
+	Reading reading = new Reading();
+	reading.mbean = mbean;
+	reading.timestamp = System.currentTimeMillis();
+	reading.rows = new ArrayList<Row>();
+
+	try {
+	    List<String> names = new ArrayList<String>();
+	    for (MBeanAttributeInfo info : Jmx.getInstance().getAttributes(server, mbean)) {
+		if (info.isReadable()) {
+		    names.add(info.getName());
+		}
+	    }
+	    if (names.isEmpty()) {
+		return reading;
+	    }
+
+	    Map<String, String> failures = new HashMap<String, String>();
+	    Map<String, Object> values = Jmx.getInstance().getAttributeValues(server, mbean, names.toArray(new String[names.size()]), failures);
+	    for (Map.Entry<String, Object> entry : values.entrySet()) {
+		flatten(reading.rows, entry.getKey(), entry.getValue(), 0);
+	    }
+	    for (Map.Entry<String, String> entry : failures.entrySet()) {
+		reading.rows.add(new Row(entry.getKey(), null, entry.getValue()));
+	    }
+	}
+	catch (RuntimeException e) {
+	    logger.debug("Error reading " + mbean, e);
+	    reading.rows.add(new Row("", null, e.getMessage()));
+	}
+
+	Collections.sort(reading.rows);
+	return reading;
+    }
+
+    /** Add the rows for one value; also used by the Exporter. */
+    static void flatten(List<Row> rows, String name, Object value, int depth) {
+	if (depth >= MAX_DEPTH || value == null) {
+	    rows.add(new Row(name, value, null));
+	}
+	else if (value instanceof CompositeData) {
+	    CompositeData data = (CompositeData) value;
+	    for (String key : data.getCompositeType().keySet()) {
+		flatten(rows, name + "." + key, data.get(key), depth + 1);
+	    }
+	}
+	else if (value instanceof TabularData) {
+	    TabularData data = (TabularData) value;
+	    CompositeType rowType = data.getTabularType().getRowType();
+	    boolean isMap = rowType.keySet().size() == 2
+		&& rowType.containsKey("key") && rowType.containsKey("value");
+	    int i = 0;
+	    for (Object row : data.values()) {
+		CompositeData composite = (CompositeData) row;
+		if (isMap) {
+		    flatten(rows, name + "." + composite.get("key"), composite.get("value"), depth + 1);
+		}
+		else {
+		    flatten(rows, name + "[" + i++ + "]", composite, depth + 1);
+		}
+	    }
+	}
+	else if (value instanceof CompositeData[]) {
+	    CompositeData[] data = (CompositeData[]) value;
+	    for (int i = 0; i < data.length; i++) {
+		flatten(rows, name + "[" + i + "]", data[i], depth + 1);
+	    }
+	}
+	else if (value.getClass().isArray()) {
+	    String text = Arrays.deepToString(new Object[] { value });
+	    rows.add(new Row(name, text.substring(1, text.length() - 1), null));
+	}
+	else {
+	    rows.add(new Row(name, value, null));
+	}
+    }
+
+    private void write(String server, Future<Reading> future)
+	throws IOException {
+
+	Reading reading = null;
+	try {
+	    reading = future.get();
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while dumping.", e);
+	}
+	catch (ExecutionException e) {
+	    throw new IllegalStateException("Error while dumping: " + e.getCause().getMessage(), e.getCause());
+	}
+
+	this.mbeans++;
+	for (Row row : reading.rows) {
+	    if (row.error == null) {
+		this.sink.sample(reading.timestamp, server, reading.mbean, row.attribute, row.value);
+		this.values++;
+	    }
+	    else {
+		this.sink.error(reading.timestamp, server, reading.mbean, row.attribute, row.error);
+		this.errors++;
+	    }
+	}
+    }
+
+    int getServers() { return this.servers; }
+
+    int getMBeans() { return this.mbeans; }
+
+    long getValues() { return this.values; }
+
+    long getErrors() { return this.errors; }
+
+    long getMillis() { return this.millis; }
+
+}
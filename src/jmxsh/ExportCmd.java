@@ -0,0 +1,272 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.IOException;
+import java.util.*;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Serve attributes as Prometheus metrics over HTTP. */
+class ExportCmd implements Command {
+
+    private final static ExportCmd instance = new ExportCmd();
+
+    private Options opts;
+
+    static ExportCmd getInstance() {
+	return instance;
+    }
+
+    private ExportCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("With add, the server to read, or * for every connected server.")
+		.withArgName("SERVER")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("mbean")
+		.withDescription("With add, the mbean, or ObjectName pattern, to read.")
+		.withArgName("MBEAN")
+		.hasArg()
+		.create("m")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("port")
+		.withDescription("With start, the HTTP port to listen on (default " + Exporter.DEFAULT_PORT + ").")
+		.withArgName("PORT")
+		.hasArg()
+		.create("p")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("bind")
+		.withDescription("With start, the address to listen on (default all).")
+		.withArgName("ADDRESS")
+		.hasArg()
+		.create("b")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("interval")
+		.withDescription("With start, milliseconds between refreshes (default " + Exporter.DEFAULT_INTERVAL + ").")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("i")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("concurrency")
+		.withDescription("With start, mbeans read at once (default " + FanOut.DEFAULT_CONCURRENCY + ").")
+		.withArgName("N")
+		.hasArg()
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    private void add(Interp interp, CommandLine cl, String[] args)
+	throws TclException {
+
+	String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+	String mbean  = cl.getOptionValue("mbean",  Utils.getGlobal(interp, "MBEAN"));
+
+	if (server == null) {
+	    throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	}
+
+	if (mbean == null) {
+	    throw new TclException(interp, "No mbean specified; please set MBEAN variable or use -m option.", TCL.ERROR);
+	}
+
+	List<String> attributes = new ArrayList<String>();
+	for (int i = 1; i < args.length; i++) {
+	    for (TclObject element : TclList.getElements(interp, TclString.newInstance(args[i]))) {
+		attributes.add(element.toString());
+	    }
+	}
+
+	Exporter.add(server, mbean, attributes.isEmpty() ? null : attributes.toArray(new String[attributes.size()]));
+    }
+
+    private void start(Interp interp, CommandLine cl)
+	throws TclException {
+
+	int port = 0;
+	long interval = 0;
+	int concurrency = 0;
+	try {
+	    port = Integer.parseInt(cl.getOptionValue("port", String.valueOf(Exporter.DEFAULT_PORT)));
+	    interval = Long.parseLong(cl.getOptionValue("interval", String.valueOf(Exporter.DEFAULT_INTERVAL)));
+	    concurrency = Integer.parseInt(cl.getOptionValue("concurrency", String.valueOf(FanOut.DEFAULT_CONCURRENCY)));
+	}
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid port, interval or concurrency: " + e.getMessage(), TCL.ERROR);
+	}
+
+	try {
+	    Exporter exporter = Exporter.start(cl.getOptionValue("bind"), port, interval, concurrency);
+	    interp.setResult(exporter.getURL());
+	}
+	catch (IOException e) {
+	    throw new TclException(interp, "Unable to listen on port " + port + ": " + e.getMessage(), TCL.ERROR);
+	}
+    }
+
+    private TclObject status(Interp interp)
+	throws TclException {
+
+	TclObject mappings = TclList.newInstance();
+	for (Exporter.Mapping mapping : Exporter.getMappings()) {
+	    TclObject item = TclList.newInstance();
+	    TclList.append(interp, item, TclString.newInstance(mapping.server));
+	    TclList.append(interp, item, TclString.newInstance(mapping.pattern));
+	    TclList.append(interp, item, (mapping.attributes == null) ? TclList.newInstance() : Utils.array2list(mapping.attributes));
+	    TclList.append(interp, mappings, item);
+	}
+
+	TclObject result = TclList.newInstance();
+	TclList.append(interp, result, TclString.newInstance("mappings"));
+	TclList.append(interp, result, mappings);
+
+	Exporter exporter = Exporter.get();
+	if (exporter == null) {
+	    return result;
+	}
+	TclList.append(interp, result, TclString.newInstance("url"));
+	TclList.append(interp, result, TclString.newInstance(exporter.getURL()));
+	TclList.append(interp, result, TclString.newInstance("interval"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.interval)));
+	TclList.append(interp, result, TclString.newInstance("refreshes"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.getRefreshes())));
+	TclList.append(interp, result, TclString.newInstance("lastRefresh"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.getLastRefresh())));
+	TclList.append(interp, result, TclString.newInstance("millis"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.getLastMillis())));
+	TclList.append(interp, result, TclString.newInstance("series"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.getSeries())));
+	TclList.append(interp, result, TclString.newInstance("errors"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.getErrors())));
+	TclList.append(interp, result, TclString.newInstance("lastError"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.getLastError())));
+	TclList.append(interp, result, TclString.newInstance("scrapes"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(exporter.getScrapes())));
+	return result;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help") || args.length == 0) {
+		new HelpFormatter().printHelp (
+		    "jmx_export add|clear|start|stop|status [-?] [-s server] [-m mbean] [-p port] [-b address] [-i millis] [-c n] [ATTRIBUTE ...]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_export serves attributes as Prometheus metrics over HTTP,");
+		System.out.println("at /metrics.  They are read in the background every interval");
+		System.out.println("and scrapes are answered from the last reading, so a slow");
+		System.out.println("server never makes a scrape slow.");
+		System.out.println("");
+		System.out.println("  jmx_export add -s * -m java.lang:type=Memory HeapMemoryUsage");
+		System.out.println("    adds a mapping: these attributes of the matching mbeans, on");
+		System.out.println("    every connected server.  With no attributes, all of them.");
+		System.out.println("  jmx_export start -p 9404 -i 15000");
+		System.out.println("    reads the mappings once, starts serving, and returns the URL.");
+		System.out.println("    If no mapping was added, every mbean on every server is read.");
+		System.out.println("  jmx_export clear          removes every mapping.");
+		System.out.println("  jmx_export stop           stops serving.");
+		System.out.println("  jmx_export status         returns the mappings and counters.");
+		System.out.println("");
+		System.out.println("The same can be done without a shell with 'jmxsh -E PORT'.");
+		return;
+	    }
+
+	    String subcommand = args[0];
+
+	    if (!subcommand.equals("status") && Daemon.inScript()) {
+		throw new TclException(interp, "The exporter is shared by every daemon worker and outlives the script; set it up in a -i file.", TCL.ERROR);
+	    }
+
+	    if (subcommand.equals("add")) {
+		add(interp, cl, args);
+	    }
+	    else if (subcommand.equals("clear")) {
+		Exporter.clear();
+	    }
+	    else if (subcommand.equals("start")) {
+		start(interp, cl);
+	    }
+	    else if (subcommand.equals("stop")) {
+		Exporter exporter = Exporter.get();
+		if (exporter == null) {
+		    throw new TclException(interp, "Not exporting.", TCL.ERROR);
+		}
+		exporter.stop();
+	    }
+	    else if (subcommand.equals("status")) {
+		interp.setResult(status(interp));
+	    }
+	    else {
+		throw new TclException(interp, "Unknown subcommand '" + subcommand + "', should be add, clear, start, stop or status.", TCL.ERROR);
+	    }
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,508 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+import org.apache.log4j.*;
+
+/**
+   Serves attributes as Prometheus metrics over HTTP, for jmx_export
+   and the --export option.
+
+   Scrapes never wait on a remote JVM.  A background thread reads the
+   configured mappings at a fixed delay, renders the whole exposition
+   off to the side, plain and gzipped, and swaps it in; each scrape
+   just writes out whichever page is current.  Slow or dead targets
+   make the page older, not the scrape slower.
+
+   Each refresh reads every matching MBean with one getAttributes
+   call, on the FanOut pool.  A mapping with no attributes reads all
+   readable ones.  Numbers and booleans are exported; CompositeData
+   is flattened as jmx_dump does it.
+
+   Metric names follow the usual JMX exporter layout: the domain, the
+   'type' key if there is one, and the attribute path, with anything
+   other than letters, digits and underscores turned into '_'.  The
+   other keys of the ObjectName, and the server URL, become labels:
+
+     java_lang_Memory_HeapMemoryUsage_used{server="service:jmx:..."} 2.9E7
+*/
+
+class Exporter {
+
+    static final int DEFAULT_PORT = 9404;
+    static final long DEFAULT_INTERVAL = 15000;
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    static private Logger logger = Logger.getLogger(Exporter.class);
+
+    /** Used when nothing was added: everything on every server. */
+    static private final Mapping EVERYTHING = new Mapping("*", "*:*", null);
+
+    static private List<Mapping> mappings = new CopyOnWriteArrayList<Mapping>();
+    static private Exporter instance;
+
+    /** What to export: attributes of the MBeans matching a pattern. */
+    static class Mapping {
+	final String server;
+	final String pattern;
+	final String[] attributes;
+
+	/**
+	   @param server A server URL, or * for every connected server.
+	   @param attributes The attributes to read, or null for all.
+	*/
+	Mapping(String server, String pattern, String[] attributes) {
+	    this.server = server;
+	    this.pattern = pattern;
+	    this.attributes = attributes;
+	}
+    }
+
+    /** One rendered exposition, never modified once published. */
+    static private class Page {
+	final byte[] text;
+	final byte[] gzip;
+	final int series;
+
+	Page(byte[] text, byte[] gzip, int series) {
+	    this.text = text;
+	    this.gzip = gzip;
+	    this.series = series;
+	}
+    }
+
+    /** One MBean to read during a refresh. */
+    static private class Source {
+	final String server;
+	final String mbean;
+
+	Source(String server, String mbean) {
+	    this.server = server;
+	    this.mbean = mbean;
+	}
+    }
+
+    final InetSocketAddress address;
+    final long interval;
+    final int concurrency;
+
+    private HttpServer http;
+    private ExecutorService handlers;
+    private ScheduledExecutorService refresher;
+    private volatile Page page;
+
+    private AtomicLong scrapes = new AtomicLong();
+    private volatile long refreshes;
+    private volatile long lastRefresh;
+    private volatile long lastMillis;
+    private volatile int lastErrors;
+    private volatile String lastError;
+
+    private Exporter(InetSocketAddress address, long interval, int concurrency) {
+	this.address = address;
+	this.interval = interval;
+	this.concurrency = concurrency;
+    }
+
+    static void add(String server, String pattern, String[] attributes) {
+	Jmx.getInstance().getObjectName(pattern);
+	mappings.add(new Mapping(server, pattern, attributes));
+    }
+
+    static void clear() {
+	mappings.clear();
+    }
+
+    static List<Mapping> getMappings() {
+	return new ArrayList<Mapping>(mappings);
+    }
+
+    /** The running exporter, or null. */
+    static synchronized Exporter get() {
+	return instance;
+    }
+
+    /**
+       Read the mappings once, then start serving them and refreshing
+       them in the background.
+
+       @param host Address to listen on, or null for all of them.
+    */
+    static synchronized Exporter start(String host, int port, long interval, int concurrency)
+	throws IOException {
+
+	if (instance != null) {
+	    throw new IllegalStateException("Already exporting on port " + instance.address.getPort() + ".");
+	}
+	if (interval < 1) {
+	    throw new IllegalArgumentException("Interval must be at least one millisecond.");
+	}
+	if (concurrency < 1) {
+	    throw new IllegalArgumentException("Concurrency must be at least 1.");
+	}
+
+	InetSocketAddress address = (host == null) ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+	final Exporter exporter = new Exporter(address, interval, concurrency);
+	exporter.refresh();
+
+	exporter.handlers = Executors.newFixedThreadPool(2, new FanOut.NamedThreadFactory("jmxsh-export-http"));
+	exporter.http = HttpServer.create(address, 0);
+	exporter.http.setExecutor(exporter.handlers);
+	exporter.http.createContext("/", new HttpHandler() {
+	    public void handle(HttpExchange exchange) throws IOException {
+		exporter.serve(exchange);
+	    }
+	});
+	exporter.http.start();
+
+	exporter.refresher = Executors.newSingleThreadScheduledExecutor(new FanOut.NamedThreadFactory("jmxsh-export"));
+	// Fixed delay rather than rate: a slow refresh must not queue up more.
+	exporter.refresher.scheduleWithFixedDelay(new Runnable() {
+	    public void run() {
+		exporter.refresh();
+	    }
+	}, interval, interval, TimeUnit.MILLISECONDS);
+
+	instance = exporter;
+	logger.info("Exporting on " + address);
+	return exporter;
+    }
+
+    synchronized void stop() {
+	this.refresher.shutdownNow();
+	this.http.stop(0);
+	this.handlers.shutdownNow();
+	synchronized (Exporter.class) {
+	    if (instance == this) {
+		instance = null;
+	    }
+	}
+	logger.info("Stopped exporting on " + this.address);
+    }
+
+    private void serve(HttpExchange exchange)
+	throws IOException {
+
+	try {
+	    String path = exchange.getRequestURI().getPath();
+	    String method = exchange.getRequestMethod();
+	    if (!path.equals("/") && !path.equals("/metrics")) {
+		exchange.sendResponseHeaders(404, -1);
+		return;
+	    }
+	    if (!method.equals("GET") && !method.equals("HEAD")) {
+		exchange.sendResponseHeaders(405, -1);
+		return;
+	    }
+
+	    Page current = this.page;
+	    String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+	    boolean gzip = accept != null && accept.contains("gzip");
+	    byte[] body = gzip ? current.gzip : current.text;
+
+	    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+	    if (gzip) {
+		exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+	    }
+	    if (method.equals("HEAD")) {
+		exchange.sendResponseHeaders(200, -1);
+		return;
+	    }
+	    exchange.sendResponseHeaders(200, body.length);
+	    exchange.getResponseBody().write(body);
+	    this.scrapes.incrementAndGet();
+	}
+	finally {
+	    exchange.close();
+	}
+    }
+
+    /** Read every mapping and publish a new page. */
+    void refresh() {
+	long start = System.currentTimeMillis();
+	try {
+	    Map<String, Boolean> up = new TreeMap<String, Boolean>();
+	    final Map<Source, Callable<List<Dumper.Row>>> tasks = new LinkedHashMap<Source, Callable<List<Dumper.Row>>>();
+	    int errors = 0;
+	    String error = null;
+
+	    for (Mapping mapping : mappings.isEmpty() ? Collections.singletonList(EVERYTHING) : mappings) {
+		String[] servers = mapping.server.equals("*") ? Jmx.getInstance().getServers() : new String[] { mapping.server };
+		for (String server : servers) {
+		    String[] mbeans = null;
+		    try {
+			mbeans = Jmx.getInstance().queryNames(server, mapping.pattern);
+		    }
+		    catch (RuntimeException e) {
+			logger.debug("Error querying " + server, e);
+			up.put(server, Boolean.FALSE);
+			errors++;
+			error = server + ": " + e.getMessage();
+			continue;
+		    }
+		    if (!up.containsKey(server)) {
+			up.put(server, Boolean.TRUE);
+		    }
+		    for (String mbean : mbeans) {
+			final Source source = new Source(server, mbean);
+			final String[] attributes = mapping.attributes;
+			tasks.put(source, new Callable<List<Dumper.Row>>() {
+			    public List<Dumper.Row> call() {
+				return read(source, attributes);
+			    }
+			});
+		    }
+		}
+	    }
+
+	    Map<String, StringBuilder> families = new TreeMap<String, StringBuilder>();
+	    Set<String> seen = new HashSet<String>();
+	    int series = 0;
+	    for (Map.Entry<Source, FanOut.Outcome<List<Dumper.Row>>> entry : FanOut.run(tasks, this.concurrency, FanOut.DEFAULT_TIMEOUT).entrySet()) {
+		Source source = entry.getKey();
+		FanOut.Outcome<List<Dumper.Row>> outcome = entry.getValue();
+		if (!outcome.succeeded()) {
+		    errors++;
+		    error = source.mbean + ": " + outcome.error;
+		    continue;
+		}
+
+		ObjectName name = Jmx.getInstance().getObjectName(source.mbean);
+		String labels = labels(source.server, name);
+		for (Dumper.Row row : outcome.value) {
+		    String value = format(row.value);
+		    if (value == null) {
+			continue;
+		    }
+		    String metric = metricName(name, row.attribute);
+		    String line = metric + labels;
+		    // Two MBeans may sanitize to the same series; keep the first.
+		    if (!seen.add(line)) {
+			continue;
+		    }
+		    StringBuilder family = families.get(metric);
+		    if (family == null) {
+			family = new StringBuilder();
+			families.put(metric, family);
+		    }
+		    family.append(line).append(' ').append(value).append('\n');
+		    series++;
+		}
+	    }
+
+	    long millis = System.currentTimeMillis() - start;
+	    StringBuilder text = new StringBuilder(64 * series + 1024);
+	    for (Map.Entry<String, StringBuilder> family : families.entrySet()) {
+		text.append("# TYPE ").append(family.getKey()).append(" untyped\n");
+		text.append(family.getValue());
+	    }
+	    text.append("# HELP jmxsh_export_up Whether the server could be queried in the last refresh.\n");
+	    text.append("# TYPE jmxsh_export_up gauge\n");
+	    for (Map.Entry<String, Boolean> entry : up.entrySet()) {
+		text.append("jmxsh_export_up{server=\"").append(escape(entry.getKey())).append("\"} ")
+		    .append(entry.getValue().booleanValue() ? 1 : 0).append('\n');
+	    }
+	    text.append("# HELP jmxsh_export_refresh_seconds Time taken by the last refresh.\n");
+	    text.append("# TYPE jmxsh_export_refresh_seconds gauge\n");
+	    text.append("jmxsh_export_refresh_seconds ").append(millis / 1000.0).append('\n');
+	    text.append("# HELP jmxsh_export_refresh_timestamp_seconds When the last refresh finished.\n");
+	    text.append("# TYPE jmxsh_export_refresh_timestamp_seconds gauge\n");
+	    text.append("jmxsh_export_refresh_timestamp_seconds ").append((start + millis) / 1000.0).append('\n');
+	    text.append("# HELP jmxsh_export_errors Servers and mbeans that could not be read in the last refresh.\n");
+	    text.append("# TYPE jmxsh_export_errors gauge\n");
+	    text.append("jmxsh_export_errors ").append(errors).append('\n');
+
+	    byte[] plain = text.toString().getBytes("UTF-8");
+	    this.page = new Page(plain, gzip(plain), series);
+	    this.refreshes++;
+	    this.lastRefresh = start + millis;
+	    this.lastMillis = millis;
+	    this.lastErrors = errors;
+	    this.lastError = error;
+	}
+	catch (UnsupportedEncodingException e) {
+	    throw new IllegalStateException("No UTF-8 support.", e);
+	}
+	catch (RuntimeException e) {
+	    // Keep serving the last page; an exception would end the schedule.
+	    logger.error("Error refreshing metrics.", e);
+	    this.lastErrors++;
+	    this.lastError = e.getMessage();
+	    if (this.page == null) {
+		throw e;
+	    }
+	}
+    }
+
+    static private byte[] gzip(byte[] plain) {
+	try {
+	    ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 4 + 64);
+	    GZIPOutputStream out = new GZIPOutputStream(compressed);
+	    out.write(plain);
+	    out.close();
+	    return compressed.toByteArray();
+	}
+	catch (IOException e) {
+	    throw new IllegalStateException("Error compressing metrics.", e);
+	}
+    }
+
+    static private List<Dumper.Row> read(Source source, String[] attributes) {
+	String[] names = attributes;
+	if (names == null) {
+	    List<String> readable = new ArrayList<String>();
+	    for (MBeanAttributeInfo info : Jmx.getInstance().getAttributes(source.server, source.mbean)) {
+		if (info.isReadable()) {
+		    readable.add(info.getName());
+		}
+	    }
+	    names = readable.toArray(new String[readable.size()]);
+	}
+
+	List<Dumper.Row> rows = new ArrayList<Dumper.Row>();
+	if (names.length == 0) {
+	    return rows;
+	}
+	for (Map.Entry<String, Object> entry : Jmx.getInstance().getAttributeValues(source.server, source.mbean, names, null).entrySet()) {
+	    Dumper.flatten(rows, entry.getKey(), entry.getValue(), 0);
+	}
+	return rows;
+    }
+
+    static String metricName(ObjectName name, String attribute) {
+	StringBuilder result = new StringBuilder();
+	result.append(name.getDomain());
+	String type = name.getKeyProperty("type");
+	if (type != null) {
+	    result.append('_').append(unquote(type));
+	}
+	result.append('_').append(attribute);
+	return sanitize(result.toString());
+    }
+
+    /** The ObjectName keys other than type, sorted, then the server. */
+    static String labels(String server, ObjectName name) {
+	StringBuilder result = new StringBuilder("{");
+	for (String key : new TreeSet<String>(name.getKeyPropertyList().keySet())) {
+	    if (key.equals("type")) {
+		continue;
+	    }
+	    String label = sanitize(key);
+	    if (label.equals("server")) {
+		label = "_server";
+	    }
+	    result.append(label).append("=\"").append(escape(unquote(name.getKeyProperty(key)))).append("\",");
+	}
+	result.append("server=\"").append(escape(server)).append("\"}");
+	return result.toString();
+    }
+
+    /** The sample value, or null if it is not a number or boolean. */
+    static String format(Object value) {
+	if (value instanceof Boolean) {
+	    return ((Boolean) value).booleanValue() ? "1" : "0";
+	}
+	if (value instanceof Double || value instanceof Float) {
+	    double d = ((Number) value).doubleValue();
+	    if (Double.isNaN(d)) {
+		return "NaN";
+	    }
+	    if (Double.isInfinite(d)) {
+		return (d > 0) ? "+Inf" : "-Inf";
+	    }
+	    return Double.toString(d);
+	}
+	if (value instanceof Number) {
+	    return value.toString();
+	}
+	return null;
+    }
+
+    /** Letters, digits and single underscores, not starting with a digit. */
+    static private String sanitize(String text) {
+	StringBuilder result = new StringBuilder(text.length() + 1);
+	if (text.length() == 0 || Character.isDigit(text.charAt(0))) {
+	    result.append('_');
+	}
+	for (int i = 0; i < text.length(); i++) {
+	    char c = text.charAt(i);
+	    boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	    if (valid) {
+		result.append(c);
+	    }
+	    else if (result.length() == 0 || result.charAt(result.length() - 1) != '_') {
+		result.append('_');
+	    }
+	}
+	return result.toString();
+    }
+
+    static private String unquote(String value) {
+	if (value.length() > 1 && value.charAt(0) == '"') {
+	    try {
+		return ObjectName.unquote(value);
+	    }
+	    catch (IllegalArgumentException e) {
+		return value;
+	    }
+	}
+	return value;
+    }
+
+    static private String escape(String value) {
+	if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+	    return value;
+	}
+	return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    String getURL() {
+	String host = this.address.isUnresolved() || this.address.getAddress().isAnyLocalAddress()
+	    ? "localhost" : this.address.getHostName();
+	return "http://" + host + ":" + this.http.getAddress().getPort() + "/metrics";
+    }
+
+    long getScrapes() { return this.scrapes.get(); }
+
+    long getRefreshes() { return this.refreshes; }
+
+    long getLastRefresh() { return this.lastRefresh; }
+
+    long getLastMillis() { return this.lastMillis; }
+
+    int getSeries() { return this.page.series; }
+
+    int getErrors() { return this.lastErrors; }
+
+    String getLastError() { return this.lastError; }
+
+}
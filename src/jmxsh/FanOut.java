@@ -0,0 +1,278 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.log4j.*;
+
+/**
+   Runs a batch of remote calls on a shared worker pool.
+
+   At most 'concurrency' calls of a batch are in flight at once, and
+   each call is given 'timeout' milliseconds from the moment it is
+   started.  A call that overruns is abandoned: its slot is handed to
+   the next call, and whatever it eventually returns is discarded.
+   RMI calls cannot be interrupted, so the abandoned thread simply
+   finishes in the background.
+*/
+
+class FanOut {
+
+    static final int DEFAULT_CONCURRENCY = 8;
+    static final long DEFAULT_TIMEOUT = 30000;
+
+    static private Logger logger = Logger.getLogger(FanOut.class);
+
+    static private ExecutorService workers = Executors.newCachedThreadPool(new NamedThreadFactory("jmxsh-worker"));
+    static private ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("jmxsh-watchdog"));
+
+    /** What happened to one call of a batch. */
+    static class Outcome<T> {
+	T value;
+	String error;
+	boolean timedOut;
+	long millis;
+
+	boolean succeeded() { return this.error == null; }
+    }
+
+    /** Disposes of the result of a task of a batch that finished after timing out. */
+    interface Late<K, T> {
+	void late(K key, T value);
+    }
+
+    /**
+       Run every task, and wait until each has either finished or
+       timed out, after timeout milliseconds (no limit if 0 or less).
+
+       @return The outcome of each task, in the iteration order of
+	       the given map.
+    */
+    static <K, T> Map<K, Outcome<T>> run(Map<K, Callable<T>> tasks, int concurrency, long timeout) {
+	return run(tasks, concurrency, timeout, null);
+    }
+
+    /**
+       As above, but a task that succeeds after it was reported as
+       timed out has its result handed to late, on the worker thread.
+       Exactly one of the two happens for each task: it either makes
+       it into the outcome or goes to late.
+    */
+    static <K, T> Map<K, Outcome<T>> run(Map<K, Callable<T>> tasks, int concurrency, long timeout, Late<K, T> late) {
+	if (concurrency < 1) {
+	    throw new IllegalArgumentException("Concurrency must be at least 1.");
+	}
+
+	Semaphore permits = new Semaphore(concurrency);
+	CountDownLatch done = new CountDownLatch(tasks.size());
+	Map<K, Outcome<T>> results = new LinkedHashMap<K, Outcome<T>>();
+
+	try {
+	    for (Map.Entry<K, Callable<T>> entry : tasks.entrySet()) {
+		permits.acquire();
+		Outcome<T> outcome = new Outcome<T>();
+		results.put(entry.getKey(), outcome);
+		submit(entry.getKey(), entry.getValue(), outcome, permits, done, timeout, late);
+	    }
+	    done.await();
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while waiting for remote calls.", e);
+	}
+
+	return results;
+    }
+
+    /**
+       The value of the first outcome, in iteration order, that
+       succeeded, or null if none did.
+    */
+    static <K, T> T firstValue(Map<K, Outcome<T>> outcomes) {
+	for (Outcome<T> outcome : outcomes.values()) {
+	    if (outcome.succeeded()) {
+		return outcome.value;
+	    }
+	}
+	return null;
+    }
+
+    static private <K, T> void submit(final K key, final Callable<T> task, final Outcome<T> outcome, final Semaphore permits, final CountDownLatch done, long timeout, final Late<K, T> late) {
+	final long start = System.nanoTime();
+	final AtomicBoolean finished = new AtomicBoolean(false);
+
+	final Future<?> future = workers.submit(new Runnable() {
+	    public void run() {
+		T value = null;
+		String error = null;
+		try {
+		    value = task.call();
+		}
+		catch (Exception e) {
+		    logger.debug("Remote call failed.", e);
+		    error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+		}
+		if (finished.compareAndSet(false, true)) {
+		    outcome.value = value;
+		    outcome.error = error;
+		    outcome.millis = (System.nanoTime() - start) / 1000000L;
+		    permits.release();
+		    done.countDown();
+		}
+		else if (late != null && error == null) {
+		    late.late(key, value);
+		}
+	    }
+	});
+
+	if (timeout <= 0) {
+	    // No limit, as for call().
+	    return;
+	}
+
+	watchdog.schedule(new Runnable() {
+	    public void run() {
+		if (finished.compareAndSet(false, true)) {
+		    outcome.error = "Timed out.";
+		    outcome.timedOut = true;
+		    outcome.millis = (System.nanoTime() - start) / 1000000L;
+		    future.cancel(true);
+		    permits.release();
+		    done.countDown();
+		}
+	    }
+	}, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /** Run something that blocks on the network on the worker pool, and don't wait for it. */
+    static void execute(Runnable task) {
+	workers.execute(task);
+    }
+
+    /** Thrown when a call given to call() overruns its deadline. */
+    static class CallTimeoutException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	CallTimeoutException(long timeout) {
+	    super("Timed out after " + timeout + " ms.");
+	}
+    }
+
+    /** Disposes of a result that arrived after its caller gave up on it. */
+    interface Discard<T> {
+	void discard(T value);
+    }
+
+    /**
+       Run one call on the worker pool and wait for it, for at most
+       timeout milliseconds (no limit if timeout is 0 or less, in
+       which case the call runs on this thread).
+
+       If the deadline passes, CallTimeoutException is thrown and the
+       call is abandoned; should it finish later, its result is handed
+       to discard, if given, and otherwise dropped.  Exceptions thrown
+       by the call are rethrown as they are.
+    */
+    static <T> T call(final Callable<T> task, long timeout, final Discard<T> discard)
+	throws Exception {
+
+	if (timeout <= 0) {
+	    return task.call();
+	}
+
+	// Whoever sets this first owns the result: the caller if it is
+	// still waiting, the discarder otherwise.
+	final AtomicBoolean claimed = new AtomicBoolean(false);
+
+	Future<T> future = workers.submit(new Callable<T>() {
+	    public T call() throws Exception {
+		T value = task.call();
+		if (!claimed.compareAndSet(false, true) && discard != null) {
+		    discard.discard(value);
+		}
+		return value;
+	    }
+	});
+
+	try {
+	    return future.get(timeout, TimeUnit.MILLISECONDS);
+	}
+	catch (TimeoutException e) {
+	    if (!claimed.compareAndSet(false, true)) {
+		// It finished in the meantime after all.
+		return get(future);
+	    }
+	    future.cancel(true);
+	    throw new CallTimeoutException(timeout);
+	}
+	catch (ExecutionException e) {
+	    throw unwrap(e);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    future.cancel(true);
+	    throw new IllegalStateException("Interrupted while waiting for remote call.", e);
+	}
+    }
+
+    static private <T> T get(Future<T> future) throws Exception {
+	try {
+	    return future.get();
+	}
+	catch (ExecutionException e) {
+	    throw unwrap(e);
+	}
+    }
+
+    static private Exception unwrap(ExecutionException e) {
+	Throwable cause = e.getCause();
+	if (cause instanceof Exception) {
+	    return (Exception) cause;
+	}
+	if (cause instanceof Error) {
+	    throw (Error) cause;
+	}
+	return e;
+    }
+
+    /** Creates daemon threads, so that stuck calls never keep jmxsh alive. */
+    static class NamedThreadFactory implements ThreadFactory {
+	private String prefix;
+	private AtomicInteger count;
+
+	NamedThreadFactory(String prefix) {
+	    this.prefix = prefix;
+	    this.count = new AtomicInteger(0);
+	}
+
+	public Thread newThread(Runnable runnable) {
+	    Thread thread = new Thread(runnable, this.prefix + "-" + this.count.incrementAndGet());
+	    thread.setDaemon(true);
+	    return thread;
+	}
+    }
+
+}
@@ -22,6 +22,8 @@
  */
 package jmxsh;
 
+import java.util.*;
+import java.util.concurrent.Callable;
 import org.apache.commons.cli.*;
 //import org.apache.log4j.Logger;
 import tcl.lang.*;
@@ -31,10 +33,6 @@ class GetCmd implements Command {
     private final static GetCmd instance = new GetCmd();
     //private final static Logger logger = Logger.getLogger(GetCmd.class);
 
-    private String server;
-    //private String domain;
-    private String mbean;
-    private String attrop;
     private Options opts;
 
     static GetCmd getInstance() {
@@ -67,6 +65,46 @@ class GetCmd implements Command {
 		.create("n")
 	);
 
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("errors")
+		.withDescription("When reading several attributes, store the attributes that could not be read, with their error messages, in this variable.")
+		.withArgName("VARNAME")
+		.hasArg()
+		.create("e")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("concurrency")
+		.withDescription("With several mbeans or servers, read from at most this many at once (default " + FanOut.DEFAULT_CONCURRENCY + ").")
+		.withArgName("COUNT")
+		.hasArg()
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("timeout")
+		.withDescription("Give up on a remote call after this many milliseconds (default " + Jmx.DEFAULT_CALL_TIMEOUT + ", or " + FanOut.DEFAULT_TIMEOUT + " per mbean or server when there are several).")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("t")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("depth")
+		.withDescription("Nest lists for Open MBean data at most this deep; deeper values are left as strings (default " + ResultConverter.DEFAULT_DEPTH + ").")
+		.withArgName("LEVELS")
+		.hasArg()
+		.create("d")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("limit")
+		.withDescription("Convert at most this many elements of each array, table or composite (default " + ResultConverter.DEFAULT_LIMIT + ").")
+		.withArgName("COUNT")
+		.hasArg()
+		.create("l")
+	);
+
 	this.opts.addOption(
 	    OptionBuilder.withLongOpt("help")
 		.withDescription("Display usage help.")
@@ -83,26 +121,199 @@ class GetCmd implements Command {
 	for(int i = 0; i < argv.length - 1; i++)
 	    args[i] = argv[i + 1].toString();
 	    
-	CommandLine cl = (new PosixParser()).parse(this.opts, args);
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
 	return cl;
     }
 
-    private void getDefaults(Interp interp) {
-	this.server = null;
-	//domain = null;
-	this.mbean = null;
-	this.attrop = null;
+    /** Flatten the attribute arguments, each of which may be a Tcl list. */
+    private String[] getAttributeNames(Interp interp, String[] args)
+	throws TclException {
+
+	List<String> names = new ArrayList<String>();
+	for (String arg : args) {
+	    for (TclObject element : TclList.getElements(interp, TclString.newInstance(arg))) {
+		names.add(element.toString());
+	    }
+	}
+	return names.toArray(new String[names.size()]);
+    }
+
+    private void getMultiple(Interp interp, String server, String mbean, String[] attributes, Conversion conversion, String errorVar)
+	throws TclException {
+
+	if (server == null) {
+	    throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	}
+
+	if (mbean == null) {
+	    throw new TclException(interp, "No mbean specified; please set MBEAN variable or use -m option.", TCL.ERROR);
+	}
+
+	Map<String, String> errors = new LinkedHashMap<String, String>();
+	Map<String, Object> values = Jmx.getInstance().getAttributeValues(server, mbean, attributes, errors);
+
+	setErrors(interp, errorVar, errors);
+	interp.setResult(toPairs(interp, values, conversion));
+    }
+
+    /** Read the attributes from every MBean matching the pattern in mbean. */
+    private void getPattern(Interp interp, String server, String mbean, String[] attributes, Conversion conversion, CommandLine cl)
+	throws TclException {
+
+	if (server == null) {
+	    throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	}
+
+	if (attributes.length == 0) {
+	    throw new TclException(interp, "No attribute specified; please set ATTROP variable or add it to the command line.", TCL.ERROR);
+	}
+
+	Map<String, FanOut.Outcome<Map<String, Object>>> outcomes =
+	    Jmx.getInstance().getAttributeValues(server, mbean, attributes, getConcurrency(interp, cl), getTimeout(interp, cl));
+
+	TclObject result = TclList.newInstance();
+	Map<String, String> errors = new LinkedHashMap<String, String>();
+	for (Map.Entry<String, FanOut.Outcome<Map<String, Object>>> entry : outcomes.entrySet()) {
+	    FanOut.Outcome<Map<String, Object>> outcome = entry.getValue();
+	    if (outcome.succeeded()) {
+		TclList.append(interp, result, TclString.newInstance(entry.getKey()));
+		TclList.append(interp, result, toPairs(interp, outcome.value, conversion));
+	    }
+	    else {
+		errors.put(entry.getKey(), outcome.error);
+	    }
+	}
+
+	setErrors(interp, cl.getOptionValue("errors"), errors);
+	interp.setResult(result);
+    }
+
+    /** Read the attributes of mbeanName from each of several servers at once. */
+    private void getFromServers(Interp interp, String[] servers, final String mbeanName, final String[] attributes, Conversion conversion, CommandLine cl)
+	throws TclException {
+
+
+	if (mbeanName == null) {
+	    throw new TclException(interp, "No mbean specified; please set MBEAN variable or use -m option.", TCL.ERROR);
+	}
+
+	if (attributes.length == 0) {
+	    throw new TclException(interp, "No attribute specified; please set ATTROP variable or add it to the command line.", TCL.ERROR);
+	}
+
+	if (Jmx.getInstance().getObjectName(mbeanName).isPattern()) {
+	    throw new TclException(interp, "An mbean pattern cannot be used with several servers.", TCL.ERROR);
+	}
+
+	Map<String, Callable<Map<String, Object>>> tasks = new LinkedHashMap<String, Callable<Map<String, Object>>>();
+	for (final String serverName : servers) {
+	    tasks.put(serverName, new Callable<Map<String, Object>>() {
+		public Map<String, Object> call() {
+		    if (attributes.length > 1) {
+			return Jmx.getInstance().getAttributeValues(serverName, mbeanName, attributes, null);
+		    }
+		    Map<String, Object> value = new HashMap<String, Object>();
+		    value.put(attributes[0], Jmx.getInstance().getAttribute(serverName, mbeanName, attributes[0]));
+		    return value;
+		}
+	    });
+	}
+
+	Map<String, FanOut.Outcome<Map<String, Object>>> outcomes = FanOut.run(tasks, getConcurrency(interp, cl), getTimeout(interp, cl));
+
+	TclObject result = TclList.newInstance();
+	for (Map.Entry<String, FanOut.Outcome<Map<String, Object>>> entry : outcomes.entrySet()) {
+	    FanOut.Outcome<Map<String, Object>> outcome = entry.getValue();
+	    TclObject value = null;
+	    if (outcome.succeeded()) {
+		value = (attributes.length > 1)
+		    ? toPairs(interp, outcome.value, conversion)
+		    : conversion.toTcl(outcome.value.get(attributes[0]));
+	    }
+	    TclList.append(interp, result, TclString.newInstance(entry.getKey()));
+	    TclList.append(interp, result, Utils.outcome2list(outcome, value));
+	}
+	interp.setResult(result);
+    }
+
+    private int getConcurrency(Interp interp, CommandLine cl)
+	throws TclException {
 
 	try {
-	    this.server = interp.getVar("SERVER", TCL.GLOBAL_ONLY).toString();
-	    //domain = interp.getVar("DOMAIN", TCL.GLOBAL_ONLY).toString();
-	    this.mbean  = interp.getVar("MBEAN",  TCL.GLOBAL_ONLY).toString();
-	    this.attrop = interp.getVar("ATTROP", TCL.GLOBAL_ONLY).toString();
+	    return Integer.parseInt(cl.getOptionValue("concurrency", String.valueOf(FanOut.DEFAULT_CONCURRENCY)));
 	}
-	catch (TclException e) { 
-	    /* If one doesn't exist, it will just be null. */
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid concurrency: " + e.getMessage(), TCL.ERROR);
 	}
+    }
 
+    private long getTimeout(Interp interp, CommandLine cl)
+	throws TclException {
+
+	try {
+	    return Long.parseLong(cl.getOptionValue("timeout", String.valueOf(FanOut.DEFAULT_TIMEOUT)));
+	}
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid timeout: " + e.getMessage(), TCL.ERROR);
+	}
+    }
+
+    /** How one call converts the values it returns, from its -n, -d and -l options. */
+    private static class Conversion {
+	boolean noconvert;
+	int depth;
+	int limit;
+
+	TclObject toTcl(Object value) {
+	    if (value == null) {
+		return TclString.newInstance("");
+	    }
+	    else if (this.noconvert) {
+		return TclString.newInstance(Utils.java2tcl(value));
+	    }
+	    return ResultConverter.convert(JInterp.current(), value, this.depth, this.limit);
+	}
+    }
+
+    private Conversion getConversion(Interp interp, CommandLine cl)
+	throws TclException {
+
+	Conversion conversion = new Conversion();
+	conversion.noconvert = cl.hasOption("noconvert");
+	try {
+	    conversion.depth = Integer.parseInt(cl.getOptionValue("depth", String.valueOf(ResultConverter.DEFAULT_DEPTH)));
+	    conversion.limit = Integer.parseInt(cl.getOptionValue("limit", String.valueOf(ResultConverter.DEFAULT_LIMIT)));
+	}
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid depth or limit: " + e.getMessage(), TCL.ERROR);
+	}
+	return conversion;
+    }
+
+    private TclObject toPairs(Interp interp, Map<String, Object> values, Conversion conversion)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	for (Map.Entry<String, Object> entry : values.entrySet()) {
+	    TclList.append(interp, result, TclString.newInstance(entry.getKey()));
+	    TclList.append(interp, result, conversion.toTcl(entry.getValue()));
+	}
+	return result;
+    }
+
+    private void setErrors(Interp interp, String errorVar, Map<String, String> errors)
+	throws TclException {
+
+	if (errorVar == null) {
+	    return;
+	}
+
+	TclObject errorList = TclList.newInstance();
+	for (Map.Entry<String, String> entry : errors.entrySet()) {
+	    TclList.append(interp, errorList, TclString.newInstance(entry.getKey()));
+	    TclList.append(interp, errorList, TclString.newInstance(String.valueOf(entry.getValue())));
+	}
+	interp.setVar(errorVar, errorList, 0);
     }
 
     public void cmdProc(Interp interp, TclObject argv[])
@@ -110,12 +321,13 @@ class GetCmd implements Command {
 
         try {
 	    CommandLine cl = parseCommandLine(argv);
+	    Utils.applyTimeout(interp, cl);
 	    String args[] = cl.getArgs();
 	    String attribute = null;
 	    
 	    if (cl.hasOption("help")) {
 		new HelpFormatter().printHelp (
-		    "jmx_get [-?] [-n] [-s server] [-m mbean] [ATTRIBUTE]",
+		    "jmx_get [-?] [-n] [-e varname] [-c count] [-t millis] [-d levels] [-l count] [-s server] [-m mbean] [ATTRIBUTE ...]",
 		    "======================================================================", 
 		    this.opts,
 		    "======================================================================",
@@ -129,27 +341,73 @@ class GetCmd implements Command {
 		System.out.println("If you specify -n, then the return will be a Java/Tcl java");
 		System.out.println("object reference.  See the Java/Tcl documentation on the");
 		System.out.println("internet for more details.");
+		System.out.println("");
+		System.out.println("Open MBean values (CompositeData such as MemoryUsage, and");
+		System.out.println("TabularData), arrays, collections and maps are returned as Tcl");
+		System.out.println("lists: composites and maps as name/value lists for 'array set',");
+		System.out.println("tables as lists of rows.  -d and -l bound how deep and how long");
+		System.out.println("these get; anything cut off is marked with '...'.");
+		System.out.println("Numbers are returned as Tcl numbers, and booleans as 1 or 0.");
+		System.out.println("");
+		System.out.println("If several attributes are given (as separate arguments or as");
+		System.out.println("one Tcl list), they are all read in a single request and the");
+		System.out.println("result is a list of name/value pairs, suitable for 'array set'.");
+		System.out.println("Attributes that cannot be read are left out of the result;");
+		System.out.println("use -e to find out which ones and why.");
+		System.out.println("");
+		System.out.println("If the mbean is an ObjectName pattern (e.g. 'java.lang:type=*,*'),");
+		System.out.println("the attributes are read from every matching mbean in parallel.");
+		System.out.println("The result is then a list of ObjectName/attribute-list pairs.");
+		System.out.println("MBeans that fail or take longer than -t milliseconds are left out,");
+		System.out.println("and -e receives their names with the error message.");
+		System.out.println("");
+		System.out.println("The -s option also accepts a Tcl list of servers, or '*' for");
+		System.out.println("every open connection.  The servers are then read in parallel,");
+		System.out.println("and the result is a list of server/outcome pairs.  Each outcome");
+		System.out.println("is a list of 'status' (ok, error or timeout), 'millis', and");
+		System.out.println("either 'value' or 'error'.");
+		return;
+	    }
+
+	    Conversion conversion = getConversion(interp, cl);
+
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+	    String mbean  = cl.getOptionValue("mbean",  Utils.getGlobal(interp, "MBEAN"));
+	    String attrop = cl.getOptionValue("attrop", Utils.getGlobal(interp, "ATTROP"));
+
+	    String[] attributes = getAttributeNames(interp, args);
+	    if (attributes.length == 0 && attrop != null) {
+		attributes = new String[] { attrop };
+	    }
+
+	    String[] servers = Utils.getServerList(interp, server);
+	    if (servers != null) {
+		getFromServers(interp, servers, mbean, attributes, conversion, cl);
 		return;
 	    }
 
-	    getDefaults(interp);
+	    if (mbean != null && Jmx.getInstance().getObjectName(mbean).isPattern()) {
+		getPattern(interp, server, mbean, attributes, conversion, cl);
+		return;
+	    }
 
-	    this.server = cl.getOptionValue("server", this.server);
-	    this.mbean  = cl.getOptionValue("mbean",  this.mbean);
-	    this.attrop = cl.getOptionValue("attrop", this.attrop);
+	    if (attributes.length > 1) {
+		getMultiple(interp, server, mbean, attributes, conversion, cl.getOptionValue("errors"));
+		return;
+	    }
 
 	    if (args.length > 0) {
 		attribute = args[0];
 	    }
 	    else {
-		attribute = this.attrop;
+		attribute = attrop;
 	    }
 
-	    if (this.server == null) {
+	    if (server == null) {
 		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
 	    }
 
-	    if (this.mbean == null) {
+	    if (mbean == null) {
 		throw new TclException(interp, "No mbean specified; please set MBEAN variable or use -m option.", TCL.ERROR);
 	    }
 
@@ -157,18 +415,16 @@ class GetCmd implements Command {
 		throw new TclException(interp, "No attribute specified; please set ATTROP variable or add it to the command line.", TCL.ERROR);
 	    }
 
-	    if (cl.hasOption("noconvert")) {
-		String result = Utils.java2tcl(Jmx.getInstance().getAttribute(this.server, this.mbean, attribute));
-		interp.setResult(result);
-	    } else {
-		interp.setResult(Jmx.getInstance().getAttribute(this.server, this.mbean, attribute).toString());
-	    }
+	    interp.setResult(conversion.toTcl(Jmx.getInstance().getAttribute(server, mbean, attribute)));
 	}
 	catch(ParseException e)	    {
 	    throw new TclException(interp, e.getMessage(), 1);
 	}
         catch(RuntimeException e)	    {
-	    throw new TclException(interp, "Cannot convert result to a string.", 1);
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	finally {
+	    Jmx.getInstance().setThreadTimeout(null);
 	}
     }
 
@@ -0,0 +1,189 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Inspect the health of a connection, and choose what calls do while it is down. */
+class HealthCmd implements Command {
+
+    private final static HealthCmd instance = new HealthCmd();
+
+    private Options opts;
+
+    static HealthCmd getInstance() {
+	return instance;
+    }
+
+    private HealthCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("Server whose connection to inspect.")
+		.withArgName("SERVER")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("policy")
+		.withDescription("What calls do while reconnecting: wait or fail.")
+		.withArgName("POLICY")
+		.hasArg()
+		.create("p")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("wait")
+		.withDescription("Milliseconds a call waits for a reconnect (default " + ConnectionHealth.DEFAULT_WAIT + ").")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("w")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("check")
+		.withDescription("Probe the connection now.")
+		.hasArg(false)
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    private TclObject status(Interp interp, ConnectionHealth health)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	TclList.append(interp, result, TclString.newInstance("state"));
+	TclList.append(interp, result, TclString.newInstance(health.getState().toString().toLowerCase()));
+	TclList.append(interp, result, TclString.newInstance("policy"));
+	TclList.append(interp, result, TclString.newInstance(health.getPolicy().toString().toLowerCase()));
+	TclList.append(interp, result, TclString.newInstance("wait"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(health.getWaitMillis())));
+	TclList.append(interp, result, TclString.newInstance("attempt"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(health.getAttempt())));
+	TclList.append(interp, result, TclString.newInstance("failures"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(health.getFailures())));
+	TclList.append(interp, result, TclString.newInstance("timeouts"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(health.getTimeouts())));
+	TclList.append(interp, result, TclString.newInstance("reconnects"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(health.getReconnects())));
+	TclList.append(interp, result, TclString.newInstance("lastError"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(health.getLastError())));
+	return result;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+
+	    if (cl.hasOption("help")) {
+		new HelpFormatter().printHelp (
+		    "jmx_health [-?] [-s server] [-p wait|fail] [-w millis] [-c]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_health returns the state of a connection (up, suspect after a");
+		System.out.println("call timed out, or reconnecting) with its failure, timeout and");
+		System.out.println("reconnect counters.");
+		System.out.println("");
+		System.out.println("Each connection is probed in the background.  When it fails, for");
+		System.out.println("instance because the remote JVM restarted, it is reopened with");
+		System.out.println("exponential backoff.  Meanwhile, calls on it wait up to -w");
+		System.out.println("milliseconds for it to return (policy 'wait'), or fail at once");
+		System.out.println("(policy 'fail').");
+		return;
+	    }
+
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+
+	    if (server == null) {
+		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	    }
+
+	    ConnectionHealth health = Jmx.getInstance().getHealth(server);
+	    if (health == null) {
+		throw new TclException(interp, "Not connected to " + server + ".", TCL.ERROR);
+	    }
+
+	    if ((cl.hasOption("policy") || cl.hasOption("wait")) && Daemon.inScript()) {
+		throw new TclException(interp, "Connections are shared by every daemon worker; set their policy in a -i file.", TCL.ERROR);
+	    }
+
+	    if (cl.hasOption("policy")) {
+		try {
+		    health.setPolicy(ConnectionHealth.Policy.valueOf(cl.getOptionValue("policy").toUpperCase()));
+		}
+		catch (IllegalArgumentException e) {
+		    throw new TclException(interp, "Invalid policy '" + cl.getOptionValue("policy") + "', should be wait or fail.", TCL.ERROR);
+		}
+	    }
+
+	    if (cl.hasOption("wait")) {
+		try {
+		    health.setWaitMillis(Long.parseLong(cl.getOptionValue("wait")));
+		}
+		catch (NumberFormatException e) {
+		    throw new TclException(interp, "Invalid wait: " + e.getMessage(), TCL.ERROR);
+		}
+	    }
+
+	    if (cl.hasOption("check")) {
+		health.probe();
+	    }
+
+	    interp.setResult(status(interp, health));
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.remote.JMXServiceURL;
+import org.apache.log4j.*;
+
+/**
+   Connects to every server listed in an inventory file at once.
+
+   Each line of the file names one server, either as 'host:port',
+   'host port' or a full service:jmx: URL.  Blank lines and lines
+   starting with '#' are ignored.  The connections are opened on the
+   FanOut pool, each given the timeout to open; one that has not
+   finished within the timeout is reported as timed out, and is closed
+   again if it does finish later, so that it never shows up
+   half-registered.
+*/
+
+class HostsFile {
+
+    static final int DEFAULT_CONCURRENCY = 32;
+    static final long DEFAULT_TIMEOUT = 10000;
+
+    static private Logger logger = Logger.getLogger(HostsFile.class);
+
+    /** Read the service URLs listed in a file. */
+    static List<JMXServiceURL> read(String filename, String protocol, String path) {
+	List<JMXServiceURL> urls = new ArrayList<JMXServiceURL>();
+	BufferedReader in = null;
+
+	try {
+	    in = new BufferedReader(new FileReader(filename));
+	    int lineNumber = 0;
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		lineNumber++;
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#")) {
+		    continue;
+		}
+		try {
+		    urls.add(parse(line, protocol, path));
+		}
+		catch (IllegalArgumentException e) {
+		    throw new IllegalArgumentException(filename + ", line " + lineNumber + ": " + e.getMessage(), e);
+		}
+	    }
+	    return urls;
+	}
+	catch (IOException e) {
+	    logger.error("Error reading hosts file.", e);
+	    throw new IllegalArgumentException("Unable to read '" + filename + "' - " + e.getMessage(), e);
+	}
+	finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		}
+		catch (IOException e) {
+		    logger.info("Error closing hosts file, ignored.", e);
+		}
+	    }
+	}
+    }
+
+    static private JMXServiceURL parse(String line, String protocol, String path) {
+	if (line.startsWith("service:jmx:")) {
+	    return Jmx.getInstance().makeURL(line, 0, "custom", null);
+	}
+
+	String host;
+	String port;
+	String[] words = line.split("\\s+");
+	if (words.length == 2) {
+	    host = words[0];
+	    port = words[1];
+	}
+	else if (words.length == 1 && line.lastIndexOf(':') > 0) {
+	    host = line.substring(0, line.lastIndexOf(':'));
+	    port = line.substring(line.lastIndexOf(':') + 1);
+	}
+	else {
+	    throw new IllegalArgumentException("Expected 'host:port', 'host port' or a service URL, found '" + line + "'.");
+	}
+
+	try {
+	    return Jmx.getInstance().makeURL(host, Integer.parseInt(port), protocol, path);
+	}
+	catch (NumberFormatException e) {
+	    throw new IllegalArgumentException("Invalid port '" + port + "'.");
+	}
+    }
+
+    /**
+       Open a connection to each URL, at most concurrency at a time,
+       then register those that succeeded in $SERVERS and print a
+       summary.  The registration happens on the calling thread, which
+       must therefore be the interpreter's.
+
+       @return The outcome for each URL, in the order given.
+    */
+    static Map<String, FanOut.Outcome<Boolean>> connect(List<JMXServiceURL> urls, final String user, final String password, int concurrency, final long timeout) {
+	Map<String, Callable<Boolean>> tasks = new LinkedHashMap<String, Callable<Boolean>>();
+
+	for (final JMXServiceURL url : urls) {
+	    tasks.put(url.toString(), new Callable<Boolean>() {
+		public Boolean call() {
+		    Jmx.getInstance().setThreadTimeout(Long.valueOf(timeout));
+		    try {
+			return Boolean.valueOf(Jmx.getInstance().open(url, user, password));
+		    }
+		    finally {
+			Jmx.getInstance().setThreadTimeout(null);
+		    }
+		}
+	    });
+	}
+
+	long start = System.currentTimeMillis();
+	Map<String, FanOut.Outcome<Boolean>> outcomes = FanOut.run(tasks, concurrency, timeout, new FanOut.Late<String, Boolean>() {
+	    public void late(String urlStr, Boolean opened) {
+		// Reported as timed out, so nobody will register this
+		// connection: don't keep it.  One that was already open
+		// before is left alone.
+		if (opened.booleanValue()) {
+		    logger.info("Closing late connection to " + urlStr);
+		    Jmx.getInstance().disconnect(urlStr);
+		}
+	    }
+	});
+	long elapsed = System.currentTimeMillis() - start;
+
+	int succeeded = 0;
+	int failed = 0;
+	int timedOut = 0;
+	StringBuilder problems = new StringBuilder();
+
+	for (Map.Entry<String, FanOut.Outcome<Boolean>> entry : outcomes.entrySet()) {
+	    String urlStr = entry.getKey();
+	    FanOut.Outcome<Boolean> outcome = entry.getValue();
+
+	    if (outcome.succeeded()) {
+		succeeded++;
+		if (Jmx.getInstance().getDefaultServer() == null) {
+		    Jmx.getInstance().setDefaultServer(urlStr);
+		}
+		JInterp.addServer(urlStr, false);
+	    }
+	    else {
+		if (outcome.timedOut) {
+		    timedOut++;
+		}
+		else {
+		    failed++;
+		}
+		problems.append("  ").append(outcome.timedOut ? "TIMEOUT " : "FAILED  ")
+		    .append(urlStr).append(" - ").append(outcome.error).append('\n');
+	    }
+	}
+
+	if (succeeded > 0) {
+	    BrowseMode.connected();
+	}
+
+	System.out.println("Connected to " + succeeded + " of " + outcomes.size() + " servers in " + elapsed + " ms ("
+			   + failed + " failed, " + timedOut + " timed out).");
+	System.out.print(problems);
+	return outcomes;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import tcl.lang.TclObject;
+
+/**
+   Everything jmx_invoke needs to call one operation, worked out once:
+   the ObjectName, the signature, and a converter for each parameter.
+
+   Plans for operations whose signature was looked up are kept in the
+   connection's MBeanInfoCache, and dropped along with the MBeanInfo
+   they were built from, so that invoking the same operation in a
+   loop costs nothing but the invoke itself.
+*/
+
+class InvocationPlan {
+
+    final ObjectName name;
+    final String operation;
+    final String[] signature;
+    final Converter[] converters;
+
+    InvocationPlan(ObjectName name, String operation, String[] signature) {
+	this.name = name;
+	this.operation = operation;
+	this.signature = signature;
+	this.converters = new Converter[signature.length];
+	for (int i = 0; i < signature.length; i++) {
+	    this.converters[i] = Converters.get(signature[i]);
+	}
+    }
+
+    /** As above, converting Open MBean parameters by their OpenType. */
+    InvocationPlan(ObjectName name, String operation, MBeanParameterInfo[] params) {
+	this.name = name;
+	this.operation = operation;
+	this.signature = new String[params.length];
+	this.converters = new Converter[params.length];
+	for (int i = 0; i < params.length; i++) {
+	    this.signature[i] = params[i].getType();
+	    this.converters[i] = Converters.forFeature(params[i], params[i].getType());
+	}
+    }
+
+    /** The cache key of the plan for an operation of the given arity. */
+    static String key(String mbean, String operation, int arity) {
+	return mbean + '\n' + operation + '\n' + arity;
+    }
+
+    /** Convert the arguments argv[offset..], one per parameter. */
+    Object[] convert(TclObject[] argv, int offset) {
+	if (argv.length - offset != this.signature.length) {
+	    throw new IllegalArgumentException("Wrong number of parameters provided for '" + this.operation + "', expected " + this.signature.length + ", got " + (argv.length - offset) + ".");
+	}
+
+	Object[] params = new Object[this.signature.length];
+	for (int i = 0; i < params.length; i++) {
+	    params[i] = this.converters[i].convert(argv[offset + i]);
+	}
+	return params;
+    }
+
+}
@@ -22,6 +22,8 @@
  */
 package jmxsh;
 
+import java.util.*;
+import java.util.concurrent.Callable;
 import org.apache.log4j.Logger;
 import org.apache.commons.cli.*;
 import tcl.lang.*;
@@ -60,6 +62,38 @@ class InvokeCmd implements Command {
 		.create("n")
 	);
 
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("concurrency")
+		.withDescription("With several servers, invoke on at most this many at once (default " + FanOut.DEFAULT_CONCURRENCY + ").")
+		.withArgName("COUNT")
+		.hasArg()
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("timeout")
+		.withDescription("Give up on a remote call after this many milliseconds (default none, or " + FanOut.DEFAULT_TIMEOUT + " per server when there are several).")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("t")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("depth")
+		.withDescription("Nest lists for Open MBean data at most this deep; deeper values are left as strings (default " + ResultConverter.DEFAULT_DEPTH + ").")
+		.withArgName("LEVELS")
+		.hasArg()
+		.create("d")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("limit")
+		.withDescription("Convert at most this many elements of each array, table or composite (default " + ResultConverter.DEFAULT_LIMIT + ").")
+		.withArgName("COUNT")
+		.hasArg()
+		.create("l")
+	);
+
 	this.opts.addOption(
 	    OptionBuilder.withLongOpt("help")
 		.withDescription("Display usage help.")
@@ -76,26 +110,95 @@ class InvokeCmd implements Command {
 	for(int i = 0; i < argv.length - 1; i++)
 	    args[i] = argv[i + 1].toString();
 	    
-	CommandLine cl = (new PosixParser()).parse(this.opts, args);
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
 	return cl;
     }
 
-    private void getDefaults(Interp interp) {
-	this.server = null;
-	//this.domain = null;
-	this.mbean = null;
-	this.attrop = null;
+    /**
+       Invoke the operation on mbeanName of each of several servers at
+       once.  Without an explicit signature (plan is null), the
+       operation is looked up everywhere first, and the arguments
+       converted once for the first server that answered; a server
+       that did not answer keeps that outcome.
+    */
+    private void invokeOnServers(Interp interp, String[] servers, final String mbeanName, final String opname, InvocationPlan plan,
+				 TclObject argv[], int offset, int depth, int limit, CommandLine cl)
+	throws TclException {
+
+	int concurrency = FanOut.DEFAULT_CONCURRENCY;
+	long timeout = FanOut.DEFAULT_TIMEOUT;
 
 	try {
-	    this.server = interp.getVar("SERVER", TCL.GLOBAL_ONLY).toString();
-	    //this.domain = interp.getVar("DOMAIN", TCL.GLOBAL_ONLY).toString();
-	    this.mbean  = interp.getVar("MBEAN",  TCL.GLOBAL_ONLY).toString();
-	    this.attrop = interp.getVar("ATTROP", TCL.GLOBAL_ONLY);
+	    concurrency = Integer.parseInt(cl.getOptionValue("concurrency", String.valueOf(concurrency)));
+	    timeout = Long.parseLong(cl.getOptionValue("timeout", String.valueOf(timeout)));
 	}
-	catch (TclException e) { 
-	    /* If one doesn't exist, it will just be null. */
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid number: " + e.getMessage(), TCL.ERROR);
 	}
 
+	Map<String, FanOut.Outcome<InvocationPlan>> found = new LinkedHashMap<String, FanOut.Outcome<InvocationPlan>>();
+	if (plan == null) {
+	    final int arity = argv.length - offset;
+	    Map<String, Callable<InvocationPlan>> lookups = new LinkedHashMap<String, Callable<InvocationPlan>>();
+	    for (final String serverName : servers) {
+		lookups.put(serverName, new Callable<InvocationPlan>() {
+		    public InvocationPlan call() {
+			return Jmx.getInstance().getInvocationPlan(serverName, mbeanName, opname, arity);
+		    }
+		});
+	    }
+	    found = FanOut.run(lookups, concurrency, timeout);
+	    plan = FanOut.firstValue(found);
+	}
+
+	Map<String, Callable<Object>> tasks = new LinkedHashMap<String, Callable<Object>>();
+	if (plan != null) {
+	    final Object[] params = plan.convert(argv, offset);
+	    final String[] signature = plan.signature;
+	    for (final String serverName : servers) {
+		if (found.containsKey(serverName) && !found.get(serverName).succeeded()) {
+		    continue;
+		}
+		tasks.put(serverName, new Callable<Object>() {
+		    public Object call() {
+			return Jmx.getInstance().invoke(serverName, mbeanName, opname, params, signature);
+		    }
+		});
+	    }
+	}
+
+	Map<String, FanOut.Outcome<Object>> outcomes = FanOut.run(tasks, concurrency, timeout);
+
+	TclObject result = TclList.newInstance();
+	for (String serverName : servers) {
+	    if (!outcomes.containsKey(serverName)) {
+		TclList.append(interp, result, TclString.newInstance(serverName));
+		TclList.append(interp, result, Utils.outcome2list(found.get(serverName), null));
+		continue;
+	    }
+	    Object value = outcomes.get(serverName).value;
+	    TclObject tclValue = null;
+	    if (value != null) {
+		tclValue = cl.hasOption("noconvert")
+		    ? TclString.newInstance(Utils.java2tcl(value))
+		    : ResultConverter.convert(interp, value, depth, limit);
+	    }
+	    TclList.append(interp, result, TclString.newInstance(serverName));
+	    TclList.append(interp, result, Utils.outcome2list(outcomes.get(serverName), tclValue));
+	}
+	interp.setResult(result);
+    }
+
+    /** Read the -d or -l option. */
+    private int getLimit(Interp interp, CommandLine cl, String option, int defaultValue)
+	throws TclException {
+
+	try {
+	    return Integer.parseInt(cl.getOptionValue(option, String.valueOf(defaultValue)));
+	}
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid depth or limit: " + e.getMessage(), TCL.ERROR);
+	}
     }
 
     public void cmdProc(Interp interp, TclObject argv[])
@@ -103,15 +206,17 @@ class InvokeCmd implements Command {
 
         try {
 	    CommandLine cl = parseCommandLine(argv);
+	    Utils.applyTimeout(interp, cl);
 	    String args[] = cl.getArgs();
 	    String opname = null;
 	    TclObject opTclObj = null;
 	    Object[] params = null;
 	    String[] signature = null;
+	    InvocationPlan plan = null;
 	    
 	    if (cl.hasOption("help")) {
 		new HelpFormatter().printHelp (
-		    "jmx_invoke [-?] [-n] [-s server] [-m mbean] [OPERATION] [ARGS]",
+		    "jmx_invoke [-?] [-n] [-c count] [-t millis] [-d levels] [-l count] [-s server] [-m mbean] [OPERATION] [ARGS]",
 		    "======================================================================", 
 		    this.opts,
 		    "======================================================================",
@@ -125,6 +230,13 @@ class InvokeCmd implements Command {
 		System.out.println("object reference.  See the Java/Tcl documentation on the");
 		System.out.println("internet for more details.");
 		System.out.println("");
+		System.out.println("Open MBean values (CompositeData such as MemoryUsage, and");
+		System.out.println("TabularData), arrays, collections and maps are returned as Tcl");
+		System.out.println("lists: composites and maps as name/value lists for 'array set',");
+		System.out.println("tables as lists of rows.  -d and -l bound how deep and how long");
+		System.out.println("these get; anything cut off is marked with '...'.");
+		System.out.println("Numbers are returned as Tcl numbers, and booleans as 1 or 0.");
+		System.out.println("");
 		System.out.println("If there are multiple operations with the same name in the mbean, you can");
 		System.out.println("disambiguate by specifying 'operation' as a tcl list of the operation name");
 		System.out.println("and the java types of its parameters.");
@@ -132,33 +244,47 @@ class InvokeCmd implements Command {
 		System.out.println("     jmx_invoke -m $MBEAN [hello java.lang.Integer java.lang.String] arg1 arg2");
 		System.out.println("     jmx_invoke -m $MBEAN [hello java.lang.String java.lang.String] arg1 arg2");
 		System.out.println("  Invoke two different operations, both named 'hello'.");
+		System.out.println("");
+		System.out.println("The -s option also accepts a Tcl list of servers, or '*' for every");
+		System.out.println("open connection.  The operation is then invoked on all of them in");
+		System.out.println("parallel (its signature is taken from the first one that answers),");
+		System.out.println("and the result is a list of server/outcome pairs.  Each outcome is");
+		System.out.println("a list of 'status' (ok, error or timeout), 'millis', and either");
+		System.out.println("'value' or 'error'.  An operation that timed out may still have run.");
 		return;
 	    }
 
-	    getDefaults(interp);
+	    int depth = getLimit(interp, cl, "depth", ResultConverter.DEFAULT_DEPTH);
+	    int limit = getLimit(interp, cl, "limit", ResultConverter.DEFAULT_LIMIT);
 
-	    this.server = cl.getOptionValue("server", this.server);
-	    this.mbean  = cl.getOptionValue("mbean",  this.mbean);
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+	    String mbean  = cl.getOptionValue("mbean",  Utils.getGlobal(interp, "MBEAN"));
 
 	    logger.debug("argv length:" + argv.length);
 	    logger.debug("args length:" + args.length);
 	    logger.debug("offset     :" + args.length);
 
-	    if (this.server == null) {
+	    if (server == null) {
 		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
 	    }
 
-	    if (this.mbean == null) {
+	    if (mbean == null) {
 		throw new TclException(interp, "No mbean specified; please set MBEAN variable or use -m option.", TCL.ERROR);
 	    }
 
+	    String[] servers = Utils.getServerList(interp, server);
+	    if (servers != null && servers.length == 0) {
+		throw new TclException(interp, "No servers to invoke the operation on.", TCL.ERROR);
+	    }
+
 	    int offset = argv.length - args.length;
 	    if (args.length > 0) {
 		opTclObj = argv[offset];
 		offset++;
 	    }
 	    else {
-		opTclObj = this.attrop;
+		String attrop = Utils.getGlobal(interp, "ATTROP");
+		opTclObj = (attrop == null) ? null : TclString.newInstance(attrop);
 	    }
 
 	    if (opTclObj == null) {
@@ -175,27 +301,26 @@ class InvokeCmd implements Command {
 		    signature[i-1] = TypeName.translateNiceName(className);
 		    //signature[i-1] = className;
 		}
-	    }
-	    else {
-		signature = Jmx.getInstance().getSignature(this.server, this.mbean, opname);
+		plan = new InvocationPlan(Jmx.getInstance().getObjectName(mbean), opname, signature);
 	    }
 
-	    if (argv.length - offset != signature.length) {
-		throw new TclException(interp, "Wrong number of parameters provided for '" + opname + "', expected " + signature.length + ", got " + (argv.length-offset) + ".", TCL.ERROR);
+	    if (servers != null) {
+		invokeOnServers(interp, servers, mbean, opname, plan, argv, offset, depth, limit, cl);
+		return;
 	    }
 
-	    params = new Object[signature.length];
-	    for (int i=offset; i<argv.length; i++) {
-		params[i-offset] = Utils.tcl2java(argv[i], signature[i-offset]);
+	    if (plan == null) {
+		plan = Jmx.getInstance().getInvocationPlan(server, mbean, opname, argv.length - offset);
 	    }
+	    params = plan.convert(argv, offset);
 
-	    Object result = Jmx.getInstance().invoke(this.server, this.mbean, opname, params, signature);
+	    Object result = Jmx.getInstance().invoke(server, plan.name, opname, params, plan.signature);
 	    if (result != null) {
 		if (cl.hasOption("noconvert")) {
 		    interp.setResult(Utils.java2tcl(result));
 		}
 		else {
-		    interp.setResult(result.toString());
+		    interp.setResult(ResultConverter.convert(interp, result, depth, limit));
 		}
 	    }
 	}
@@ -206,13 +331,11 @@ class InvokeCmd implements Command {
 	    logger.error("Runtime Exception", e);
 	    throw new TclException(interp, e.getMessage(), TCL.ERROR);
 	}
+	finally {
+	    Jmx.getInstance().setThreadTimeout(null);
+	}
     }
 
-    private String server;
-    //private String domain;
-    private String mbean;
-    private TclObject attrop;
-
     private static Logger logger = Logger.getLogger(InvokeCmd.class);
     private Options opts;
 
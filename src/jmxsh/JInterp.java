@@ -29,11 +29,59 @@ class JInterp extends Interp {
 
     static private Logger logger = Logger.getLogger(JInterp.class);
 
-    static JInterp instance = new JInterp();
+    /** The shell's interpreter; see getInstance(). */
+    static private volatile JInterp instance;
+
+    /** Interpreters owned by daemon worker threads. */
+    static private ThreadLocal<JInterp> threadInterp = new ThreadLocal<JInterp>();
+
+    /**
+       The shell's interpreter, created the first time something needs
+       it, on the calling thread: that thread must then run
+       processTclEvents(), which is why Main creates it early on the
+       main thread when a script or a session will follow.  A dump,
+       or a daemon, whose workers have their own, never creates it.
+    */
+    static JInterp getInstance() {
+	JInterp interp = instance;
+	if (interp == null) {
+	    synchronized (JInterp.class) {
+		if (instance == null) {
+		    instance = new JInterp();
+		}
+		interp = instance;
+	    }
+	}
+	return interp;
+    }
+
+    /**
+       The interpreter of the calling thread: its own, if it is a
+       daemon worker, or else the shell's.
+    */
+    static JInterp current() {
+	JInterp interp = threadInterp.get();
+	return (interp == null) ? getInstance() : interp;
+    }
+
+    /** Whether current() would return an existing interpreter. */
+    static boolean exists() {
+	return threadInterp.get() != null || instance != null;
+    }
+
+    /**
+       Create an interpreter with the jmx_* commands, owned by the
+       calling thread from now on; see current().
+    */
+    static JInterp createForThread() {
+	JInterp interp = new JInterp();
+	threadInterp.set(interp);
+	return interp;
+    }
 
     static String getGlobal(String name, String defaultValue) {
 	try {
-	    TclObject result = instance.getVar(name, TCL.GLOBAL_ONLY);
+	    TclObject result = current().getVar(name, TCL.GLOBAL_ONLY);
 	    return result.toString();
 	    
 	}
@@ -44,7 +92,7 @@ class JInterp extends Interp {
 
     static void setGlobal(String name, String value) {
 	try {
-	    instance.setVar(name, TclString.newInstance(value), TCL.GLOBAL_ONLY);
+	    current().setVar(name, TclString.newInstance(value), TCL.GLOBAL_ONLY);
 	}
 	catch (TclException e) {
 	    throw new IllegalArgumentException("Tcl error setting variable '" + name + "' to '" + value + ".", e);
@@ -53,7 +101,7 @@ class JInterp extends Interp {
 
     static void setGlobal(String name, int value) {
 	try {
-	    instance.setVar(name, TclInteger.newInstance(value), TCL.GLOBAL_ONLY);
+	    current().setVar(name, TclInteger.newInstance(value), TCL.GLOBAL_ONLY);
 	}
 	catch (TclException e) {
 	    throw new IllegalArgumentException("Tcl error setting variable '" + name + "' to '" + value + ".", e);
@@ -62,7 +110,7 @@ class JInterp extends Interp {
 
     static void setGlobal(String array, String key, String value) {
 	try {
-	    instance.setVar(array, key, value, TCL.GLOBAL_ONLY);
+	    current().setVar(array, key, value, TCL.GLOBAL_ONLY);
 	}
 	catch (TclException e) {
 	    throw new IllegalArgumentException("Tcl error setting array value.");
@@ -74,9 +122,9 @@ class JInterp extends Interp {
 	
 	try {
 	    for (int i=startIndex; i<value.length; i++) {
-		TclList.append(instance, list, TclString.newInstance(value[i]));
+		TclList.append(current(), list, TclString.newInstance(value[i]));
 	    }
-	    instance.setVar(name, list, TCL.GLOBAL_ONLY);
+	    current().setVar(name, list, TCL.GLOBAL_ONLY);
 	}
 	catch (TclException e) {
 	    throw new IllegalArgumentException("Tcl error setting list '" + name + "'.", e);
@@ -85,7 +133,7 @@ class JInterp extends Interp {
 
     static void unsetGlobal(String array, String key) {
 	try {
-	    instance.unsetVar(array, key, TCL.GLOBAL_ONLY);
+	    current().unsetVar(array, key, TCL.GLOBAL_ONLY);
 	}
 	catch (TclException e) {
 	    logger.info("Tried to unset a non-existent array key: " + array + "(" + key + "), ignored.", e);
@@ -94,29 +142,44 @@ class JInterp extends Interp {
 
     static void unsetGlobal(String name) {
 	try {
-	    instance.unsetVar(name, TCL.GLOBAL_ONLY);
+	    current().unsetVar(name, TCL.GLOBAL_ONLY);
 	}
 	catch (TclException e) {
 	    logger.info("Tried to unset a non-existent variable: " + name + ", ignored.", e);
 	} 
     }
 
+    /**
+       Add a connection to SERVERS, and make it SERVER if asked to or
+       if there is none.  Does nothing until the interpreter exists: a
+       new one starts with Jmx's connections already in SERVERS.
+    */
+    static void addServer(String urlStr, boolean makeDefault) {
+	if (!exists()) {
+	    return;
+	}
+	setGlobal("SERVERS", urlStr, urlStr);
+	if (makeDefault || getGlobal("SERVER", null) == null) {
+	    setGlobal("SERVER", urlStr);
+	}
+    }
+
     static void evaluateFile(String filename) {
 	try {
-	    instance.evalFile(filename);
+	    current().evalFile(filename);
 	}
 	catch (TclException e) {
 	    logger.error("Tcl error while evaluating file.", e);
-	    throw new IllegalArgumentException("Error processing file '" + filename + "' - " + instance.getResult().toString());
+	    throw new IllegalArgumentException("Error processing file '" + filename + "' - " + current().getResult().toString());
 	}
     }
 
     static void processTclEvents() {
 	try {
-	    Notifier.processTclEvents(instance.getNotifier());
+	    Notifier.processTclEvents(getInstance().getNotifier());
 	}
 	finally {
-	    instance.dispose();
+	    getInstance().dispose();
 	}
     }
 
@@ -127,6 +190,33 @@ class JInterp extends Interp {
 	createCommand("jmx_connect", ConnectCmd.getInstance());
 	createCommand("jmx_close", CloseCmd.instance);
 	createCommand("jmx_list", ListCmd.getInstance());
+	createCommand("jmx_cache", CacheCmd.getInstance());
+	createCommand("jmx_poll", PollCmd.getInstance());
+	createCommand("jmx_subscribe", SubscribeCmd.getInstance());
+	createCommand("jmx_unsubscribe", UnsubscribeCmd.getInstance());
+	createCommand("jmx_health", HealthCmd.getInstance());
+	createCommand("jmx_timeout", TimeoutCmd.getInstance());
+	createCommand("jmx_converter", ConverterCmd.getInstance());
+	createCommand("jmx_dump", DumpCmd.getInstance());
+	createCommand("jmx_diff", DiffCmd.getInstance());
+	createCommand("jmx_record", PollCmd.getRecordInstance());
+	createCommand("jmx_replay", ReplayCmd.getInstance());
+	createCommand("jmx_query", QueryCmd.getInstance());
+	createCommand("jmx_export", ExportCmd.getInstance());
+
+	// Connections opened before this interpreter was created.
+	Jmx jmx = Jmx.getInstance();
+	try {
+	    for (String server : jmx.getServers()) {
+		setVar("SERVERS", server, server, TCL.GLOBAL_ONLY);
+	    }
+	    if (jmx.isConnected(jmx.getDefaultServer())) {
+		setVar("SERVER", TclString.newInstance(jmx.getDefaultServer()), TCL.GLOBAL_ONLY);
+	    }
+	}
+	catch (TclException e) {
+	    throw new IllegalStateException("Tcl error setting SERVER and SERVERS.", e);
+	}
     }
 
 }
@@ -24,6 +24,10 @@ package jmxsh;
 
 import tcl.lang.TclObject;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
 import java.io.*;
 import java.net.*;
 import javax.management.*;
@@ -42,12 +46,110 @@ class Jmx {
 
     static public Jmx getInstance() { return instance; }
 
-    private Map<String, JMXConnector> connectors;
+    static final long DEFAULT_CONNECT_TIMEOUT = 30000;
+    static final long DEFAULT_CALL_TIMEOUT = 60000;
+    /** None for operations, which may run long, and which may still complete on the server if given up on. */
+    static final long DEFAULT_INVOKE_TIMEOUT = 0;
+
+    /*
+       Connections are looked up without locking.  Opening and closing
+       one holds a lock of its own per URL, so that two threads cannot
+       open the same connection twice, while a slow host never holds
+       up work on any other.
+    */
+    private ConcurrentMap<String, JMXConnector> connectors;
+    private ConcurrentMap<String, MBeanInfoCache> caches;
+    private ConcurrentMap<String, Object> locks;
+    private ConcurrentMap<String, ConnectionHealth> health;
+
+    private volatile String defaultServer;
+    private volatile long connectTimeout;
+    private volatile long callTimeout;
+    private volatile long invokeTimeout;
+    private ThreadLocal<Long> threadTimeout;
 
     private Jmx() {
-	this.connectors = new HashMap<String, JMXConnector>();
+	this.connectors = new ConcurrentHashMap<String, JMXConnector>();
+	this.caches = new ConcurrentHashMap<String, MBeanInfoCache>();
+	this.locks = new ConcurrentHashMap<String, Object>();
+	this.health = new ConcurrentHashMap<String, ConnectionHealth>();
+	this.connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	this.callTimeout = DEFAULT_CALL_TIMEOUT;
+	this.invokeTimeout = DEFAULT_INVOKE_TIMEOUT;
+	this.threadTimeout = new ThreadLocal<Long>();
+    }
+
+    /** Milliseconds the current thread waits for a connection to open; 0 for no limit. */
+    public long getConnectTimeout() {
+	Long timeout = this.threadTimeout.get();
+	return (timeout != null) ? timeout.longValue() : this.connectTimeout;
+    }
+
+    public void setConnectTimeout(long timeout) { this.connectTimeout = timeout; }
+
+    /** Milliseconds the current thread waits for a remote call; 0 for no limit. */
+    public long getCallTimeout() {
+	Long timeout = this.threadTimeout.get();
+	return (timeout != null) ? timeout.longValue() : this.callTimeout;
+    }
+
+    public void setCallTimeout(long timeout) { this.callTimeout = timeout; }
+
+    /** Milliseconds the current thread waits for an operation to return; 0 for no limit. */
+    public long getInvokeTimeout() {
+	Long timeout = this.threadTimeout.get();
+	return (timeout != null) ? timeout.longValue() : this.invokeTimeout;
     }
 
+    public void setInvokeTimeout(long timeout) { this.invokeTimeout = timeout; }
+
+    /**
+       Override every timeout for the current thread, as a command's
+       -t option does, or go back to the global ones if null.
+    */
+    public void setThreadTimeout(Long timeout) {
+	if (timeout == null) {
+	    this.threadTimeout.remove();
+	}
+	else {
+	    this.threadTimeout.set(timeout);
+	}
+    }
+
+    private Object lockFor(String urlStr) {
+	Object lock = this.locks.get(urlStr);
+	if (lock == null) {
+	    Object created = new Object();
+	    lock = this.locks.putIfAbsent(urlStr, created);
+	    if (lock == null) {
+		lock = created;
+	    }
+	}
+	return lock;
+    }
+
+    /** Return the health monitor of a connection, or null if there is no such connection. */
+    public ConnectionHealth getHealth(String urlStrIn) {
+	String urlStr = urlStrIn;
+	if (urlStr == null) {
+	    urlStr = JInterp.getGlobal("SERVER", null);
+	}
+	return (urlStr == null) ? null : this.health.get(urlStr);
+    }
+
+    public boolean isConnected(String server) {
+	return server != null && this.connectors.containsKey(server);
+    }
+
+
+    /**
+       The server SERVER was last set to by a connection, for an
+       interpreter created after it was opened.
+    */
+    public String getDefaultServer() { return this.defaultServer; }
+
+    public void setDefaultServer(String server) { this.defaultServer = server; }
+
 
     public String[] getServers() {
 	return this.connectors.keySet().toArray(EMPTY_STRING_ARRAY);
@@ -61,8 +163,9 @@ class Jmx {
 	    if (domains == null) {
 		domains = EMPTY_STRING_ARRAY;
 	    }
+	    Matcher matcher = (regex.length() == 0) ? null : PatternCache.getInstance().matcher(regex);
 	    for (String domain : domains) {
-		if (regex.length() == 0 || domain.matches(regex)) {
+		if (matcher == null || matcher.reset(domain).matches()) {
 		    result.add(domain);
 		}
 	    }
@@ -70,6 +173,7 @@ class Jmx {
 	}
 	catch (IOException e) {
 	    logger.error("Error getting domains.", e);
+	    suspect(server, e);
 	    throw new IllegalArgumentException("Unable to get domains for " + server + ".", e);
 	}
     }
@@ -80,26 +184,61 @@ class Jmx {
     }
 
     public void close(String server) {
-	try {
-	    this.connectors.get(server).close();
-	    this.connectors.remove(server);
-	    JInterp.unsetGlobal("SERVERS", server);
+	if (!disconnect(server)) {
+	    throw new IllegalArgumentException("Not connected to " + server + ".");
 	}
-	catch (IOException e) {
-	    logger.error("Error closing connection.", e);
-	    throw new IllegalArgumentException("Error closing connection.", e);
+	JInterp.unsetGlobal("SERVERS", server);
+    }
+
+    /**
+       Close a connection, leaving the Tcl variables alone.  Safe to
+       call from any thread.
+
+       @return false if there was no such connection.
+    */
+    public boolean disconnect(String server) {
+	if (server == null) {
+	    return false;
+	}
+
+	synchronized (lockFor(server)) {
+	    JMXConnector connector = this.connectors.remove(server);
+	    if (connector == null) {
+		return false;
+	    }
+
+	    detach(server, connector);
+	    ConnectionHealth health = this.health.remove(server);
+	    if (health != null) {
+		health.stop();
+	    }
+
+	    try {
+		connector.close();
+	    }
+	    catch (IOException e) {
+		logger.error("Error closing connection.", e);
+		throw new IllegalArgumentException("Error closing connection.", e);
+	    }
+	    return true;
 	}
     }
 
     
     public String[] getMBeans(String server, String domain, String regex) {
+	return getMBeans(server, domain, regex, null);
+    }
+
+    /** As above, but the server only returns mbeans that satisfy the query. */
+    public String[] getMBeans(String server, String domain, String regex, QueryExp query) {
 	try {
 	    ObjectName wildcardQuery = getObjectName(domain + ":*");
-	    Set<?> mbeans = getMBSC(server).queryNames(wildcardQuery, null);
+	    Set<?> mbeans = getMBSC(server).queryNames(wildcardQuery, query);
 	    Vector<String> result = new Vector<String>();
+	    Matcher matcher = (regex.length() == 0) ? null : PatternCache.getInstance().matcher(regex);
 	    for (Object mbean : mbeans) {
 		String name = ((ObjectName) mbean).toString();
-		if (regex.length() == 0 || name.matches(regex)) {
+		if (matcher == null || matcher.reset(name).matches()) {
 		    result.add(name);
 		}
 	    }
@@ -107,6 +246,7 @@ class Jmx {
 	}
 	catch (IOException e) {
 	    logger.error("Error getting mbeans.", e);
+	    suspect(server, e);
 	    throw new IllegalArgumentException("Error getting mbeans.");
 	}
     }
@@ -144,13 +284,61 @@ class Jmx {
 	return signature;
     }
 
+    /**
+       The plan for invoking an operation with arity parameters, built
+       from the (cached) MBeanInfo the first time and reused after
+       that.  With several operations of that name, the one taking
+       arity parameters is chosen.
+    */
+    public InvocationPlan getInvocationPlan(String server, String mbean, String opname, int arity) {
+	MBeanInfoCache cache = getCache(server);
+	String key = InvocationPlan.key(mbean, opname, arity);
+	InvocationPlan plan = (cache == null) ? null : cache.getPlan(key);
+	if (plan != null) {
+	    return plan;
+	}
+	long generation = (cache == null) ? 0 : cache.getGeneration();
+
+	MBeanOperationInfo found = null;
+	for (MBeanOperationInfo operation : getMBI(server, mbean).getOperations()) {
+	    if (operation.getName().equals(opname)) {
+		if (operation.getSignature().length == arity) {
+		    found = operation;
+		    break;
+		}
+		if (found == null) {
+		    found = operation;
+		}
+	    }
+	}
+
+	if (found == null) {
+	    throw new IllegalArgumentException("Could not find operation " + opname);
+	}
+
+	MBeanParameterInfo[] params = found.getSignature();
+	if (params.length != arity) {
+	    throw new IllegalArgumentException("Wrong number of parameters provided for '" + opname + "', expected " + params.length + ", got " + arity + ".");
+	}
+
+	plan = new InvocationPlan(getObjectName(mbean), opname, params);
+	if (cache != null) {
+	    cache.putPlan(key, plan, generation);
+	}
+	return plan;
+    }
+
     public Object invoke(String server, String mbean, String opname, Object[] params, String[] signature) {
+	return invoke(server, getObjectName(mbean), opname, params, signature);
+    }
+
+    public Object invoke(String server, ObjectName name, String opname, Object[] params, String[] signature) {
 
 	if (params.length != signature.length)
 	    throw new IllegalArgumentException("Provided parameter list does not match signature");
 
 	try {
-	    return getMBSC(server).invoke(getObjectName(mbean), opname, params, signature);
+	    return getMBSC(server).invoke(name, opname, params, signature);
 	}
 	catch (InstanceNotFoundException e) {
 	    throw new IllegalArgumentException("The MBean was not found.", e);
@@ -164,13 +352,31 @@ class Jmx {
 	}
 	catch (IOException e) {
 	    logger.error("Network error while trying invoke.", e);
+	    suspect(server, e);
+	    if (e instanceof FanOut.CallTimeoutException) {
+		throw new IllegalStateException(e.getMessage() + "  The operation may still have run on the server.", e);
+	    }
 	    throw new IllegalStateException("Failed due to network error: " + e.getMessage(), e);
 	}
     }
 
     public MBeanInfo getMBI(String server, String mbean) {
 	try {
-	    return getMBSC(server).getMBeanInfo(getObjectName(mbean));
+	    ObjectName name = getObjectName(mbean);
+	    MBeanInfoCache cache = getCache(server);
+	    MBeanInfo info = (cache == null) ? null : cache.get(name);
+	    if (info == null) {
+		long generation = 0;
+		if (cache != null) {
+		    generation = cache.getGeneration();
+		    attach(server, cache);
+		}
+		info = getMBSC(server).getMBeanInfo(name);
+		if (cache != null) {
+		    cache.put(name, info, generation);
+		}
+	    }
+	    return info;
 	}
 	catch (InstanceNotFoundException e) {
 	    throw new IllegalArgumentException("Could not find MBeanInfo.", e);
@@ -185,6 +391,7 @@ class Jmx {
 	}
 	catch (IOException e) {
 	    logger.error("Network error while trying to get MBeanInfo.", e);
+	    suspect(server, e);
 	    throw new IllegalStateException("Failed due to network error: " + e.getMessage(), e);
 	}
     }
@@ -216,16 +423,43 @@ class Jmx {
 
 
     public void setAttribute(String server, String mbean, String attribute, TclObject value) {
-	try {
-	    MBeanAttributeInfo info = getAttributeInfo(server, mbean, attribute);
+	setAttributeValue(server, mbean, attribute, toAttributeValue(server, mbean, attribute, value));
+    }
 
-	    if (info == null)
-		throw new IllegalArgumentException("Attribute does not exist.");
 
-	    if (!info.isWritable())
-		throw new IllegalArgumentException("Attribute is not writable.");
+    /**
+       Convert a Tcl value to the type of a writable attribute.
 
-	    Object valueObj = Utils.tcl2java(value, info.getType());
+       Must be called from the interpreter thread.
+    */
+    public Object toAttributeValue(String server, String mbean, String attribute, TclObject value) {
+	return toAttributeValue(getWritableAttributeInfo(server, mbean, attribute), value);
+    }
+
+
+    /** As above, for an attribute already looked up. */
+    public Object toAttributeValue(MBeanAttributeInfo info, TclObject value) {
+	return Converters.forFeature(info, info.getType()).convert(value);
+    }
+
+
+    /** Look up an attribute, which must exist and be writable. */
+    public MBeanAttributeInfo getWritableAttributeInfo(String server, String mbean, String attribute) {
+	MBeanAttributeInfo info = getAttributeInfo(server, mbean, attribute);
+
+	if (info == null)
+	    throw new IllegalArgumentException("Attribute does not exist.");
+
+	if (!info.isWritable())
+	    throw new IllegalArgumentException("Attribute is not writable.");
+
+	return info;
+    }
+
+
+    /** Set an attribute to a value that has already been converted. */
+    public void setAttributeValue(String server, String mbean, String attribute, Object valueObj) {
+	try {
 	    Attribute attribObj = new Attribute(attribute, valueObj);
 	    getMBSC(server).setAttribute(getObjectName(mbean), attribObj);
 	}
@@ -249,6 +483,7 @@ class Jmx {
 	}
 	catch (IOException e) {
 	    logger.error("Network error while trying to get MBeanInfo.", e);
+	    suspect(server, e);
 	    throw new IllegalStateException("Failed due to network error: " + e.getMessage(), e);
 	}
 
@@ -261,8 +496,9 @@ class Jmx {
 	logger.debug("Getting attribute for server - " + server +
 		     ", mbean - " + mbean +
 		     ", attribute - " + attribute);
+	MBeanServerConnection mbsc = getMBSC(server);
 	try {
-	    value = getMBSC(server).getAttribute(getObjectName(mbean), attribute);
+	    value = mbsc.getAttribute(getObjectName(mbean), attribute);
 	}
         catch(AttributeNotFoundException e)	    {
 	    throw new IllegalArgumentException("Attribute not found.", e);
@@ -280,6 +516,7 @@ class Jmx {
 	}
 	catch (IOException e) {
 	    logger.error("Network error while trying to get MBeanInfo.", e);
+	    suspect(server, e);
 	    throw new IllegalStateException("Network error: " + e.getMessage(), e);
 	}
 	catch (RuntimeException e) {
@@ -287,23 +524,235 @@ class Jmx {
 	    throw new IllegalStateException("Runtime exception, see log.", e);
 	}
 
-	logger.debug("Result: " + value.toString());
+	logger.debug("Result: " + value);
 	return value;
     }
 
+    /** Return the MBeanInfo cache for a server, or null if it has none. */
+    public MBeanInfoCache getCache(String urlStrIn) {
+	String urlStr = urlStrIn;
+	if (urlStr == null) {
+	    urlStr = JInterp.getGlobal("SERVER", null);
+	}
+	return (urlStr == null) ? null : this.caches.get(urlStr);
+    }
+
+    /**
+       Read several attributes of one MBean in a single round-trip.
+
+       Returns the values in the order requested.  Attributes that
+       could not be read are left out of the result; if errors is
+       not null, each of them is read again on its own and the
+       reason for the failure is put there.
+    */
+    public Map<String, Object> getAttributeValues(String server, String mbean, String[] attributes, Map<String, String> errors) {
+	AttributeList list = getAttributeList(server, mbean, attributes);
+
+	Map<String, Object> returned = new HashMap<String, Object>();
+	for (Object element : list) {
+	    Attribute attribute = (Attribute) element;
+	    returned.put(attribute.getName(), attribute.getValue());
+	}
+
+	Map<String, Object> result = new LinkedHashMap<String, Object>();
+	for (String name : attributes) {
+	    if (returned.containsKey(name)) {
+		result.put(name, returned.get(name));
+		continue;
+	    }
+
+	    if (errors == null) {
+		continue;
+	    }
+
+	    // getAttributes() silently drops failures; ask again for this
+	    // one attribute only, to find out why.
+	    try {
+		result.put(name, getAttribute(server, mbean, name));
+	    }
+	    catch (RuntimeException e) {
+		// "see log" is no help in a report; give the remote reason.
+		Throwable cause = e;
+		while (cause.getCause() != null) {
+		    cause = cause.getCause();
+		}
+		errors.put(name, (cause == e) ? e.getMessage() : cause.toString());
+	    }
+	}
+	return result;
+    }
+
+    /**
+       Read several attributes of one MBean in a single round-trip,
+       returning the raw AttributeList.  Attributes that could not be
+       read are missing from it.
+    */
+    public AttributeList getAttributeList(String server, String mbean, String[] attributes) {
+	if (logger.isDebugEnabled()) {
+	    logger.debug("Getting " + attributes.length + " attributes for server - " + server +
+			 ", mbean - " + mbean);
+	}
+	try {
+	    return getMBSC(server).getAttributes(getObjectName(mbean), attributes);
+	}
+	catch(InstanceNotFoundException e)	    {
+	    throw new IllegalArgumentException("MBean not found.", e);
+	}
+	catch(ReflectionException e)	    {
+	    logger.error("Error while getting attributes.", e);
+	    throw new IllegalStateException("Reflection error, see log.", e);
+	}
+	catch (IOException e) {
+	    logger.error("Network error while trying to get attributes.", e);
+	    suspect(server, e);
+	    throw new IllegalStateException("Network error: " + e.getMessage(), e);
+	}
+    }
+
+
+    /** Return the names matching an ObjectName pattern, sorted. */
+    public String[] queryNames(String server, String pattern) {
+	return queryNames(server, pattern, null);
+    }
+
+    /**
+       Return the names matching an ObjectName pattern and a query,
+       sorted.  Both are evaluated by the server.
+    */
+    public String[] queryNames(String server, String pattern, QueryExp query) {
+	try {
+	    Set<ObjectName> names = getMBSC(server).queryNames(getObjectName(pattern), query);
+	    String[] result = new String[names.size()];
+	    int i = 0;
+	    for (ObjectName name : names) {
+		result[i++] = name.toString();
+	    }
+	    Arrays.sort(result);
+	    return result;
+	}
+	catch (IOException e) {
+	    logger.error("Error querying mbeans.", e);
+	    suspect(server, e);
+	    throw new IllegalStateException("Network error: " + e.getMessage(), e);
+	}
+    }
+
+
+    /**
+       Read the same attributes from every MBean matching a pattern.
+
+       The per-MBean getAttributes calls run on the FanOut pool.  The
+       result is keyed by ObjectName, in sorted order.
+    */
+    public Map<String, FanOut.Outcome<Map<String, Object>>> getAttributeValues(
+	final String server,
+	String pattern,
+	final String[] attributes,
+	int concurrency,
+	long timeout
+    ) {
+	Map<String, Callable<Map<String, Object>>> tasks = new LinkedHashMap<String, Callable<Map<String, Object>>>();
+	for (final String mbean : queryNames(server, pattern)) {
+	    tasks.put(mbean, new Callable<Map<String, Object>>() {
+		public Map<String, Object> call() {
+		    return getAttributeValues(server, mbean, attributes, null);
+		}
+	    });
+	}
+	return FanOut.run(tasks, concurrency, timeout);
+    }
+
+    /**
+       Register a notification listener with every MBean matching a
+       pattern that can emit notifications, or with a single MBean.
+
+       If any registration fails, those already made are undone.
+
+       @return The names the listener was added to.
+    */
+    public String[] addNotificationListener(String server, String pattern, NotificationListener listener, NotificationFilter filter) {
+	MBeanServerConnection mbsc = getMBSC(server);
+	List<String> added = new ArrayList<String>();
+
+	try {
+	    String[] names = new String[] { pattern };
+	    if (getObjectName(pattern).isPattern()) {
+		List<String> emitters = new ArrayList<String>();
+		for (String mbean : queryNames(server, pattern)) {
+		    if (mbsc.isInstanceOf(getObjectName(mbean), NotificationBroadcaster.class.getName())) {
+			emitters.add(mbean);
+		    }
+		}
+		names = emitters.toArray(EMPTY_STRING_ARRAY);
+	    }
+
+	    for (String mbean : names) {
+		mbsc.addNotificationListener(getObjectName(mbean), listener, filter, null);
+		added.add(mbean);
+	    }
+	    return names;
+	}
+	catch (InstanceNotFoundException e) {
+	    removeNotificationListener(server, added.toArray(EMPTY_STRING_ARRAY), listener);
+	    throw new IllegalArgumentException("MBean not found.", e);
+	}
+	catch (IOException e) {
+	    logger.error("Network error while adding notification listener.", e);
+	    removeNotificationListener(server, added.toArray(EMPTY_STRING_ARRAY), listener);
+	    throw new IllegalStateException("Network error: " + e.getMessage(), e);
+	}
+	catch (RuntimeException e) {
+	    logger.error("Error while adding notification listener.", e);
+	    removeNotificationListener(server, added.toArray(EMPTY_STRING_ARRAY), listener);
+	    throw new IllegalStateException("Cannot listen to " + pattern + ": " + e.getMessage(), e);
+	}
+    }
+
+    /**
+       Remove a notification listener from each of the given MBeans.
+       MBeans that have gone away, and connections that have been
+       lost, are ignored.
+    */
+    public void removeNotificationListener(String server, String[] mbeans, NotificationListener listener) {
+	if (!isConnected(server)) {
+	    return;
+	}
+
+	MBeanServerConnection mbsc = getMBSC(server);
+	for (String mbean : mbeans) {
+	    try {
+		mbsc.removeNotificationListener(getObjectName(mbean), listener);
+	    }
+	    catch (InstanceNotFoundException e) {
+		logger.debug("MBean " + mbean + " is gone, listener not removed.");
+	    }
+	    catch (ListenerNotFoundException e) {
+		logger.debug("Listener was not registered with " + mbean + ".");
+	    }
+	    catch (IOException e) {
+		logger.warn("Network error while removing notification listener from " + mbean + ".", e);
+	    }
+	}
+    }
+
     public MBeanServerConnection getMBSC (String urlStrIn) {
 	String urlStr = urlStrIn;
 	try {
 	    if (urlStr == null) {
 		urlStr = JInterp.getGlobal("SERVER", null);
 	    }
-	    JMXConnector connector = this.connectors.get(urlStr);
+	    ConnectionHealth health = (urlStr == null) ? null : this.health.get(urlStr);
+	    if (health != null) {
+		health.awaitUp();
+	    }
+
+	    JMXConnector connector = (urlStr == null) ? null : this.connectors.get(urlStr);
 	    if (connector != null) {
-		return connector.getMBeanServerConnection();
+		return DeadlineConnection.wrap(connector.getMBeanServerConnection());
 	    }
 
 	    logger.info("Could not find connector for " + urlStr);
-	    return null;
+	    throw new IllegalArgumentException("Not connected to " + urlStr + ".");
 	}
 	catch (IOException e) {
 	    logger.error("Error getting MBSC.", e);
@@ -315,10 +764,16 @@ class Jmx {
 	String host, 
 	int port, 
 	String protocol, 
-	String pathIn, 
+	String path, 
 	String user, 
 	String password
     ) {
+	connect(makeURL(host, port, protocol, path), user, password);
+    }
+
+
+    /** Build the service URL for a host and port, as jmx_connect -h does. */
+    public JMXServiceURL makeURL(String host, int port, String protocol, String pathIn) {
 	String path = pathIn;
 	try {
 	    if (protocol.equals("rmi")) {
@@ -326,15 +781,12 @@ class Jmx {
 		    path = "jmxrmi";
 		}
 		String urlStr = "service:jmx:rmi:///jndi/rmi://" + host + ":" + port + "/" + path;
-		JMXServiceURL url = new JMXServiceURL(urlStr);
-		connect(url, user, password);
+		return new JMXServiceURL(urlStr);
 	    }
 	    else if(protocol.equals("custom")) {
-		JMXServiceURL url = new JMXServiceURL(host);
-		connect(url, user, password);
+		return new JMXServiceURL(host);
 	    }else {
-		JMXServiceURL url = new JMXServiceURL(protocol, host, port, path);
-		connect(url, user, password);
+		return new JMXServiceURL(protocol, host, port, path);
 	    }
 	}
 	catch (MalformedURLException e) {
@@ -365,61 +817,316 @@ class Jmx {
 	String user, 
 	String password
     ) {
-	Map<String, String[]> credentials = null;
-	JMXConnector connector = this.connectors.get(url.toString());
+	String urlStr = url.toString();
 
-	if (connector != null) {
+	// An open connection is reused, but still becomes the default:
+	// a daemon client's script connects to servers the daemon has
+	// kept open, and expects SERVER to be set in its interpreter.
+	if (!open(url, user, password)) {
 	    if (Main.interactive) {
 		System.out.println("Already connected.");
 	    }
+	    this.defaultServer = urlStr;
+	    JInterp.addServer(urlStr, true);
 	    return;
 	}
 
-	try {
-	    if (user != null) {
-		credentials = new HashMap<String, String[]>();
-		credentials.put(JMXConnector.CREDENTIALS, new String[] { user, password });
- 	    }
+	this.defaultServer = urlStr;
+	JInterp.addServer(urlStr, true);
+	BrowseMode.connected();
+	if (Main.interactive) {
+	    System.out.println("Connected to " + urlStr + ".");
+	}
+    }
+
 
-	    String urlStr = url.toString();
-	    connector = JMXConnectorFactory.connect(url, credentials);
+    /**
+       Open a connection unless one to the same URL is already open,
+       leaving the Tcl variables alone.  Safe to call from any thread.
+
+       @return false if the connection was already open.
+    */
+    public boolean open (
+	JMXServiceURL url,
+	String user, 
+	String password
+    ) {
+	Map<String, String[]> credentials = null;
+	String urlStr = url.toString();
+
+	if (this.connectors.containsKey(urlStr)) {
+	    return false;
+	}
+
+	synchronized (lockFor(urlStr)) {
+	    if (this.connectors.containsKey(urlStr)) {
+		return false;
+	    }
+
+	    try {
+		if (user != null) {
+		    credentials = new HashMap<String, String[]>();
+		    credentials.put(JMXConnector.CREDENTIALS, new String[] { user, password });
+		}
+
+		JMXConnector connector = openConnector(url, credentials);
+		// The cache and health monitor go in first, so that
+		// nobody sees the connection without them.
+		addCache(urlStr, connector);
+		ConnectionHealth health = new ConnectionHealth(url, credentials);
+		health.watch(connector);
+		this.health.put(urlStr, health);
+		this.connectors.put(urlStr, connector);
+		return true;
+	    }
+	    catch (SecurityException e) {
+		logger.error("Connection error.", e);
+		throw new IllegalArgumentException("Authentication error: " + e.getMessage());
+	    }
+	    catch (IOException e) {
+		logger.error("Connection error.", e);
+		throw translate(e);
+	    }
+	}
+    }
+
+
+    /**
+       Replace the connector of a connection that has failed.  Called
+       by its ConnectionHealth, off the interpreter thread.
+
+       @return false if the connection was closed in the meantime.
+    */
+    boolean reconnect(ConnectionHealth health) throws IOException {
+	String urlStr = health.urlStr;
+
+	synchronized (lockFor(urlStr)) {
+	    JMXConnector old = this.connectors.get(urlStr);
+	    if (old == null || this.health.get(urlStr) != health) {
+		return false;
+	    }
+
+	    JMXConnector connector = openConnector(health.url, health.environment);
+	    detach(urlStr, old);
+	    addCache(urlStr, connector);
+	    health.watch(connector);
 	    this.connectors.put(urlStr, connector);
-	    JInterp.setGlobal("SERVER", urlStr);
-	    JInterp.setGlobal("SERVERS", urlStr, urlStr);
-	    BrowseMode.instance.setDomainMenuLevel();
-	    if (Main.interactive) {
-		System.out.println("Connected to " + urlStr + ".");
+
+	    try {
+		old.close();
 	    }
+	    catch (IOException e) {
+		logger.debug("Error closing failed connection, ignored.", e);
+	    }
+	    return true;
 	}
-	catch (SecurityException e) {
-	    logger.error("Connection error.", e);
-	    throw new IllegalArgumentException("Authentication error: " + e.getMessage());
+    }
+
+
+    /** Tell the health monitor of a connection that a call on it hit a network error. */
+    private void suspect(String server, IOException e) {
+	ConnectionHealth health = (server == null) ? getHealth(null) : this.health.get(server);
+	if (health == null) {
+	    return;
 	}
-	catch (IOException e) {
-	    logger.error("Connection error.", e);
+	if (e instanceof FanOut.CallTimeoutException) {
+	    // Maybe just a slow call: check before tearing it down.
+	    health.check("Call timed out");
+	}
+	else {
+	    health.suspect("Network error: " + e.getMessage());
+	}
+    }
+
+
+    /** Remove our listeners from a connector that is about to be closed or replaced. */
+    private void detach(String urlStr, JMXConnector connector) {
+	MBeanInfoCache cache = this.caches.remove(urlStr);
+	if (cache != null) {
 	    try {
-		if (e.getCause().getClass() == Class.forName("javax.naming.ConfigurationException")) {
-		    throw new IllegalArgumentException("Host name not found.");
+		connector.removeConnectionNotificationListener(cache);
+		if (cache.isListening()) {
+		    connector.getMBeanServerConnection().removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, cache);
 		}
-		if (e.getCause().getClass() == Class.forName("javax.naming.ServiceUnavailableException")) {
-		    throw new IllegalArgumentException("Nothing is listening on that port, or it's firewalled off.");
+	    }
+	    catch (Exception e) {
+		logger.info("Could not remove MBeanInfo cache listener, ignored.", e);
+	    }
+	}
+
+	ConnectionHealth health = this.health.get(urlStr);
+	if (health != null) {
+	    try {
+		connector.removeConnectionNotificationListener(health);
+	    }
+	    catch (ListenerNotFoundException e) {
+		logger.debug("Health listener was not registered, ignored.");
+	    }
+	}
+    }
+
+
+    /**
+       Open a connector, giving up after the connect timeout.  If it
+       turns up after that, it is closed.
+    */
+    private JMXConnector openConnector(final JMXServiceURL url, final Map<String, ?> environment) throws IOException {
+	try {
+	    return FanOut.call(new Callable<JMXConnector>() {
+		public JMXConnector call() throws IOException {
+		    return JMXConnectorFactory.connect(url, environment);
 		}
-		if (e.getCause().getClass() == Class.forName("javax.naming.CommunicationException")) {
-		    throw new IllegalArgumentException("Timed out.  Probably some non-JMX process is listening on it.");
+	    }, getConnectTimeout(), new FanOut.Discard<JMXConnector>() {
+		public void discard(JMXConnector connector) {
+		    logger.info("Closing late connection to " + url);
+		    try {
+			connector.close();
+		    }
+		    catch (IOException e) {
+			logger.debug("Error closing late connection, ignored.", e);
+		    }
 		}
-		if (e.getCause().getClass() == Class.forName("javax.net.ssl.SSLHandshakeException")) {
-		    throw new IllegalStateException("Host is using SSL, set the appropriate System Properties to connect to it.");
+	    });
+	}
+	catch (IOException e) {
+	    throw e;
+	}
+	catch (RuntimeException e) {
+	    throw e;
+	}
+	catch (Exception e) {
+	    throw new IllegalStateException("Unexpected error while connecting: " + e.getMessage(), e);
+	}
+    }
+
+
+    /** Turn a connection failure into a message for the user. */
+    private RuntimeException translate(IOException e) {
+	if (e instanceof FanOut.CallTimeoutException) {
+	    return new IllegalStateException("Could not connect: " + e.getMessage());
+	}
+
+	Throwable cause = e.getCause();
+	String causeName = (cause == null) ? "" : cause.getClass().getName();
+
+	if (causeName.equals("javax.naming.ConfigurationException")) {
+	    return new IllegalArgumentException("Host name not found.");
+	}
+	if (causeName.equals("javax.naming.ServiceUnavailableException")) {
+	    return new IllegalArgumentException("Nothing is listening on that port, or it's firewalled off.");
+	}
+	if (causeName.equals("javax.naming.CommunicationException")) {
+	    return new IllegalArgumentException("Timed out.  Probably some non-JMX process is listening on it.");
+	}
+	if (causeName.equals("javax.net.ssl.SSLHandshakeException")) {
+	    return new IllegalStateException("Host is using SSL, set the appropriate System Properties to connect to it.");
+	}
+	if (causeName.equals("java.net.ConnectException")) {
+	    return new IllegalStateException("Connection refused.");
+	}
+	return new IllegalStateException("Network error, see log.");
+    }
+
+
+    /**
+       Create the MBeanInfo cache for a new connection.  It starts
+       listening for registrations when it is first needed; see
+       attach().
+    */
+    private void addCache(String urlStr, JMXConnector connector) {
+	MBeanInfoCache cache = new MBeanInfoCache(MBeanInfoCache.DEFAULT_MAX_SIZE);
+	try {
+	    connector.addConnectionNotificationListener(cache, null, null);
+	    cache.setWatching();
+	}
+	catch (Exception e) {
+	    logger.warn("Unable to listen to the connector for " + urlStr + ", MBeanInfo cache disabled.", e);
+	    cache.setMaxSize(0);
+	}
+	this.caches.put(urlStr, cache);
+    }
+
+
+    /**
+       Register a cache as a listener on the remote MBeanServerDelegate,
+       before the first MBeanInfo goes into it.
+
+       Until then there is nothing to invalidate.  A connection whose
+       MBeanInfo is never needed, as in a script that only gets
+       attributes, then has no notification forwarder polling the
+       server, and the JVM does not wait for that poll when it exits.
+
+       If the listener cannot be registered, we would never hear about
+       unregistrations, so the cache is left disabled.
+    */
+    private void attach(String serverIn, MBeanInfoCache cache) {
+	if (cache.isAttached()) {
+	    return;
+	}
+	String urlStr = (serverIn == null) ? JInterp.getGlobal("SERVER", null) : serverIn;
+	if (urlStr == null) {
+	    return;
+	}
+
+	synchronized (lockFor(urlStr)) {
+	    JMXConnector connector = this.connectors.get(urlStr);
+	    if (cache.isAttached() || connector == null) {
+		return;
+	    }
+	    try {
+		DeadlineConnection.wrap(connector.getMBeanServerConnection()).addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, cache, null, null);
+		cache.setListening();
+	    }
+	    catch (Exception e) {
+		logger.warn("Unable to listen for MBean registrations on " + urlStr + ", MBeanInfo cache disabled.", e);
+		cache.setMaxSize(0);
+	    }
+	    cache.setAttached(true);
+	}
+    }
+
+
+    /**
+       Change the size of a connection's MBeanInfo cache, as jmx_cache
+       -z does.  A cache that was disabled because its listeners could
+       not be registered is only enabled again once they are, since it
+       would otherwise keep MBeanInfo that nothing invalidates.
+    */
+    public void resizeCache(String serverIn, int size) {
+	String urlStr = (serverIn == null) ? JInterp.getGlobal("SERVER", null) : serverIn;
+	MBeanInfoCache cache = (urlStr == null) ? null : this.caches.get(urlStr);
+	if (cache == null) {
+	    throw new IllegalArgumentException("Not connected to " + urlStr + ".");
+	}
+	if (size <= 0) {
+	    cache.setMaxSize(size);
+	    return;
+	}
+
+	synchronized (lockFor(urlStr)) {
+	    JMXConnector connector = this.connectors.get(urlStr);
+	    if (connector == null) {
+		throw new IllegalArgumentException("Not connected to " + urlStr + ".");
+	    }
+	    if (!cache.isWatching()) {
+		try {
+		    connector.addConnectionNotificationListener(cache, null, null);
+		    cache.setWatching();
 		}
-		if (e.getCause().getClass() == Class.forName("java.net.ConnectException")) {
-		    throw new IllegalStateException("Connection refused.");
+		catch (Exception e) {
+		    logger.warn("Unable to listen to the connector for " + urlStr + ".", e);
+		    throw new IllegalStateException("Unable to listen to the connector for " + urlStr + ", MBeanInfo cache left disabled.");
 		}
 	    }
-
-	    catch (java.lang.ClassNotFoundException ee) {
-		// Do nothing, fall through to default error message.
+	    // Set the size first, so that a failed attach leaves it at 0.
+	    cache.setMaxSize(size);
+	    if (cache.isAttached() && !cache.isListening()) {
+		cache.setAttached(false);
+		attach(urlStr, cache);
+		if (!cache.isListening()) {
+		    throw new IllegalStateException("Unable to listen for MBean registrations on " + urlStr + ", MBeanInfo cache left disabled.");
+		}
 	    }
-
-	    throw new IllegalStateException("Network error, see log.");
 	}
     }
 
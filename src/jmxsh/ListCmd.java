@@ -24,6 +24,10 @@ package jmxsh;
 
 
 import java.util.*;
+import java.util.regex.Pattern;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
 import org.apache.commons.cli.*;
 import tcl.lang.*;
 
@@ -32,7 +36,6 @@ class ListCmd implements Command {
 
     private final static ListCmd instance = new ListCmd();
 
-    private String server;
     private Options opts;
 
     static ListCmd getInstance() {
@@ -50,6 +53,36 @@ class ListCmd implements Command {
 		.create("s")
 	);
 
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("pattern")
+		.withDescription("Treat the expression as an ObjectName pattern, evaluated by the server.")
+		.hasArg(false)
+		.create("p")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("regex")
+		.withDescription("Treat the expression as a pair of regular expressions, evaluated locally.")
+		.hasArg(false)
+		.create("r")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("where")
+		.withDescription("Only list mbeans whose attributes satisfy this expression; it is evaluated by the server.")
+		.withArgName("EXPR")
+		.hasArg()
+		.create("w")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("timeout")
+		.withDescription("Give up on a remote call after this many milliseconds (default " + Jmx.DEFAULT_CALL_TIMEOUT + ").")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("t")
+	);
+
 	this.opts.addOption(
 	    OptionBuilder.withLongOpt("help")
 		.withDescription("Display usage help.")
@@ -66,33 +99,45 @@ class ListCmd implements Command {
 	for(int i = 0; i < argv.length - 1; i++)
 	    args[i] = argv[i + 1].toString();
 	    
-	CommandLine cl = (new PosixParser()).parse(this.opts, args);
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
 	return cl;
     }
 
-    private void listDefaults(Interp interp) {
-	this.server = null;
-
-	try {
-	    this.server = interp.getVar("SERVER", TCL.GLOBAL_ONLY).toString();
-	}
-	catch (TclException e) { 
-	    /* If one doesn't exist, it will just be null. */
+    /**
+       Decide whether an expression should be sent to the server as an
+       ObjectName pattern.
+
+       It must parse as an ObjectName, and must not contain anything
+       that only makes sense in a regular expression (character
+       classes, groups, anchors, escapes, or '.' used as a wildcard).
+    */
+    static boolean isObjectNamePattern(String expression) {
+	if (!REGEX_ONLY.matcher(expression).find()) {
+	    try {
+		new ObjectName(expression);
+		return true;
+	    }
+	    catch (MalformedObjectNameException e) {
+		/* Fall through, it is a regex. */
+	    }
 	}
-
+	return false;
     }
 
+    static private final Pattern REGEX_ONLY = Pattern.compile("[\\[\\](){}+^$|\\\\]|\\.[*?+]");
+
     public void cmdProc(Interp interp, TclObject argv[])
         throws TclException {
 
         try {
 	    CommandLine cl = parseCommandLine(argv);
+	    Utils.applyTimeout(interp, cl);
 	    String args[] = cl.getArgs();
 	    String[] expressions = null;
 	    
 	    if (cl.hasOption("help")) {
 		new HelpFormatter().printHelp (
-		    "jmx_list [-?] [-s server] domain_regex:mbean_regex",
+		    "jmx_list [-?] [-p|-r] [-w expr] [-t millis] [-s server] domain_regex:mbean_regex|pattern",
 		    "======================================================================", 
 		    this.opts,
 		    "======================================================================",
@@ -103,29 +148,66 @@ class ListCmd implements Command {
 		System.out.println("colon.  The first is an expression for the domain, the");
 		System.out.println("second is an expression for the mbean.");
 		System.out.println("");
+		System.out.println("If the expression is a valid JMX ObjectName pattern, such as");
+		System.out.println("'Catalina:type=ThreadPool,*' or 'java.lang:type=Memory*', it is");
+		System.out.println("instead sent to the server and evaluated there, which is much");
+		System.out.println("faster on servers with many mbeans.  Use -p or -r to force");
+		System.out.println("either interpretation.");
+		System.out.println("");
+		System.out.println("The -w option filters on attribute values, and is also");
+		System.out.println("evaluated by the server, e.g.");
+		System.out.println("   jmx_list -w {currentThreadsBusy > 150} Catalina:type=ThreadPool,*");
+		System.out.println("   jmx_list -w {Verbose = true or not (Name like \"PS*\")}");
+		System.out.println("Comparisons (= != < <= > >=), 'like' with * and ? wildcards,");
+		System.out.println("'and', 'or', 'not' and parentheses are supported.  Strings are");
+		System.out.println("quoted; anything else that is not a number or true/false is an");
+		System.out.println("attribute name.");
+		System.out.println("");
 		System.out.println("It will return a list of tcl strings.");
 		return;
 	    }
 
-	    listDefaults(interp);
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
 
-	    this.server = cl.getOptionValue("server", this.server);
+	    if (server == null) {
+		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	    }
 
-	    if (args.length > 0) {
-		expressions = args[0].split(":");
+	    QueryExp query = null;
+	    if (cl.hasOption("where")) {
+		try {
+		    query = QueryParser.parse(cl.getOptionValue("where"));
+		}
+		catch (IllegalArgumentException e) {
+		    throw new TclException(interp, e.getMessage(), TCL.ERROR);
+		}
+		if (args.length == 0) {
+		    args = new String[] { "*:*" };
+		}
 	    }
 
-	    if (this.server == null) {
-		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	    if (args.length > 0 && !cl.hasOption("regex")
+		&& (cl.hasOption("pattern") || isObjectNamePattern(args[0]))) {
+		interp.setResult(Utils.array2list(Jmx.getInstance().queryNames(server, args[0], query)));
+		return;
+	    }
+
+	    if (args.length > 0) {
+		expressions = args[0].split(":");
 	    }
 
 	    String domain_regex = (expressions != null && expressions.length > 0) ? expressions[0] : "";
 	    String mbean_regex = (expressions != null && expressions.length > 1) ? expressions[1] : "";
 
-	    String[] domains = Jmx.getInstance().getDomains(this.server, domain_regex);
+	    // Compile both up front, so that a bad expression fails before
+	    // any remote call; getDomains and getMBeans reuse them.
+	    PatternCache.getInstance().regex(domain_regex);
+	    PatternCache.getInstance().regex(mbean_regex);
+
+	    String[] domains = Jmx.getInstance().getDomains(server, domain_regex);
 	    Vector<String> beans = new Vector<String>();
 	    for (String domain : domains) {
-		List<String> list = Arrays.asList(Jmx.getInstance().getMBeans(this.server, domain, mbean_regex));
+		List<String> list = Arrays.asList(Jmx.getInstance().getMBeans(server, domain, mbean_regex, query));
 		beans.addAll(list);
 	    }
 
@@ -137,7 +219,10 @@ class ListCmd implements Command {
 	    throw new TclException(interp, e.getMessage(), 1);
 	}
         catch(RuntimeException e)	    {
-	    throw new TclException(interp, "Cannot convert result to a string.", 1);
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	finally {
+	    Jmx.getInstance().setThreadTimeout(null);
 	}
     }
 
@@ -0,0 +1,189 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import javax.management.*;
+import javax.management.remote.*;
+import org.apache.log4j.*;
+
+/**
+   Per-connection cache of MBeanInfo.
+
+   Bounded, least-recently-used.  Registered as a listener on the
+   remote MBeanServerDelegate before its first entry, so that an
+   entry is dropped whenever its MBean is registered or unregistered.  If the connector reports
+   lost notifications, the whole cache is flushed.
+
+   The InvocationPlans built from the cached MBeanInfo are kept here
+   too, under the same bound, and go whenever their MBeanInfo does.
+
+   Every invalidation or flush bumps a generation count.  A caller
+   reads it on a miss, before fetching, and hands it back to put(),
+   which drops the entry if anything was invalidated meanwhile: the
+   fetched MBeanInfo may predate the change.
+*/
+
+class MBeanInfoCache implements NotificationListener {
+
+    static final int DEFAULT_MAX_SIZE = 500;
+
+    static private Logger logger = Logger.getLogger(MBeanInfoCache.class);
+
+    private LinkedHashMap<ObjectName, MBeanInfo> entries;
+    private LinkedHashMap<String, InvocationPlan> plans;
+    private int maxSize;
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long generation;
+    private boolean attached;
+    private boolean listening;
+    private boolean watching;
+
+    MBeanInfoCache(int maxSize) {
+	this.maxSize = maxSize;
+	this.entries = new LinkedHashMap<ObjectName, MBeanInfo>(16, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    protected boolean removeEldestEntry(Map.Entry<ObjectName, MBeanInfo> eldest) {
+		return size() > MBeanInfoCache.this.maxSize;
+	    }
+	};
+	this.plans = new LinkedHashMap<String, InvocationPlan>(16, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    protected boolean removeEldestEntry(Map.Entry<String, InvocationPlan> eldest) {
+		return size() > MBeanInfoCache.this.maxSize;
+	    }
+	};
+    }
+
+    synchronized MBeanInfo get(ObjectName name) {
+	MBeanInfo info = this.entries.get(name);
+	if (info == null) {
+	    this.misses++;
+	}
+	else {
+	    this.hits++;
+	}
+	return info;
+    }
+
+    /** Read before fetching what is to be put(). */
+    synchronized long getGeneration() {
+	return this.generation;
+    }
+
+    synchronized void put(ObjectName name, MBeanInfo info, long generation) {
+	if (this.maxSize > 0 && generation == this.generation) {
+	    this.entries.put(name, info);
+	}
+    }
+
+    synchronized InvocationPlan getPlan(String key) {
+	return this.plans.get(key);
+    }
+
+    /** Keep a plan, unless the MBeanInfo it was built from has gone since. */
+    synchronized void putPlan(String key, InvocationPlan plan, long generation) {
+	if (generation == this.generation && this.entries.containsKey(plan.name)) {
+	    this.plans.put(key, plan);
+	}
+    }
+
+    synchronized void invalidate(ObjectName name) {
+	this.generation++;
+	if (this.entries.remove(name) != null) {
+	    this.invalidations++;
+	}
+	Iterator<InvocationPlan> it = this.plans.values().iterator();
+	while (it.hasNext()) {
+	    if (it.next().name.equals(name)) {
+		it.remove();
+	    }
+	}
+    }
+
+    synchronized void flush() {
+	this.generation++;
+	this.invalidations += this.entries.size();
+	this.entries.clear();
+	this.plans.clear();
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+	if (maxSize < 0) {
+	    throw new IllegalArgumentException("Cache size must not be negative.");
+	}
+	this.maxSize = maxSize;
+	Iterator<ObjectName> it = this.entries.keySet().iterator();
+	while (this.entries.size() > maxSize && it.hasNext()) {
+	    it.next();
+	    it.remove();
+	}
+	Iterator<String> pit = this.plans.keySet().iterator();
+	while (this.plans.size() > maxSize && pit.hasNext()) {
+	    pit.next();
+	    pit.remove();
+	}
+    }
+
+    /** Whether Jmx has tried to register this on the delegate. */
+    synchronized boolean isAttached() { return this.attached; }
+
+    synchronized void setAttached(boolean attached) { this.attached = attached; }
+
+    /** Whether this is registered on the delegate, and so hears of unregistrations. */
+    synchronized boolean isListening() { return this.listening; }
+
+    synchronized void setListening() { this.listening = true; }
+
+    /** Whether this is registered on the connector, and so hears of lost notifications. */
+    synchronized boolean isWatching() { return this.watching; }
+
+    synchronized void setWatching() { this.watching = true; }
+
+    synchronized int getMaxSize() { return this.maxSize; }
+
+    synchronized int size() { return this.entries.size(); }
+
+    synchronized long getHits() { return this.hits; }
+
+    synchronized long getMisses() { return this.misses; }
+
+    synchronized long getInvalidations() { return this.invalidations; }
+
+    public void handleNotification(Notification notification, Object handback) {
+	if (notification instanceof MBeanServerNotification) {
+	    ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+	    logger.debug("Invalidating MBeanInfo for " + name + " (" + notification.getType() + ")");
+	    invalidate(name);
+	}
+	else if (JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType())) {
+	    logger.info("Notifications lost, flushing MBeanInfo cache.");
+	    flush();
+	}
+    }
+
+}
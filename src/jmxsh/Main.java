@@ -25,7 +25,10 @@ package jmxsh;
 import org.apache.commons.cli.*;
 import org.apache.log4j.*;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.util.Date;
+import java.util.concurrent.*;
+import javax.management.remote.JMXServiceURL;
 
 
 /**
@@ -43,12 +46,27 @@ public final class Main {
     static final String CODENAME = "ERETRIA";
     static final Date DATE = new Date(EPOCH_DATE*1000);
 
+    static {
+        // Keep log4j from searching the classpath for a configuration
+        // when the first logger is created; run() configures it, and
+        // only when there is a log file to write.  This has to come
+        // before the first logger.
+        if (System.getProperty("log4j.defaultInitOverride") == null) {
+            System.setProperty("log4j.defaultInitOverride", "true");
+        }
+    }
+
     static final protected Logger logger = Logger.getLogger(Main.class);
     static boolean interactive = false;
 
     protected boolean historyEnabled;
     protected CommandLine commandLine;
 
+    private JMXServiceURL url;
+    private String user;
+    private String password;
+    private FutureTask<Boolean> opening;
+
     private Options makeCommandLineOptions() {
 
         Options opts = new Options();
@@ -103,7 +121,7 @@ public final class Main {
         
         opts.addOption(
             OptionBuilder.withLongOpt("debug")
-                .withDescription("Verbose logging.")
+                .withDescription("Verbose logging, with -l.")
                 .hasArg(false)
                 .create("d")
         );
@@ -138,6 +156,94 @@ public final class Main {
                 .create("R")
         );
 
+        opts.addOption(
+            OptionBuilder.withLongOpt("hosts-file")
+                .withDescription("Connect to every server listed in this file (host:port, host port or URL per line), in parallel.")
+                .withArgName("FILE")
+                .hasArg()
+                .create("f")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("concurrency")
+                .withDescription("With -f, connections opened at once (default " + HostsFile.DEFAULT_CONCURRENCY + "); with -D or -E, mbeans read at once (default " + Dumper.DEFAULT_CONCURRENCY + ").")
+                .withArgName("N")
+                .hasArg()
+                .create("c")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("connect-timeout")
+                .withDescription("Milliseconds to wait for a connection to open (default " + Jmx.DEFAULT_CONNECT_TIMEOUT + ", or " + HostsFile.DEFAULT_TIMEOUT + " for each with -f).")
+                .withArgName("MILLIS")
+                .hasArg()
+                .create("t")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("call-timeout")
+                .withDescription("Milliseconds to wait for each remote call other than an operation (default " + Jmx.DEFAULT_CALL_TIMEOUT + ").")
+                .withArgName("MILLIS")
+                .hasArg()
+                .create("w")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("dump")
+                .withDescription("Write every attribute of every mbean on the connected servers to this file (- for standard output), then exit.")
+                .withArgName("FILE")
+                .hasArg()
+                .create("D")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("dump-format")
+                .withDescription("With -D, csv or ndjson (default ndjson).")
+                .withArgName("FORMAT")
+                .hasArg()
+                .create("F")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("export")
+                .withDescription("Serve Prometheus metrics on this port until killed: those added with jmx_export by the script or -i files, or else every attribute on the connected servers.")
+                .withArgName("PORT")
+                .hasArg()
+                .create("E")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("export-interval")
+                .withDescription("With -E, milliseconds between refreshes (default " + Exporter.DEFAULT_INTERVAL + ").")
+                .withArgName("MILLIS")
+                .hasArg()
+                .create("e")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("listen")
+                .withDescription("Run as a daemon on this port of 127.0.0.1 (0 for any), running scripts sent by jmxshc with the connections already open.")
+                .withArgName("PORT")
+                .hasArg()
+                .create("L")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("workers")
+                .withDescription("With -L, scripts run at once, each in its own interpreter (default " + Daemon.DEFAULT_WORKERS + ").")
+                .withArgName("N")
+                .hasArg()
+                .create("W")
+        );
+
+        opts.addOption(
+            OptionBuilder.withLongOpt("daemon-file")
+                .withDescription("With -L, where to write the port and key for jmxshc (default $HOME/" + Client.DAEMON_FILE + ").")
+                .withArgName("FILE")
+                .hasArg()
+                .create("K")
+        );
+
         opts.addOption(
             OptionBuilder.withLongOpt("include")
                 .withDescription("Source this file.  May be specified multiple times.  [N.B. Do not make this the last option, because of a bug in CLI parsing library.]")
@@ -203,6 +309,11 @@ public final class Main {
         System.out.println("If no script file is specified, or if the -I option was specified,");
         System.out.println("then an interactive session will be started.");
         System.out.println("");
+        System.out.println("'jmxsh get', 'jmxsh invoke' and 'jmxsh list' read attributes, invoke");
+        System.out.println("an operation or list mbeans and exit, without Tcl; add -? for their");
+        System.out.println("options.  An existing file named get, invoke or list is still run");
+        System.out.println("as a script.");
+        System.out.println("");
 
         new HelpFormatter().printHelp("java -jar jmxsh.jar [OPTIONS] -h host -p port [FILENAME ARGS]",
                                       "=========================================================================",
@@ -213,14 +324,19 @@ public final class Main {
     }
 
 
-    private void connect() {
+    /**
+       Start opening the -h/-p connection on another thread, so that
+       the interpreter can be created meanwhile; connect() waits for
+       it and sets SERVER.
+    */
+    private void startConnect() {
         String server = commandLine.getOptionValue("server");
         String host = commandLine.getOptionValue("host");
         String protocol = commandLine.getOptionValue("protocol", "rmi");
         String path = commandLine.getOptionValue("url_path");
-        String user = commandLine.getOptionValue("user");
-        String password = commandLine.getOptionValue("password");
         int port = Integer.parseInt(commandLine.getOptionValue("port"));
+        user = commandLine.getOptionValue("user");
+        password = commandLine.getOptionValue("password");
 
         try {
             if (user == null && password != null) {
@@ -232,17 +348,176 @@ public final class Main {
             }
 
             if (server == null) {
-                Jmx.getInstance().connect(host, port, protocol, path, user, password);
+                url = Jmx.getInstance().makeURL(host, port, protocol, path);
             }
             else {
-                Jmx.getInstance().connect(server, user, password);
+                url = new JMXServiceURL(server);
             }
-            BrowseMode.instance.setDomainMenuLevel();
+        }
+        catch (MalformedURLException e) {
+            System.err.println("Failed to connect to " + host + ", port " + port + ": " + e.getMessage());
+            System.exit(1);
         }
         catch (RuntimeException e) {
             System.err.println("Failed to connect to " + host + ", port " + port + ": " + e.getMessage());
             System.exit(1);
         }
+
+        opening = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() {
+                return Boolean.valueOf(Jmx.getInstance().open(url, user, password));
+            }
+        });
+        new FanOut.NamedThreadFactory("jmxsh-connect").newThread(opening).start();
+    }
+
+
+    private void connect() {
+        try {
+            opening.get();
+            Jmx.getInstance().connect(url, user, password);
+        }
+        catch (InterruptedException e) {
+            System.err.println("Interrupted while connecting to " + url + ".");
+            System.exit(1);
+        }
+        catch (ExecutionException e) {
+            System.err.println("Failed to connect to " + url + ": " + e.getCause().getMessage());
+            System.exit(1);
+        }
+        catch (RuntimeException e) {
+            System.err.println("Failed to connect to " + url + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+
+    private void connectAll() {
+        String protocol = commandLine.getOptionValue("protocol", "rmi");
+        String path = commandLine.getOptionValue("url_path");
+        String user = commandLine.getOptionValue("user");
+        String password = commandLine.getOptionValue("password");
+
+        try {
+            if (password == null && user != null) {
+                password = Readline.getInstance().readline("Password: ", '*');
+            }
+
+            int concurrency = Integer.parseInt(commandLine.getOptionValue("concurrency", String.valueOf(HostsFile.DEFAULT_CONCURRENCY)));
+            long timeout = Long.parseLong(commandLine.getOptionValue("connect-timeout", String.valueOf(HostsFile.DEFAULT_TIMEOUT)));
+            HostsFile.connect(HostsFile.read(commandLine.getOptionValue("hosts-file"), protocol, path), user, password, concurrency, timeout);
+        }
+        catch (RuntimeException e) {
+            System.err.println("Failed to connect to hosts file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+
+    private void dump() {
+        String[] servers = Jmx.getInstance().getServers();
+        if (servers.length == 0) {
+            System.err.println("Nothing to dump; please connect with -h and -p, -s or -f.");
+            System.exit(1);
+        }
+
+        SampleWriter.Format format = null;
+        int concurrency = 0;
+        try {
+            format = SampleWriter.Format.valueOf(commandLine.getOptionValue("dump-format", "ndjson").toUpperCase());
+            concurrency = Integer.parseInt(commandLine.getOptionValue("concurrency", String.valueOf(Dumper.DEFAULT_CONCURRENCY)));
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Invalid dump format or concurrency: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            Dumper dumper = DumpCmd.dump(servers, "*:*", commandLine.getOptionValue("dump"), format, concurrency);
+            System.err.println("Dumped " + dumper.getValues() + " values (" + dumper.getErrors() + " errors) from "
+                               + dumper.getMBeans() + " mbeans on " + dumper.getServers() + " servers in " + dumper.getMillis() + " ms.");
+        }
+        catch (IOException e) {
+            System.err.println("Error writing dump: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (RuntimeException e) {
+            System.err.println("Error while dumping: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+
+    private void export() {
+        if (Jmx.getInstance().getServers().length == 0 && Exporter.getMappings().isEmpty()) {
+            System.err.println("Nothing to export; please connect with -h and -p, -s or -f.");
+            System.exit(1);
+        }
+
+        int port = 0;
+        long interval = 0;
+        int concurrency = 0;
+        try {
+            port = Integer.parseInt(commandLine.getOptionValue("export"));
+            interval = Long.parseLong(commandLine.getOptionValue("export-interval", String.valueOf(Exporter.DEFAULT_INTERVAL)));
+            concurrency = Integer.parseInt(commandLine.getOptionValue("concurrency", String.valueOf(FanOut.DEFAULT_CONCURRENCY)));
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid export port, interval or concurrency: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            Exporter exporter = Exporter.start(null, port, interval, concurrency);
+            System.err.println("Serving " + exporter.getSeries() + " series on " + exporter.getURL()
+                               + ", refreshed every " + interval + " ms.");
+        }
+        catch (IOException e) {
+            System.err.println("Unable to listen on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+        catch (RuntimeException e) {
+            System.err.println("Error while exporting: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+
+    private void daemon() {
+        int port = 0;
+        int workers = 0;
+        try {
+            port = Integer.parseInt(commandLine.getOptionValue("listen"));
+            workers = Integer.parseInt(commandLine.getOptionValue("workers", String.valueOf(Daemon.DEFAULT_WORKERS)));
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid port or number of workers: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            Daemon.serve(port, workers, commandLine.getOptionValue("daemon-file", Client.getDefaultDaemonFile()), commandLine.getOptionValues("include"));
+        }
+        catch (IOException e) {
+            System.err.println("Daemon error: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (RuntimeException e) {
+            System.err.println("Daemon error: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+
+    /** Whether anything after connecting will evaluate Tcl. */
+    private boolean needsInterpreter() {
+        if (commandLine.hasOption("dump") || commandLine.hasOption("listen")) {
+            return false;
+        }
+        return commandLine.hasOption("include") || commandLine.getArgs().length > 0
+            || commandLine.hasOption("interactive") || !commandLine.hasOption("export");
     }
 
 
@@ -256,6 +531,12 @@ public final class Main {
     */
     public static void main(String[] args) {
 
+        // jmxsh get, invoke and list never start an interpreter, unless
+        // there is a script of that name.
+        if (args.length > 0 && OneShot.isCommand(args[0])) {
+            System.exit(OneShot.run(args));
+        }
+
         Main mainObj = new Main();
 
         try {
@@ -286,13 +567,20 @@ public final class Main {
                 System.exit(1);
             }
 
-            String logfile = commandLine.getOptionValue("logfile", "/dev/null");
-            try {
-                BasicConfigurator.configure(new FileAppender(new PatternLayout("%r [%t] %-5p %c %x - %m%n"), logfile));
+            // Without a log file, nothing is logged, so messages are
+            // not even formatted.
+
+            if (commandLine.hasOption("logfile")) {
+                try {
+                    BasicConfigurator.configure(new FileAppender(new PatternLayout("%r [%t] %-5p %c %x - %m%n"), commandLine.getOptionValue("logfile")));
+                }
+                catch (IOException e) {
+                    System.err.println("Unable to open logfile: " + e.getMessage());
+                    System.exit(1);
+                }
             }
-            catch (IOException e) {
-                System.err.println("Unable to open logfile: " + e.getMessage());
-                System.exit(1);
+            else {
+                Logger.getRootLogger().setLevel(Level.OFF);
             }
 
             if (commandLine.hasOption("help")) {
@@ -311,10 +599,51 @@ public final class Main {
 
             // 2. Make any specified JMX connections.
 
+            try {
+                if (commandLine.hasOption("connect-timeout") && !commandLine.hasOption("hosts-file")) {
+                    Jmx.getInstance().setConnectTimeout(Long.parseLong(commandLine.getOptionValue("connect-timeout")));
+                }
+                if (commandLine.hasOption("call-timeout")) {
+                    Jmx.getInstance().setCallTimeout(Long.parseLong(commandLine.getOptionValue("call-timeout")));
+                }
+            }
+            catch (NumberFormatException e) {
+                System.err.println("Invalid timeout: " + e.getMessage());
+                System.exit(1);
+            }
+
             if (commandLine.hasOption("host") && commandLine.hasOption("port")) {
+                startConnect();
+            }
+
+            // 2a. While that opens, create the interpreter, if a script,
+            //     include file or session will need one.
+
+            if (needsInterpreter()) {
+                JInterp.getInstance();
+            }
+
+            if (opening != null) {
                 connect();
             }
 
+            if (commandLine.hasOption("hosts-file")) {
+                connectAll();
+            }
+
+            // 3. If a dump was asked for, write it and exit.
+
+            if (commandLine.hasOption("dump")) {
+                dump();
+            }
+
+            // 3b. If asked to be a daemon, serve clients until killed.
+            //     Each worker sources the include files itself.
+
+            if (commandLine.hasOption("listen")) {
+                daemon();
+            }
+
             // 4. Source in any include files.
 
             String[] includeFiles = commandLine.getOptionValues("include");
@@ -325,7 +654,8 @@ public final class Main {
                 }
             }
 
-            // 5a. If script file name provided, run it and exit.
+            // 5a. If script file name provided, run it and exit,
+            //     unless exporting.
 
             String[] scriptArgs = commandLine.getArgs();
 
@@ -338,12 +668,23 @@ public final class Main {
 
                 JInterp.evaluateFile(scriptName);
 
+                if (!commandLine.hasOption("interactive") && !commandLine.hasOption("export")) {
+                    System.exit(0);
+                }
+            }
+
+            // 5b. If exporting, serve until killed, or alongside an
+            //     interactive session if -I was given.
+
+            if (commandLine.hasOption("export")) {
+                export();
                 if (!commandLine.hasOption("interactive")) {
+                    JInterp.processTclEvents();
                     System.exit(0);
                 }
             }
 
-            // 5b. Otherwise, start interactive session.
+            // 5c. Otherwise, start interactive session.
 
             interactive = true;
             historyEnabled = true;
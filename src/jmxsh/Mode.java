@@ -30,7 +30,7 @@ abstract class Mode {
     abstract void   displayHelp();
 
     static Mode getBrowseModeInstance() {
-	return BrowseMode.instance;
+	return BrowseMode.getInstance();
     }
 
     static Mode getShellModeInstance() {
@@ -0,0 +1,490 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import javax.management.*;
+import javax.management.remote.JMXServiceURL;
+import org.apache.commons.cli.*;
+import org.apache.log4j.*;
+
+/**
+   The one-shot commands, jmxsh get, invoke and list, for shell
+   scripts that read an attribute or call an operation and exit.
+
+   Main hands the command line over to run() before anything else,
+   and from there everything goes straight to Jmx: no Tcl class is
+   ever loaded, no interpreter is created and no script is parsed.
+
+   Values are written one per line, as NDJSON or CSV, in the same
+   records jmx_dump writes, with composite values flattened the same
+   way.  A value that could not be read becomes an error record, and
+   the exit code is then 1.  For invoke, the operation's name takes
+   the place of the attribute.  list writes one ObjectName per line.
+*/
+class OneShot {
+
+    static private Logger logger = Logger.getLogger(OneShot.class);
+
+    /** Parameter types that have no valueOf(String) of their own. */
+    static private final Map<String, Class<?>> WRAPPERS = new HashMap<String, Class<?>>();
+
+    static {
+	WRAPPERS.put("byte", Byte.class);
+	WRAPPERS.put("short", Short.class);
+	WRAPPERS.put("int", Integer.class);
+	WRAPPERS.put("long", Long.class);
+	WRAPPERS.put("float", Float.class);
+	WRAPPERS.put("double", Double.class);
+	WRAPPERS.put("boolean", Boolean.class);
+	WRAPPERS.put("char", Character.class);
+    }
+
+    private String command;
+    private Options opts;
+    private CommandLine commandLine;
+    private String server;
+    private int errors;
+
+    private OneShot(String command) {
+	this.command = command;
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("JMX Service URL of the server.")
+		.withArgName("SERVER")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("host")
+		.withDescription("Hostname or IP address of the server.")
+		.withArgName("HOST")
+		.hasArg()
+		.create("h")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("port")
+		.withDescription("Port of the server.")
+		.withArgName("PORT")
+		.hasArg()
+		.create("p")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("url_path")
+		.withDescription("Path portion of the JMX Service URL.")
+		.withArgName("PATH")
+		.hasArg()
+		.create("T")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("protocol")
+		.withDescription("Choose a connection protocol (rmi|jmxmp), default rmi.")
+		.withArgName("PROTOCOL")
+		.hasArg()
+		.create("R")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("user")
+		.withDescription("Connect with this username.")
+		.withArgName("USER")
+		.hasArg()
+		.create("U")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("password")
+		.withDescription("Connect with this password.")
+		.withArgName("PASSWORD")
+		.hasArg()
+		.create("P")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("timeout")
+		.withDescription("Milliseconds to wait for the connection, and for each call (default " + Jmx.DEFAULT_CONNECT_TIMEOUT + " and " + Jmx.DEFAULT_CALL_TIMEOUT + ", and none for operations).")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("t")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("format")
+		.withDescription("ndjson or csv (default ndjson).")
+		.withArgName("FORMAT")
+		.hasArg()
+		.create("F")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    /**
+       Whether the first argument to jmxsh names a one-shot command.
+       An existing file of that name is a script, as it always was.
+    */
+    static boolean isCommand(String name) {
+	if (!name.equals("get") && !name.equals("invoke") && !name.equals("list")) {
+	    return false;
+	}
+	return !new File(name).exists();
+    }
+
+    /**
+       Run a one-shot command.
+
+       @param args The whole command line, the command first.
+       @return The exit code: 0, 1 if anything failed, or 2 for a
+       usage error.
+    */
+    static int run(String[] args) {
+	// There is no log file here, and log4j would warn that it has
+	// no appender.
+	Logger.getRootLogger().setLevel(Level.OFF);
+
+	OneShot oneShot = new OneShot(args[0]);
+	try {
+	    return oneShot.execute(Arrays.copyOfRange(args, 1, args.length));
+	}
+	catch (ParseException e) {
+	    System.err.println("jmxsh " + args[0] + ": " + e.getMessage());
+	    return 2;
+	}
+	catch (IOException e) {
+	    System.err.println("jmxsh " + args[0] + ": " + e.getMessage());
+	    return 1;
+	}
+	catch (RuntimeException e) {
+	    logger.debug("Error in jmxsh " + args[0], e);
+	    System.err.println("jmxsh " + args[0] + ": " + e.getMessage());
+	    return 1;
+	}
+    }
+
+    private int execute(String[] args)
+	throws ParseException, IOException {
+
+	this.commandLine = new PosixParser().parse(this.opts, args);
+	String[] operands = this.commandLine.getArgs();
+	int needed = this.command.equals("get") ? 1 : this.command.equals("invoke") ? 2 : 0;
+
+	if (this.commandLine.hasOption("help") || operands.length < needed) {
+	    showUsage();
+	    return this.commandLine.hasOption("help") ? 0 : 2;
+	}
+
+	SampleWriter.Format format = null;
+	try {
+	    format = SampleWriter.Format.valueOf(this.commandLine.getOptionValue("format", "ndjson").toUpperCase());
+	    if (this.commandLine.hasOption("timeout")) {
+		long timeout = Long.parseLong(this.commandLine.getOptionValue("timeout"));
+		Jmx.getInstance().setConnectTimeout(timeout);
+		Jmx.getInstance().setCallTimeout(timeout);
+		Jmx.getInstance().setInvokeTimeout(timeout);
+	    }
+	}
+	catch (IllegalArgumentException e) {
+	    throw new ParseException("Invalid format or timeout: " + e.getMessage());
+	}
+
+	connect();
+	SampleWriter writer = new SampleWriter(new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 8192), format, true);
+	try {
+	    if (this.command.equals("get")) {
+		writer.writeHeader();
+		get(writer, operands[0], Arrays.copyOfRange(operands, 1, operands.length));
+	    }
+	    else if (this.command.equals("invoke")) {
+		writer.writeHeader();
+		invoke(writer, operands[0], operands[1], Arrays.copyOfRange(operands, 2, operands.length));
+	    }
+	    else {
+		list((operands.length > 0) ? operands[0] : "*:*");
+	    }
+	}
+	finally {
+	    writer.flush();
+	    // Closing also stops the notification forwarder, if the
+	    // MBeanInfo cache started one, so the JVM exits at once.
+	    Jmx.getInstance().disconnect(this.server);
+	}
+	return (this.errors == 0) ? 0 : 1;
+    }
+
+    private void showUsage() {
+	String operands = this.command.equals("get") ? "MBEAN [ATTRIBUTE ...]"
+	    : this.command.equals("invoke") ? "MBEAN OPERATION [ARG ...]" : "[PATTERN]";
+	new HelpFormatter().printHelp(
+	    "jmxsh " + this.command + " [-?] [-s url | -h host -p port] [-U user -P password] [-t millis] [-F format] " + operands,
+	    "======================================================================",
+	    this.opts,
+	    "======================================================================",
+	    false
+	);
+	if (this.command.equals("get")) {
+	    System.out.println("Reads attributes of an mbean, or of every mbean matching a");
+	    System.out.println("pattern, in one call per mbean; with no attributes, all of them.");
+	    System.out.println("Writes the same records as jmx_dump.");
+	}
+	else if (this.command.equals("invoke")) {
+	    System.out.println("Invokes the operation of that name taking as many parameters as");
+	    System.out.println("there are ARGs, and writes the result as a record whose");
+	    System.out.println("attribute is the operation.  Parameters of primitive types, their");
+	    System.out.println("wrappers, String, ObjectName, enums and classes with a valueOf(String)");
+	    System.out.println("or a String constructor can be given; for others, use jmx_invoke.");
+	}
+	else {
+	    System.out.println("Writes the names of the mbeans matching PATTERN (default *:*),");
+	    System.out.println("one per line, sorted.");
+	}
+	System.out.println("");
+	System.out.println("No Tcl interpreter is started; for anything more, write a script.");
+    }
+
+    private void connect() throws ParseException {
+	String url = this.commandLine.getOptionValue("server");
+	String host = this.commandLine.getOptionValue("host");
+	String port = this.commandLine.getOptionValue("port");
+	String user = this.commandLine.getOptionValue("user");
+	String password = this.commandLine.getOptionValue("password");
+
+	if (user != null && password == null) {
+	    Console console = System.console();
+	    if (console == null) {
+		throw new ParseException("No password given, and no terminal to ask for it on.");
+	    }
+	    char[] typed = console.readPassword("Password: ");
+	    password = (typed == null) ? "" : new String(typed);
+	}
+
+	JMXServiceURL serviceURL = null;
+	try {
+	    if (url != null) {
+		serviceURL = new JMXServiceURL(url);
+	    }
+	    else if (host != null && port != null) {
+		serviceURL = Jmx.getInstance().makeURL(host, Integer.parseInt(port),
+						       this.commandLine.getOptionValue("protocol", "rmi"),
+						       this.commandLine.getOptionValue("url_path"));
+	    }
+	    else {
+		throw new ParseException("No server specified; please use -s, or -h and -p.");
+	    }
+	}
+	catch (IOException e) {
+	    throw new ParseException("Invalid URL: " + e.getMessage());
+	}
+	catch (NumberFormatException e) {
+	    throw new ParseException("Invalid port: " + port);
+	}
+
+	Jmx.getInstance().open(serviceURL, user, password);
+	this.server = serviceURL.toString();
+    }
+
+    private void get(SampleWriter writer, String pattern, String[] attributes)
+	throws IOException {
+
+	ObjectName name = Jmx.getInstance().getObjectName(pattern);
+	String[] mbeans = name.isPattern() ? Jmx.getInstance().queryNames(this.server, pattern) : new String[] { pattern };
+
+	for (String mbean : mbeans) {
+	    long timestamp = System.currentTimeMillis();
+	    try {
+		String[] names = (attributes.length > 0) ? attributes : readable(mbean);
+		Map<String, String> failures = new LinkedHashMap<String, String>();
+		Map<String, Object> values = Jmx.getInstance().getAttributeValues(this.server, mbean, names, failures);
+		for (String attribute : names) {
+		    if (values.containsKey(attribute)) {
+			write(writer, timestamp, mbean, attribute, values.get(attribute));
+		    }
+		    else {
+			writer.error(timestamp, this.server, mbean, attribute, failures.get(attribute));
+			this.errors++;
+		    }
+		}
+	    }
+	    catch (RuntimeException e) {
+		writer.error(timestamp, this.server, mbean, "", e.getMessage());
+		this.errors++;
+	    }
+	}
+    }
+
+    private String[] readable(String mbean) {
+	List<String> result = new ArrayList<String>();
+	for (MBeanAttributeInfo info : Jmx.getInstance().getAttributes(this.server, mbean)) {
+	    if (info.isReadable()) {
+		result.add(info.getName());
+	    }
+	}
+	return result.toArray(new String[result.size()]);
+    }
+
+    private void invoke(SampleWriter writer, String mbean, String operation, String[] args)
+	throws IOException {
+
+	// Of the overloads taking that many parameters, the first the
+	// arguments convert to.
+	String[] signature = null;
+	Object[] params = null;
+	RuntimeException failure = null;
+	for (MBeanOperationInfo info : Jmx.getInstance().getOperations(this.server, mbean)) {
+	    if (!info.getName().equals(operation) || info.getSignature().length != args.length) {
+		continue;
+	    }
+	    MBeanParameterInfo[] parameters = info.getSignature();
+	    signature = new String[parameters.length];
+	    params = new Object[parameters.length];
+	    try {
+		for (int i = 0; i < parameters.length; i++) {
+		    signature[i] = parameters[i].getType();
+		    params[i] = parse(signature[i], args[i]);
+		}
+		failure = null;
+		break;
+	    }
+	    catch (IllegalArgumentException e) {
+		if (failure == null || failure instanceof UnsupportedOperationException) {
+		    failure = e;
+		}
+	    }
+	    catch (UnsupportedOperationException e) {
+		if (failure == null) {
+		    failure = e;
+		}
+	    }
+	}
+	if (failure != null) {
+	    throw failure;
+	}
+	if (signature == null) {
+	    throw new IllegalArgumentException("No operation '" + operation + "' taking " + args.length + " parameters on " + mbean + ".");
+	}
+
+	long timestamp = System.currentTimeMillis();
+	Object result = Jmx.getInstance().invoke(this.server, mbean, operation, params, signature);
+	write(writer, timestamp, mbean, operation, result);
+    }
+
+    private void list(String pattern) {
+	for (String mbean : Jmx.getInstance().queryNames(this.server, pattern)) {
+	    System.out.println(mbean);
+	}
+    }
+
+    private void write(SampleWriter writer, long timestamp, String mbean, String attribute, Object value)
+	throws IOException {
+
+	List<Dumper.Row> rows = new ArrayList<Dumper.Row>();
+	Dumper.flatten(rows, attribute, value, 0);
+	for (Dumper.Row row : rows) {
+	    writer.sample(timestamp, this.server, mbean, row.attribute, row.value);
+	}
+    }
+
+    /**
+       Convert a command-line argument to a parameter type, without
+       Converters, which work on Tcl objects.
+
+       @throws IllegalArgumentException if the text is not a value
+       of the type.
+       @throws UnsupportedOperationException if the type cannot be
+       given as text.
+    */
+    static private Object parse(String type, String text) {
+	try {
+	    Class<?> cls = WRAPPERS.get(type);
+	    if (cls == null) {
+		cls = Class.forName(type);
+	    }
+
+	    if (cls == String.class || cls == Object.class) {
+		return text;
+	    }
+	    if (cls == Boolean.class) {
+		if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("yes") || text.equals("1")) {
+		    return Boolean.TRUE;
+		}
+		if (text.equalsIgnoreCase("false") || text.equalsIgnoreCase("no") || text.equals("0")) {
+		    return Boolean.FALSE;
+		}
+		throw new IllegalArgumentException("Invalid boolean value '" + text + "'.");
+	    }
+	    if (cls == Character.class) {
+		if (text.length() != 1) {
+		    throw new IllegalArgumentException("Invalid char value '" + text + "'.");
+		}
+		return Character.valueOf(text.charAt(0));
+	    }
+	    if (cls.isEnum()) {
+		for (Object constant : cls.getEnumConstants()) {
+		    if (((Enum<?>) constant).name().equalsIgnoreCase(text)) {
+			return constant;
+		    }
+		}
+		throw new IllegalArgumentException("Invalid " + cls.getSimpleName() + " value '" + text + "', should be one of " + Arrays.toString(cls.getEnumConstants()) + ".");
+	    }
+
+	    try {
+		Method valueOf = cls.getMethod("valueOf", String.class);
+		if (Modifier.isStatic(valueOf.getModifiers()) && cls.isAssignableFrom(valueOf.getReturnType())) {
+		    return valueOf.invoke(null, text);
+		}
+	    }
+	    catch (NoSuchMethodException e) {
+		// Try the constructor.
+	    }
+	    return cls.getConstructor(String.class).newInstance(text);
+	}
+	catch (ClassNotFoundException e) {
+	    throw new UnsupportedOperationException("Cannot pass a " + type + " from the command line; please use jmx_invoke.");
+	}
+	catch (NoSuchMethodException e) {
+	    throw new UnsupportedOperationException("Cannot pass a " + type + " from the command line; please use jmx_invoke.");
+	}
+	catch (InvocationTargetException e) {
+	    throw new IllegalArgumentException("Invalid " + type + " value '" + text + "'.", e.getCause());
+	}
+	catch (IllegalAccessException e) {
+	    throw new UnsupportedOperationException("Cannot pass a " + type + " from the command line; please use jmx_invoke.");
+	}
+	catch (InstantiationException e) {
+	    throw new UnsupportedOperationException("Cannot pass a " + type + " from the command line; please use jmx_invoke.");
+	}
+    }
+
+}
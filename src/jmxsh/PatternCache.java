@@ -0,0 +1,175 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+   Shared cache of compiled regular expressions.
+
+   String.matches() compiles its argument on every call, which adds up
+   when the same expression is tested against every domain and mbean
+   of a large server.  Patterns are kept here instead, bounded and
+   least-recently-used, and may be used from any thread.  Globs, as
+   typed in browse mode, are translated to regular expressions and
+   cached alongside them.
+
+   Callers matching many inputs should take a Matcher from matcher()
+   and reset() it for each one; it accepts any CharSequence, so
+   substrings and buffers can be matched without copying them.
+*/
+
+class PatternCache {
+
+    static final int DEFAULT_MAX_SIZE = 256;
+
+    private final static PatternCache instance = new PatternCache(DEFAULT_MAX_SIZE);
+
+    private LinkedHashMap<String, Pattern> entries;
+    private int maxSize;
+    private long hits;
+    private long misses;
+
+    static PatternCache getInstance() {
+	return instance;
+    }
+
+    PatternCache(int maxSize) {
+	this.maxSize = maxSize;
+	this.entries = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+
+	    protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+		return size() > PatternCache.this.maxSize;
+	    }
+	};
+    }
+
+    /**
+       The compiled form of a regular expression.
+
+       @throws IllegalArgumentException (PatternSyntaxException) if
+	       the expression is invalid.
+    */
+    Pattern regex(String regex) {
+	return lookup("r:" + regex, regex, 0);
+    }
+
+    /**
+       The compiled form of a glob: '*' matches any run of characters,
+       '?' any single one, and [...] a character class ([!...] negated).
+       A backslash escapes the next character.
+    */
+    Pattern glob(String glob, boolean ignoreCase) {
+	return lookup((ignoreCase ? "i:" : "g:") + glob, globToRegex(glob), ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+    }
+
+    /** A fresh matcher for the expression, to reset() against each input. */
+    Matcher matcher(String regex) {
+	return regex(regex).matcher("");
+    }
+
+    /** As String.matches(), without recompiling the expression. */
+    boolean matches(String regex, CharSequence input) {
+	return regex(regex).matcher(input).matches();
+    }
+
+    private Pattern lookup(String key, String regex, int flags) {
+	synchronized (this) {
+	    Pattern pattern = this.entries.get(key);
+	    if (pattern != null) {
+		this.hits++;
+		return pattern;
+	    }
+	    this.misses++;
+	}
+
+	// Compile outside the lock; two threads racing on the same
+	// expression just compile it twice.
+	Pattern pattern = Pattern.compile(regex, flags);
+	synchronized (this) {
+	    if (this.maxSize > 0) {
+		this.entries.put(key, pattern);
+	    }
+	}
+	return pattern;
+    }
+
+    static String globToRegex(String glob) {
+	StringBuilder sb = new StringBuilder(glob.length() + 16);
+	int i = 0;
+
+	while (i < glob.length()) {
+	    char c = glob.charAt(i);
+
+	    if (c == '*') {
+		sb.append(".*");
+	    }
+	    else if (c == '?') {
+		sb.append('.');
+	    }
+	    else if (c == '\\' && i + 1 < glob.length()) {
+		i++;
+		quote(sb, glob.charAt(i));
+	    }
+	    else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+		int end = glob.indexOf(']', i + 2);
+		sb.append('[');
+		int start = i + 1;
+		if (glob.charAt(start) == '!' || glob.charAt(start) == '^') {
+		    sb.append('^');
+		    start++;
+		}
+		for (int j = start; j < end; j++) {
+		    char cc = glob.charAt(j);
+		    if (cc == '[' || cc == '\\' || cc == '&' || cc == '^') {
+			sb.append('\\');
+		    }
+		    sb.append(cc);
+		}
+		sb.append(']');
+		i = end;
+	    }
+	    else {
+		quote(sb, c);
+	    }
+	    i++;
+	}
+	return sb.toString();
+    }
+
+    static private void quote(StringBuilder sb, char c) {
+	if (!Character.isLetterOrDigit(c) && c != ' ' && c != '_') {
+	    sb.append('\\');
+	}
+	sb.append(c);
+    }
+
+    synchronized int size() { return this.entries.size(); }
+
+    synchronized long getHits() { return this.hits; }
+
+    synchronized long getMisses() { return this.misses; }
+
+}
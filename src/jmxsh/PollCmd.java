@@ -0,0 +1,279 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/**
+   Start, stop and inspect background samplers that write to a file.
+   Registered twice: as jmx_poll, writing CSV by default, and as
+   jmx_record, writing a binary Recording.
+*/
+class PollCmd implements Command {
+
+    private final static PollCmd instance = new PollCmd("jmx_poll", "csv");
+    private final static PollCmd recordInstance = new PollCmd("jmx_record", Poller.RECORDING);
+
+    private String name;
+    private String defaultFormat;
+    private Options opts;
+
+    static PollCmd getInstance() {
+	return instance;
+    }
+
+    static PollCmd getRecordInstance() {
+	return recordInstance;
+    }
+
+    private PollCmd(String name, String defaultFormat)  {
+	this.name = name;
+	this.defaultFormat = defaultFormat;
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("Server containing mbean.")
+		.withArgName("SERVER")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("mbean")
+		.withDescription("MBean, or ObjectName pattern, to sample.")
+		.withArgName("MBEAN")
+		.hasArg()
+		.create("m")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("interval")
+		.withDescription("Milliseconds between samples (default 10000).")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("i")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("format")
+		.withDescription("Output format, csv, ndjson or " + Poller.RECORDING + " (default " + defaultFormat + ").")
+		.withArgName("FORMAT")
+		.hasArg()
+		.create("f")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("output")
+		.withDescription("File to append the samples to; for " + Poller.RECORDING + ", a directory.")
+		.withArgName("FILE")
+		.hasArg()
+		.create("o")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    private void start(Interp interp, CommandLine cl, String[] args)
+	throws TclException {
+
+	String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+	String mbean  = cl.getOptionValue("mbean",  Utils.getGlobal(interp, "MBEAN"));
+	String filename = cl.getOptionValue("output");
+
+	if (server == null) {
+	    throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	}
+
+	if (mbean == null) {
+	    throw new TclException(interp, "No mbean specified; please set MBEAN variable or use -m option.", TCL.ERROR);
+	}
+
+	if (filename == null) {
+	    throw new TclException(interp, "No output file specified; please use the -o option.", TCL.ERROR);
+	}
+
+	List<String> attributes = new ArrayList<String>();
+	for (int i = 1; i < args.length; i++) {
+	    for (TclObject element : TclList.getElements(interp, TclString.newInstance(args[i]))) {
+		attributes.add(element.toString());
+	    }
+	}
+
+	if (attributes.isEmpty()) {
+	    throw new TclException(interp, "No attributes specified.", TCL.ERROR);
+	}
+
+	String format = cl.getOptionValue("format", this.defaultFormat).toLowerCase();
+	long interval = 0;
+	try {
+	    interval = Long.parseLong(cl.getOptionValue("interval", "10000"));
+	}
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid interval: " + e.getMessage(), TCL.ERROR);
+	}
+
+	Poller poller = Poller.start(server, mbean, attributes.toArray(new String[attributes.size()]), interval, filename, format);
+	interp.setResult(poller.id);
+    }
+
+    private TclObject status(Interp interp, Poller poller)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	TclList.append(interp, result, TclString.newInstance("server"));
+	TclList.append(interp, result, TclString.newInstance(poller.server));
+	TclList.append(interp, result, TclString.newInstance("mbean"));
+	TclList.append(interp, result, TclString.newInstance(poller.pattern));
+	TclList.append(interp, result, TclString.newInstance("attributes"));
+	TclList.append(interp, result, Utils.array2list(poller.attributes));
+	TclList.append(interp, result, TclString.newInstance("interval"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(poller.interval)));
+	TclList.append(interp, result, TclString.newInstance("file"));
+	TclList.append(interp, result, TclString.newInstance(poller.filename));
+	TclList.append(interp, result, TclString.newInstance("format"));
+	TclList.append(interp, result, TclString.newInstance(poller.format));
+	TclList.append(interp, result, TclString.newInstance("ticks"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(poller.getTicks())));
+	TclList.append(interp, result, TclString.newInstance("missed"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(poller.getMissed())));
+	TclList.append(interp, result, TclString.newInstance("samples"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(poller.getSamples())));
+	TclList.append(interp, result, TclString.newInstance("errors"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(poller.getErrors())));
+	TclList.append(interp, result, TclString.newInstance("lastError"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(poller.getLastError())));
+	return result;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help") || args.length == 0) {
+		new HelpFormatter().printHelp (
+		    this.name + " start|stop|status [-?] [-s server] [-m mbean] [-i millis] [-f csv|ndjson|rec] [-o file] [ID | ATTRIBUTE ...]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		if (this.defaultFormat.equals(Poller.RECORDING)) {
+		    System.out.println("jmx_record is jmx_poll writing a recording: a directory of");
+		    System.out.println("compressed, append-only segments that jmx_query and jmx_replay");
+		    System.out.println("read back.  A sample typically takes a few bytes rather than");
+		    System.out.println("a line of text.  Numeric and boolean values are recorded,");
+		    System.out.println("including the items of CompositeData such as HeapMemoryUsage.");
+		    System.out.println("Samples are written in blocks, the last of which reaches the");
+		    System.out.println("disk within five minutes, or when the recorder is stopped.");
+		    System.out.println("");
+		    System.out.println("  jmx_record start -m java.lang:type=Memory -i 5000 -o mem.rec HeapMemoryUsage");
+		    System.out.println("    starts a recorder and returns its id (e.g. rec1).");
+		    System.out.println("  jmx_record stop rec1     stops it and writes what is left.");
+		    System.out.println("  jmx_record status [rec1] returns counters, as jmx_poll does.");
+		    return;
+		}
+		System.out.println("jmx_poll samples attributes in the background, at a fixed");
+		System.out.println("rate, and appends them to a file with a timestamp.  It runs");
+		System.out.println("on its own threads, so the shell stays usable meanwhile.");
+		System.out.println("");
+		System.out.println("  jmx_poll start -m java.lang:type=Memory -i 5000 -o mem.csv HeapMemoryUsage");
+		System.out.println("    starts a poller and returns its id (e.g. poll1).  The mbean");
+		System.out.println("    may be an ObjectName pattern, in which case every matching");
+		System.out.println("    mbean is sampled on each tick.");
+		System.out.println("  jmx_poll stop poll1      stops a poller ('all' stops every one).");
+		System.out.println("  jmx_poll status [poll1]  returns counters for each poller, including");
+		System.out.println("    ticks that were missed because the previous one ran late.");
+		System.out.println("  -f rec writes a binary recording, as jmx_record does.");
+		return;
+	    }
+
+	    String subcommand = args[0];
+
+	    if ((subcommand.equals("start") || subcommand.equals("stop")) && Daemon.inScript()) {
+		throw new TclException(interp, "Pollers are shared by every daemon worker and outlive the script; start them in a -i file.", TCL.ERROR);
+	    }
+
+	    if (subcommand.equals("start")) {
+		start(interp, cl, args);
+	    }
+	    else if (subcommand.equals("stop")) {
+		if (args.length < 2) {
+		    throw new TclException(interp, "No poller specified.", TCL.ERROR);
+		}
+		if (args[1].equals("all")) {
+		    for (Poller poller : Poller.getAll()) {
+			poller.stop();
+		    }
+		}
+		else {
+		    Poller.get(args[1]).stop();
+		}
+	    }
+	    else if (subcommand.equals("status")) {
+		if (args.length > 1) {
+		    interp.setResult(status(interp, Poller.get(args[1])));
+		    return;
+		}
+		TclObject result = TclList.newInstance();
+		for (Poller poller : Poller.getAll()) {
+		    TclList.append(interp, result, TclString.newInstance(poller.id));
+		    TclList.append(interp, result, status(interp, poller));
+		}
+		interp.setResult(result);
+	    }
+	    else {
+		throw new TclException(interp, "Unknown subcommand '" + subcommand + "', should be start, stop or status.", TCL.ERROR);
+	    }
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import org.apache.log4j.*;
+
+/**
+   A background sampler started by jmx_poll.
+
+   Reads a set of attributes from every MBean matching a pattern at a
+   fixed rate, on a scheduler outside of the Tcl event loop, and
+   appends the samples to a file: CSV or NDJSON through a
+   SampleWriter, or a binary Recording for jmx_record.  If a tick runs late, the ticks it
+   overran are counted as missed rather than run back to back.
+
+   The scheduler only keeps time: each tick's reads run on the FanOut
+   pool, under the call deadline, one tick at a time per poller, so a
+   hung target holds up its own poller and no other.  The file is
+   only locked while samples are written, so stop() never waits on a
+   remote call.
+*/
+
+class Poller implements Runnable {
+
+    static private Logger logger = Logger.getLogger(Poller.class);
+
+    static final String RECORDING = "rec";
+
+    static private ScheduledExecutorService scheduler =
+	Executors.newSingleThreadScheduledExecutor(new FanOut.NamedThreadFactory("jmxsh-poller"));
+
+    static private Map<String, Poller> pollers = new ConcurrentHashMap<String, Poller>();
+    static private AtomicInteger nextId = new AtomicInteger(1);
+
+    final String id;
+    final String server;
+    final String pattern;
+    final String[] attributes;
+    final long interval;
+    final String filename;
+    final String format;
+    final boolean isPattern;
+
+    private Dumper.Sink writer;
+    private Flushable flushable;
+    private Closeable closeable;
+    private ScheduledFuture<?> future;
+    private long startMillis;
+    private long lastTick;
+
+    /** Set while a tick's reads are in flight. */
+    private AtomicBoolean sampling = new AtomicBoolean(false);
+    private volatile boolean stopped;
+    /** Held to write samples, and to close the file. */
+    private final Object writeLock = new Object();
+
+    private volatile long ticks;
+    private volatile long missed;
+    private volatile long samples;
+    private volatile long errors;
+    private volatile String lastError;
+
+    private Poller(String server, String pattern, String[] attributes, long interval, String filename, String format) {
+	this.id = (format.equals(RECORDING) ? "rec" : "poll") + nextId.getAndIncrement();
+	this.server = server;
+	this.pattern = pattern;
+	this.attributes = attributes;
+	this.interval = interval;
+	this.filename = filename;
+	this.format = format;
+	this.isPattern = Jmx.getInstance().getObjectName(pattern).isPattern();
+	this.lastTick = -1;
+    }
+
+    /**
+       Create, register and start a poller.  The format is csv, ndjson
+       or rec; for rec, filename is the recording's directory.
+    */
+    static Poller start(String server, String pattern, String[] attributes, long interval, String filename, String format) {
+	if (interval < 1) {
+	    throw new IllegalArgumentException("Interval must be at least one millisecond.");
+	}
+
+	Poller poller = new Poller(server, pattern, attributes, interval, filename, format);
+	poller.open();
+	pollers.put(poller.id, poller);
+	poller.startMillis = System.currentTimeMillis();
+	poller.future = scheduler.scheduleAtFixedRate(poller, 0, interval, TimeUnit.MILLISECONDS);
+	logger.info("Started " + poller.id + " writing to " + filename);
+	return poller;
+    }
+
+    static Poller get(String id) {
+	Poller poller = pollers.get(id);
+	if (poller == null) {
+	    throw new IllegalArgumentException("No such poller '" + id + "'.");
+	}
+	return poller;
+    }
+
+    static Collection<Poller> getAll() {
+	return new TreeMap<String, Poller>(pollers).values();
+    }
+
+    private void open() {
+	if (this.format.equals(RECORDING)) {
+	    try {
+		Recording.Writer recording = new Recording.Writer(this.filename);
+		this.writer = recording;
+		this.flushable = recording;
+		this.closeable = recording;
+	    }
+	    catch (IOException e) {
+		logger.error("Error opening recording.", e);
+		throw new IllegalArgumentException("Unable to record to '" + this.filename + "' - " + e.getMessage(), e);
+	    }
+	    return;
+	}
+
+	SampleWriter.Format sampleFormat = null;
+	try {
+	    sampleFormat = SampleWriter.Format.valueOf(this.format.toUpperCase());
+	}
+	catch (IllegalArgumentException e) {
+	    throw new IllegalArgumentException("Unknown format '" + this.format + "', should be csv, ndjson or " + RECORDING + ".");
+	}
+	try {
+	    File file = new File(this.filename);
+	    boolean empty = !file.exists() || file.length() == 0;
+	    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 65536);
+	    SampleWriter sampleWriter = new SampleWriter(out, sampleFormat);
+	    if (empty) {
+		sampleWriter.writeHeader();
+	    }
+	    this.writer = sampleWriter;
+	    this.flushable = sampleWriter;
+	    this.closeable = sampleWriter;
+	}
+	catch (IOException e) {
+	    logger.error("Error opening poll file.", e);
+	    throw new IllegalArgumentException("Unable to open '" + this.filename + "' - " + e.getMessage(), e);
+	}
+    }
+
+    void stop() {
+	this.stopped = true;
+	pollers.remove(this.id);
+	this.future.cancel(false);
+	synchronized (this.writeLock) {
+	    try {
+		this.closeable.close();
+	    }
+	    catch (IOException e) {
+		logger.error("Error closing poll file.", e);
+	    }
+	}
+	logger.info("Stopped " + this.id);
+    }
+
+    /** A tick of the scheduler: hand the reads to the FanOut pool. */
+    public void run() {
+	final long now = System.currentTimeMillis();
+	long tick = (now - this.startMillis) / this.interval;
+
+	if (this.stopped) {
+	    return;
+	}
+
+	// A late tick makes the executor run the queued ones back to
+	// back; skip those, and count what was lost.
+	if (tick <= this.lastTick) {
+	    return;
+	}
+	if (this.lastTick >= 0) {
+	    this.missed += tick - this.lastTick - 1;
+	}
+	this.lastTick = tick;
+
+	// The previous tick's reads are still waiting on the server.
+	if (!this.sampling.compareAndSet(false, true)) {
+	    this.missed++;
+	    return;
+	}
+	this.ticks++;
+
+	FanOut.execute(new Runnable() {
+	    public void run() {
+		try {
+		    sample(now);
+		}
+		finally {
+		    Poller.this.sampling.set(false);
+		}
+	    }
+	});
+    }
+
+    private void sample(long now) {
+	Map<String, AttributeList> read = new LinkedHashMap<String, AttributeList>();
+	try {
+	    String[] mbeans = this.isPattern
+		? Jmx.getInstance().queryNames(this.server, this.pattern)
+		: new String[] { this.pattern };
+
+	    for (String mbean : mbeans) {
+		try {
+		    read.put(mbean, Jmx.getInstance().getAttributeList(this.server, mbean, this.attributes));
+		}
+		catch (RuntimeException e) {
+		    logger.debug("Error sampling " + mbean, e);
+		    this.errors++;
+		    this.lastError = mbean + ": " + e.getMessage();
+		}
+	    }
+	}
+	catch (RuntimeException e) {
+	    logger.debug("Error sampling.", e);
+	    this.errors++;
+	    this.lastError = e.getMessage();
+	    return;
+	}
+
+	synchronized (this.writeLock) {
+	    if (this.stopped) {
+		return;
+	    }
+	    try {
+		for (Map.Entry<String, AttributeList> entry : read.entrySet()) {
+		    AttributeList values = entry.getValue();
+		    for (int i = 0; i < values.size(); i++) {
+			Attribute attribute = (Attribute) values.get(i);
+			this.writer.sample(now, this.server, entry.getKey(), attribute.getName(), attribute.getValue());
+			this.samples++;
+		    }
+		}
+		this.flushable.flush();
+	    }
+	    catch (IOException e) {
+		logger.error("Error writing poll file.", e);
+		this.errors++;
+		this.lastError = "Write error: " + e.getMessage();
+	    }
+	    catch (RuntimeException e) {
+		logger.debug("Error sampling.", e);
+		this.errors++;
+		this.lastError = e.getMessage();
+	    }
+	}
+    }
+
+    long getTicks() { return this.ticks; }
+
+    long getMissed() { return this.missed; }
+
+    long getSamples() { return this.samples; }
+
+    long getErrors() { return this.errors; }
+
+    String getLastError() { return this.lastError; }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Read a slice of series from a recording made by jmx_record. */
+class QueryCmd implements Command {
+
+    private final static QueryCmd instance = new QueryCmd();
+
+    private Options opts;
+
+    static QueryCmd getInstance() {
+	return instance;
+    }
+
+    private QueryCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("Glob for the server URLs to include (default all).")
+		.withArgName("GLOB")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("mbean")
+		.withDescription("ObjectName pattern of the mbeans to include (default *:*).")
+		.withArgName("PATTERN")
+		.hasArg()
+		.create("m")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("attribute")
+		.withDescription("Glob for the attributes to include (default all).")
+		.withArgName("GLOB")
+		.hasArg()
+		.create("a")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("begin")
+		.withDescription("Earliest sample time, in epoch milliseconds, or negative for that long before now.")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("b")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("end")
+		.withDescription("Latest sample time, as for -b (default no limit).")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("e")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("list")
+		.withDescription("List the matching series, without their samples.")
+		.hasArg(false)
+		.create("l")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    /** A -b or -e value; negative values count back from now. */
+    static long parseTime(String value, long defaultValue) {
+	if (value == null) {
+	    return defaultValue;
+	}
+	long millis = Long.parseLong(value);
+	return (millis < 0) ? System.currentTimeMillis() + millis : millis;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help") || args.length != 1) {
+		new HelpFormatter().printHelp (
+		    "jmx_query [-?] [-l] [-s glob] [-m pattern] [-a glob] [-b millis] [-e millis] RECORDING",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_query reads samples back from a recording made by");
+		System.out.println("jmx_record.  Only the blocks overlapping the time range are");
+		System.out.println("decoded, so a short slice of a long recording is quick.");
+		System.out.println("");
+		System.out.println("Returns a list with one element per matching series:");
+		System.out.println("  {SERVER MBEAN ATTRIBUTE {TIME VALUE TIME VALUE ...}}");
+		System.out.println("With -l, the samples are replaced by COUNT FIRST LAST, read");
+		System.out.println("from the index without decoding anything.");
+		System.out.println("");
+		System.out.println("  jmx_query -a HeapMemoryUsage.used -b -3600000 mem.rec");
+		System.out.println("    returns the last hour of heap usage.");
+		return;
+	    }
+
+	    long from = 0;
+	    long to = 0;
+	    try {
+		from = parseTime(cl.getOptionValue("begin"), Long.MIN_VALUE);
+		to = parseTime(cl.getOptionValue("end"), Long.MAX_VALUE);
+	    }
+	    catch (NumberFormatException e) {
+		throw new TclException(interp, "Invalid time: " + e.getMessage(), TCL.ERROR);
+	    }
+
+	    Recording.Reader reader = new Recording.Reader(args[0]);
+	    List<Recording.Series> matches = reader.find(
+		cl.getOptionValue("server"),
+		Jmx.getInstance().getObjectName(cl.getOptionValue("mbean", "*:*")),
+		cl.getOptionValue("attribute"));
+
+	    TclObject result = TclList.newInstance();
+	    for (Recording.Series series : matches) {
+		TclObject item = TclList.newInstance();
+		TclList.append(interp, item, TclString.newInstance(series.server));
+		TclList.append(interp, item, TclString.newInstance(series.mbean));
+		TclList.append(interp, item, TclString.newInstance(series.attribute));
+
+		if (cl.hasOption("list")) {
+		    long[] span = reader.getSpan(series);
+		    TclList.append(interp, item, TclString.newInstance(String.valueOf(reader.getCount(series))));
+		    TclList.append(interp, item, TclString.newInstance((span == null) ? "" : String.valueOf(span[0])));
+		    TclList.append(interp, item, TclString.newInstance((span == null) ? "" : String.valueOf(span[1])));
+		    TclList.append(interp, result, item);
+		    continue;
+		}
+
+		TclObject samples = TclList.newInstance();
+		Recording.Cursor cursor = reader.cursor(series, from, to);
+		while (cursor.advance()) {
+		    // Epoch milliseconds do not fit a Jacl integer.
+		    TclList.append(interp, samples, TclString.newInstance(String.valueOf(cursor.getTime())));
+		    TclList.append(interp, samples, ResultConverter.scalar(cursor.getObject()));
+		}
+		if (TclList.getLength(interp, samples) > 0) {
+		    TclList.append(interp, item, samples);
+		    TclList.append(interp, result, item);
+		}
+	    }
+	    interp.setResult(result);
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(IOException e)        {
+	    throw new TclException(interp, "Error reading recording: " + e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import javax.management.*;
+
+/**
+   Compiles a small filter language into a javax.management QueryExp,
+   so that attribute predicates are evaluated by the remote MBean
+   server.
+
+   <pre>
+   expr       := term ( ('or' | '||') term )*
+   term       := factor ( ('and' | '&&') factor )*
+   factor     := ('not' | '!') factor | '(' expr ')' | comparison
+   comparison := operand ( '=' | '==' | '!=' | '&lt;&gt;' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' ) operand
+	       | ATTRIBUTE 'like' STRING
+   operand    := ATTRIBUTE | NUMBER | STRING | 'true' | 'false'
+   </pre>
+
+   Keywords are case-insensitive.  Strings may be quoted with either
+   single or double quotes.  The 'like' pattern uses the JMX wildcards
+   '*' and '?'.
+*/
+
+class QueryParser {
+
+    private String text;
+    private List<String> tokens;
+    private int position;
+
+    private QueryParser(String text) {
+	this.text = text;
+	this.tokens = tokenize(text);
+	this.position = 0;
+    }
+
+    /** Compile an expression, throwing IllegalArgumentException if it is invalid. */
+    static QueryExp parse(String text) {
+	QueryParser parser = new QueryParser(text);
+	QueryExp result = parser.parseOr();
+	if (parser.position < parser.tokens.size()) {
+	    throw parser.error("Unexpected '" + parser.peek() + "'");
+	}
+	return result;
+    }
+
+    private QueryExp parseOr() {
+	QueryExp left = parseAnd();
+	while (accept("or") || accept("||")) {
+	    left = Query.or(left, parseAnd());
+	}
+	return left;
+    }
+
+    private QueryExp parseAnd() {
+	QueryExp left = parseNot();
+	while (accept("and") || accept("&&")) {
+	    left = Query.and(left, parseNot());
+	}
+	return left;
+    }
+
+    private QueryExp parseNot() {
+	if (accept("not") || accept("!")) {
+	    return Query.not(parseNot());
+	}
+	if (accept("(")) {
+	    QueryExp inner = parseOr();
+	    expect(")");
+	    return inner;
+	}
+	return parseComparison();
+    }
+
+    private QueryExp parseComparison() {
+	String first = peek();
+	ValueExp left = parseOperand();
+
+	if (accept("like")) {
+	    if (!(left instanceof AttributeValueExp)) {
+		throw error("'like' needs an attribute name on its left, not '" + first + "'");
+	    }
+	    String pattern = next();
+	    if (!isString(pattern)) {
+		throw error("'like' needs a quoted pattern on its right");
+	    }
+	    return Query.match((AttributeValueExp) left, Query.value(unquote(pattern)));
+	}
+
+	String op = next();
+	ValueExp right = parseOperand();
+
+	if (op.equals("=") || op.equals("==")) {
+	    return Query.eq(left, right);
+	}
+	if (op.equals("!=") || op.equals("<>")) {
+	    return Query.not(Query.eq(left, right));
+	}
+	if (op.equals("<")) {
+	    return Query.lt(left, right);
+	}
+	if (op.equals("<=")) {
+	    return Query.leq(left, right);
+	}
+	if (op.equals(">")) {
+	    return Query.gt(left, right);
+	}
+	if (op.equals(">=")) {
+	    return Query.geq(left, right);
+	}
+	throw error("Expected a comparison operator, found '" + op + "'");
+    }
+
+    private ValueExp parseOperand() {
+	String token = next();
+
+	if (isString(token)) {
+	    return Query.value(unquote(token));
+	}
+	if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) {
+	    return Query.value(Boolean.parseBoolean(token));
+	}
+	char c = token.charAt(0);
+	if (Character.isDigit(c) || c == '-' || c == '.') {
+	    try {
+		return Query.value(Long.parseLong(token));
+	    }
+	    catch (NumberFormatException e) {
+		try {
+		    return Query.value(Double.parseDouble(token));
+		}
+		catch (NumberFormatException ee) {
+		    throw error("Invalid number '" + token + "'");
+		}
+	    }
+	}
+	if (Character.isJavaIdentifierStart(c)) {
+	    return Query.attr(token);
+	}
+	throw error("Expected an attribute, number or string, found '" + token + "'");
+    }
+
+    private String peek() {
+	return (this.position < this.tokens.size()) ? this.tokens.get(this.position) : null;
+    }
+
+    private String next() {
+	String token = peek();
+	if (token == null) {
+	    throw error("Unexpected end of expression");
+	}
+	this.position++;
+	return token;
+    }
+
+    private boolean accept(String keyword) {
+	String token = peek();
+	if (token != null && !isString(token) && token.equalsIgnoreCase(keyword)) {
+	    this.position++;
+	    return true;
+	}
+	return false;
+    }
+
+    private void expect(String keyword) {
+	if (!accept(keyword)) {
+	    throw error("Expected '" + keyword + "'");
+	}
+    }
+
+    private IllegalArgumentException error(String message) {
+	return new IllegalArgumentException(message + " in query '" + this.text + "'.");
+    }
+
+    static private boolean isString(String token) {
+	return token.length() > 1 && (token.charAt(0) == '"' || token.charAt(0) == '\'');
+    }
+
+    static private String unquote(String token) {
+	return token.substring(1, token.length() - 1);
+    }
+
+    static private List<String> tokenize(String text) {
+	List<String> result = new ArrayList<String>();
+	int i = 0;
+
+	while (i < text.length()) {
+	    char c = text.charAt(i);
+
+	    if (Character.isWhitespace(c)) {
+		i++;
+	    }
+	    else if (c == '"' || c == '\'') {
+		int end = text.indexOf(c, i + 1);
+		if (end < 0) {
+		    throw new IllegalArgumentException("Unterminated string in query '" + text + "'.");
+		}
+		result.add(text.substring(i, end + 1));
+		i = end + 1;
+	    }
+	    else if (c == '(' || c == ')') {
+		result.add(String.valueOf(c));
+		i++;
+	    }
+	    else if ("=!<>&|".indexOf(c) >= 0) {
+		int end = i + 1;
+		while (end < text.length() && "=!<>&|".indexOf(text.charAt(end)) >= 0) {
+		    end++;
+		}
+		result.add(text.substring(i, end));
+		i = end;
+	    }
+	    else {
+		int end = i + 1;
+		while (end < text.length()
+		       && !Character.isWhitespace(text.charAt(end))
+		       && "()=!<>&|\"'".indexOf(text.charAt(end)) < 0) {
+		    end++;
+		}
+		result.add(text.substring(i, end));
+		i = end;
+	    }
+	}
+	return result;
+    }
+
+}
@@ -0,0 +1,594 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import org.apache.log4j.*;
+
+/**
+   A compact on-disk recording of sampled attributes, written by
+   jmx_record and read by jmx_replay and jmx_query.
+
+   A recording is a directory.  The file 'series' is the dictionary:
+   each (server, ObjectName, attribute) is written there once, and is
+   known by its position from then on.  Samples go to append-only
+   segment files, 'segment-000001' and so on; a writer always starts
+   a new segment, and moves to another once one reaches
+   SEGMENT_SIZE.
+
+   Each segment is a run of blocks, each holding consecutive samples
+   of one series compressed with SeriesCodec:
+
+   <pre>
+     int length, int series, long first time, long last time, int count
+     length bytes of encoded samples
+   </pre>
+
+   A block is written when it is full, when its first sample is more
+   than BLOCK_MILLIS old at a flush, or when the writer is closed, so
+   the most recent samples of a running recorder are not on disk yet.
+
+   The reader maps the segments into memory and builds a time index
+   from the block headers alone, without decoding anything; a query
+   then decodes only the blocks that overlap its time range.  Only
+   numbers and booleans are recorded, CompositeData as one series per
+   item (attribute.item); other values are counted as skipped.
+
+   A series takes its kind from its first sample.  Integers are kept
+   as exact 64-bit values, so counters above 2^53 replay unchanged,
+   except BigIntegers too wide for a long, which are kept as doubles.
+   Recordings made before this was so have INTEGER series, held as
+   doubles, and are read back as such.
+*/
+
+class Recording {
+
+    static final long SEGMENT_MAGIC = 0x4a4d585345470001L;  // "JMXSEG", version 1
+    static final int HEADER_SIZE = 28;
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    static final int BLOCK_SAMPLES = 1024;
+    static final long BLOCK_MILLIS = 5 * 60 * 1000L;
+
+    static final String DICTIONARY = "series";
+    static final String SEGMENT_PREFIX = "segment-";
+
+    static final byte DOUBLE = 0;
+    /** Integers stored as doubles, in older recordings. */
+    static final byte INTEGER = 1;
+    static final byte BOOLEAN = 2;
+    /** Integers stored as their 64 bits. */
+    static final byte LONG = 3;
+
+    static private Logger logger = Logger.getLogger(Recording.class);
+
+    /** One recorded series, as named in the dictionary. */
+    static class Series {
+	final int id;
+	final String server;
+	final String mbean;
+	final String attribute;
+	final byte kind;
+
+	Series(int id, String server, String mbean, String attribute, byte kind) {
+	    this.id = id;
+	    this.server = server;
+	    this.mbean = mbean;
+	    this.attribute = attribute;
+	    this.kind = kind;
+	}
+
+	/** A decoded value, back as the type it was recorded as. */
+	Object toValue(long bits) {
+	    if (this.kind == LONG) {
+		return Long.valueOf(bits);
+	    }
+	    double value = Double.longBitsToDouble(bits);
+	    if (this.kind == INTEGER) {
+		return Long.valueOf((long) value);
+	    }
+	    if (this.kind == BOOLEAN) {
+		return Boolean.valueOf(value != 0);
+	    }
+	    return Double.valueOf(value);
+	}
+
+	double toDouble(long bits) {
+	    return (this.kind == LONG) ? (double) bits : Double.longBitsToDouble(bits);
+	}
+    }
+
+    static private String[] segmentNames(File directory) {
+	String[] names = directory.list(new FilenameFilter() {
+	    public boolean accept(File dir, String name) {
+		return name.startsWith(SEGMENT_PREFIX);
+	    }
+	});
+	if (names == null) {
+	    return new String[0];
+	}
+	Arrays.sort(names);
+	return names;
+    }
+
+    static private String segmentName(int number) {
+	return SEGMENT_PREFIX + String.format("%06d", number);
+    }
+
+    /**
+       Appends samples to a recording.  One writer at a time may have
+       a recording open; instances are not thread-safe.
+    */
+    static class Writer implements Dumper.Sink, Flushable, Closeable {
+
+	/** A series being written, with its open block. */
+	static private class Open {
+	    Series series;
+	    SeriesCodec.Encoder encoder;
+	}
+
+	private File directory;
+	private Map<String, Open> series;
+	private List<Open> order;
+	private DataOutputStream dictionary;
+	private FileLock lock;
+	private DataOutputStream segment;
+	private int segmentNumber;
+	private long segmentSize;
+
+	private long samples;
+	private long skipped;
+	private long blocks;
+
+	Writer(String path) throws IOException {
+	    this.directory = new File(path);
+	    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+		throw new IOException("Cannot create directory " + path + ".");
+	    }
+
+	    this.series = new HashMap<String, Open>();
+	    this.order = new ArrayList<Open>();
+
+	    File file = new File(this.directory, DICTIONARY);
+	    FileOutputStream out = new FileOutputStream(file, true);
+	    this.lock = out.getChannel().tryLock();
+	    if (this.lock == null) {
+		out.close();
+		throw new IOException("Recording " + path + " is already being written.");
+	    }
+
+	    // Read under the lock, and cut off what a writer that died
+	    // left of its last entry, so that new entries follow the
+	    // last complete one.
+	    List<Series> known = new ArrayList<Series>();
+	    long complete = readDictionary(file, known);
+	    if (out.getChannel().size() > complete) {
+		logger.warn("Truncating " + file + " to its last complete series entry.");
+		out.getChannel().truncate(complete);
+	    }
+	    for (Series s : known) {
+		Open open = new Open();
+		open.series = s;
+		this.series.put(key(s.server, s.mbean, s.attribute), open);
+		this.order.add(open);
+	    }
+	    this.dictionary = new DataOutputStream(new BufferedOutputStream(out));
+
+	    String[] segments = segmentNames(this.directory);
+	    this.segmentNumber = (segments.length == 0) ? 0
+		: Integer.parseInt(segments[segments.length - 1].substring(SEGMENT_PREFIX.length()));
+	    nextSegment();
+	}
+
+	static private String key(String server, String mbean, String attribute) {
+	    return server + '\0' + mbean + '\0' + attribute;
+	}
+
+	private void nextSegment() throws IOException {
+	    if (this.segment != null) {
+		this.segment.close();
+	    }
+	    this.segmentNumber++;
+	    File file = new File(this.directory, segmentName(this.segmentNumber));
+	    this.segment = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+	    this.segment.writeLong(SEGMENT_MAGIC);
+	    this.segmentSize = 8;
+	}
+
+	public void sample(long timestamp, String server, String mbean, String attribute, Object value)
+	    throws IOException {
+
+	    if (value instanceof CompositeData) {
+		CompositeData data = (CompositeData) value;
+		for (String item : data.getCompositeType().keySet()) {
+		    sample(timestamp, server, mbean, attribute + "." + item, data.get(item));
+		}
+		return;
+	    }
+
+	    byte kind = DOUBLE;
+	    if (value instanceof Boolean) {
+		kind = BOOLEAN;
+	    }
+	    else if (value instanceof Number) {
+		if (!(value instanceof Double || value instanceof Float || value instanceof java.math.BigDecimal
+		      || (value instanceof java.math.BigInteger && ((java.math.BigInteger) value).bitLength() > 63))) {
+		    kind = LONG;
+		}
+	    }
+	    else {
+		this.skipped++;
+		return;
+	    }
+
+	    Open open = this.series.get(key(server, mbean, attribute));
+	    if (open == null) {
+		open = new Open();
+		open.series = new Series(this.order.size(), server, mbean, attribute, kind);
+		this.dictionary.writeByte(kind);
+		this.dictionary.writeUTF(server);
+		this.dictionary.writeUTF(mbean);
+		this.dictionary.writeUTF(attribute);
+		// Blocks may reach the disk before the next flush; the
+		// series they name must be there first.
+		this.dictionary.flush();
+		this.series.put(key(server, mbean, attribute), open);
+		this.order.add(open);
+	    }
+
+	    if (open.encoder == null) {
+		open.encoder = new SeriesCodec.Encoder();
+	    }
+	    // By the kind of the series, which a later sample may not share.
+	    if (value instanceof Boolean) {
+		open.encoder.add(timestamp, ((Boolean) value).booleanValue() ? 1 : 0);
+	    }
+	    else if (open.series.kind == LONG) {
+		open.encoder.addBits(timestamp, ((Number) value).longValue());
+	    }
+	    else {
+		open.encoder.add(timestamp, ((Number) value).doubleValue());
+	    }
+	    this.samples++;
+
+	    if (open.encoder.getCount() >= BLOCK_SAMPLES) {
+		seal(open);
+	    }
+	}
+
+	/** Errors are not recorded. */
+	public void error(long timestamp, String server, String mbean, String attribute, String message) {
+	    this.skipped++;
+	}
+
+	private void seal(Open open) throws IOException {
+	    SeriesCodec.Encoder encoder = open.encoder;
+	    open.encoder = null;
+	    if (encoder == null || encoder.getCount() == 0) {
+		return;
+	    }
+
+	    if (this.segmentSize >= SEGMENT_SIZE) {
+		nextSegment();
+	    }
+
+	    this.segment.writeInt(encoder.getSize());
+	    this.segment.writeInt(open.series.id);
+	    this.segment.writeLong(encoder.getFirstTime());
+	    this.segment.writeLong(encoder.getLastTime());
+	    this.segment.writeInt(encoder.getCount());
+	    this.segment.write(encoder.getBytes(), 0, encoder.getSize());
+	    this.segmentSize += HEADER_SIZE + encoder.getSize();
+	    this.blocks++;
+	}
+
+	/** Write out blocks started more than BLOCK_MILLIS ago. */
+	public void flush() throws IOException {
+	    long oldest = System.currentTimeMillis() - BLOCK_MILLIS;
+	    for (Open open : this.order) {
+		if (open.encoder != null && open.encoder.getFirstTime() < oldest) {
+		    seal(open);
+		}
+	    }
+	    this.segment.flush();
+	}
+
+	public void close() throws IOException {
+	    try {
+		for (Open open : this.order) {
+		    seal(open);
+		}
+		this.segment.close();
+	    }
+	    finally {
+		this.lock.release();
+		this.dictionary.close();
+	    }
+	}
+
+	long getSamples() { return this.samples; }
+
+	long getSkipped() { return this.skipped; }
+
+	long getBlocks() { return this.blocks; }
+    }
+
+    /**
+       Read the series named in a dictionary into result.
+
+       @return The length of the complete entries, which is less than
+	       that of the file if a writer died while adding one.
+    */
+    static private long readDictionary(File file, List<Series> result) throws IOException {
+	if (!file.exists()) {
+	    return 0;
+	}
+
+	byte[] bytes = new byte[(int) file.length()];
+	DataInputStream in = new DataInputStream(new FileInputStream(file));
+	try {
+	    in.readFully(bytes);
+	}
+	finally {
+	    in.close();
+	}
+
+	ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+	DataInputStream entries = new DataInputStream(buffer);
+	long complete = 0;
+	try {
+	    while (true) {
+		int kind = entries.read();
+		if (kind < 0) {
+		    break;
+		}
+		result.add(new Series(result.size(), entries.readUTF(), entries.readUTF(), entries.readUTF(), (byte) kind));
+		complete = bytes.length - buffer.available();
+	    }
+	}
+	catch (IOException e) {
+	    // The file is in memory: the last entry is cut short or
+	    // garbled.  No block uses it.
+	    logger.warn("Ignoring partial series entry at the end of " + file);
+	}
+	return complete;
+    }
+
+    /** One block of a series, located in a mapped segment. */
+    static private class Block {
+	ByteBuffer buffer;
+	int offset;
+	long first;
+	long last;
+	int count;
+    }
+
+    /**
+       Reads a recording through memory-mapped segments.  Opening one
+       scans the block headers to build the time index; samples are
+       only decoded when a Cursor reaches them.
+    */
+    static class Reader {
+
+	private List<Series> series;
+	private List<List<Block>> index;
+
+	Reader(String path) throws IOException {
+	    File directory = new File(path);
+	    if (!new File(directory, DICTIONARY).isFile()) {
+		throw new IOException(path + " is not a recording.");
+	    }
+
+	    this.series = new ArrayList<Series>();
+	    readDictionary(new File(directory, DICTIONARY), this.series);
+	    this.index = new ArrayList<List<Block>>(this.series.size());
+	    for (int i = 0; i < this.series.size(); i++) {
+		this.index.add(new ArrayList<Block>());
+	    }
+
+	    for (String name : segmentNames(directory)) {
+		scan(new File(directory, name));
+	    }
+
+	    Comparator<Block> byTime = new Comparator<Block>() {
+		public int compare(Block a, Block b) {
+		    return (a.first < b.first) ? -1 : (a.first > b.first) ? 1 : 0;
+		}
+	    };
+	    for (List<Block> blocks : this.index) {
+		Collections.sort(blocks, byTime);
+	    }
+	}
+
+	private void scan(File file) throws IOException {
+	    RandomAccessFile raf = new RandomAccessFile(file, "r");
+	    ByteBuffer buffer = null;
+	    try {
+		if (raf.length() < 8) {
+		    return;
+		}
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+	    }
+	    finally {
+		// The mapping stays valid after the file is closed.
+		raf.close();
+	    }
+
+	    if (buffer.getLong(0) != SEGMENT_MAGIC) {
+		throw new IOException(file + " is not a recording segment.");
+	    }
+
+	    int position = 8;
+	    while (position + HEADER_SIZE <= buffer.limit()) {
+		int length = buffer.getInt(position);
+		int id = buffer.getInt(position + 4);
+		if (length < 0 || position + HEADER_SIZE + length > buffer.limit() || id < 0 || id >= this.series.size()) {
+		    // The tail of a segment whose writer died mid-block.
+		    logger.warn("Ignoring partial block at offset " + position + " of " + file);
+		    break;
+		}
+
+		Block block = new Block();
+		block.buffer = buffer;
+		block.first = buffer.getLong(position + 8);
+		block.last = buffer.getLong(position + 16);
+		block.count = buffer.getInt(position + 24);
+		block.offset = position + HEADER_SIZE;
+		this.index.get(id).add(block);
+
+		position += HEADER_SIZE + length;
+	    }
+	}
+
+	List<Series> getSeries() {
+	    return this.series;
+	}
+
+	/**
+	   The series whose server, ObjectName and attribute match.
+	   Any argument may be null, matching everything.
+	*/
+	List<Series> find(String serverGlob, ObjectName pattern, String attributeGlob) {
+	    Matcher server = (serverGlob == null) ? null : PatternCache.getInstance().glob(serverGlob, false).matcher("");
+	    Matcher attribute = (attributeGlob == null) ? null : PatternCache.getInstance().glob(attributeGlob, false).matcher("");
+
+	    List<Series> result = new ArrayList<Series>();
+	    for (Series s : this.series) {
+		if (server != null && !server.reset(s.server).matches()) {
+		    continue;
+		}
+		if (attribute != null && !attribute.reset(s.attribute).matches()) {
+		    continue;
+		}
+		if (pattern != null && !pattern.apply(Jmx.getInstance().getObjectName(s.mbean))) {
+		    continue;
+		}
+		result.add(s);
+	    }
+	    return result;
+	}
+
+	/** Samples of a series recorded, according to the index. */
+	long getCount(Series s) {
+	    long count = 0;
+	    for (Block block : this.index.get(s.id)) {
+		count += block.count;
+	    }
+	    return count;
+	}
+
+	/** The first and last recorded times of a series, or null if it has none. */
+	long[] getSpan(Series s) {
+	    List<Block> blocks = this.index.get(s.id);
+	    if (blocks.isEmpty()) {
+		return null;
+	    }
+	    long last = Long.MIN_VALUE;
+	    for (Block block : blocks) {
+		last = Math.max(last, block.last);
+	    }
+	    return new long[] { blocks.get(0).first, last };
+	}
+
+	/** Samples of one series between from and to, inclusive. */
+	Cursor cursor(Series s, long from, long to) {
+	    return new Cursor(s, this.index.get(s.id), from, to);
+	}
+    }
+
+    /**
+       Walks the samples of one series in a time range.  Blocks ending
+       before the range are skipped by a binary search of the index,
+       and the walk stops at the first block starting after it.
+    */
+    static class Cursor {
+	final Series series;
+
+	private List<Block> blocks;
+	private int next;
+	private long from;
+	private long to;
+	private SeriesCodec.Decoder decoder;
+	private long time;
+	private long bits;
+
+	private Cursor(Series series, List<Block> blocks, long from, long to) {
+	    this.series = series;
+	    this.blocks = blocks;
+	    this.from = from;
+	    this.to = to;
+
+	    // Blocks of a series are written in order, so their last
+	    // times are sorted too.
+	    int low = 0;
+	    int high = blocks.size();
+	    while (low < high) {
+		int middle = (low + high) >>> 1;
+		if (blocks.get(middle).last < from) {
+		    low = middle + 1;
+		}
+		else {
+		    high = middle;
+		}
+	    }
+	    this.next = low;
+	}
+
+	/** Move to the next sample in range; false when there are no more. */
+	boolean advance() {
+	    while (true) {
+		while (this.decoder == null || !this.decoder.hasNext()) {
+		    if (this.next >= this.blocks.size() || this.blocks.get(this.next).first > this.to) {
+			return false;
+		    }
+		    Block block = this.blocks.get(this.next++);
+		    this.decoder = new SeriesCodec.Decoder(block.buffer, block.offset, block.first, block.count);
+		}
+
+		this.decoder.next();
+		if (this.decoder.getTime() > this.to) {
+		    this.next = this.blocks.size();
+		    this.decoder = null;
+		    return false;
+		}
+		if (this.decoder.getTime() >= this.from) {
+		    this.time = this.decoder.getTime();
+		    this.bits = this.decoder.getBits();
+		    return true;
+		}
+	    }
+	}
+
+	long getTime() { return this.time; }
+
+	double getValue() { return this.series.toDouble(this.bits); }
+
+	Object getObject() { return this.series.toValue(this.bits); }
+    }
+
+}
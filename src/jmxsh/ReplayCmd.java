@@ -0,0 +1,269 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.util.*;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Play a recording made by jmx_record back, in time order. */
+class ReplayCmd implements Command {
+
+    private final static ReplayCmd instance = new ReplayCmd();
+
+    private Options opts;
+
+    static ReplayCmd getInstance() {
+	return instance;
+    }
+
+    private ReplayCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("Glob for the server URLs to include (default all).")
+		.withArgName("GLOB")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("mbean")
+		.withDescription("ObjectName pattern of the mbeans to include (default *:*).")
+		.withArgName("PATTERN")
+		.hasArg()
+		.create("m")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("attribute")
+		.withDescription("Glob for the attributes to include (default all).")
+		.withArgName("GLOB")
+		.hasArg()
+		.create("a")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("begin")
+		.withDescription("Earliest sample time, in epoch milliseconds, or negative for that long before now.")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("b")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("end")
+		.withDescription("Latest sample time, as for -b (default no limit).")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("e")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("format")
+		.withDescription("Output format, csv or ndjson (default csv).")
+		.withArgName("FORMAT")
+		.hasArg()
+		.create("f")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("output")
+		.withDescription("File to write the samples to, or - for standard output (the default).")
+		.withArgName("FILE")
+		.hasArg()
+		.create("o")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("command")
+		.withDescription("Instead of writing them, call this with TIME SERVER MBEAN ATTRIBUTE VALUE for each sample.")
+		.withArgName("COMMAND")
+		.hasArg()
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    /** Where replayed samples go. */
+    interface Target {
+	void sample(Recording.Cursor cursor) throws IOException, TclException;
+    }
+
+    /**
+       Merge the cursors by time and hand each sample to target.
+       Holds one decoded block per series, not the recording.
+    */
+    static long replay(List<Recording.Cursor> cursors, Target target)
+	throws IOException, TclException {
+
+	PriorityQueue<Recording.Cursor> queue = new PriorityQueue<Recording.Cursor>(Math.max(1, cursors.size()), new Comparator<Recording.Cursor>() {
+	    public int compare(Recording.Cursor a, Recording.Cursor b) {
+		return (a.getTime() < b.getTime()) ? -1 : (a.getTime() > b.getTime()) ? 1 : 0;
+	    }
+	});
+	for (Recording.Cursor cursor : cursors) {
+	    if (cursor.advance()) {
+		queue.add(cursor);
+	    }
+	}
+
+	long count = 0;
+	while (!queue.isEmpty()) {
+	    Recording.Cursor cursor = queue.poll();
+	    target.sample(cursor);
+	    count++;
+	    if (cursor.advance()) {
+		queue.add(cursor);
+	    }
+	}
+	return count;
+    }
+
+    public void cmdProc(final Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help") || args.length != 1) {
+		new HelpFormatter().printHelp (
+		    "jmx_replay [-?] [-s glob] [-m pattern] [-a glob] [-b millis] [-e millis] [-f csv|ndjson] [-o file | -c command] RECORDING",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_replay plays a recording made by jmx_record back, every");
+		System.out.println("series merged in time order.  The samples are written as CSV");
+		System.out.println("or NDJSON, as jmx_poll would have, or passed to a command:");
+		System.out.println("");
+		System.out.println("  proc show {time server mbean attribute value} { puts \"$attribute=$value\" }");
+		System.out.println("  jmx_replay -a *.used -c show mem.rec");
+		System.out.println("");
+		System.out.println("Returns the number of samples replayed.");
+		return;
+	    }
+
+	    long from = 0;
+	    long to = 0;
+	    try {
+		from = QueryCmd.parseTime(cl.getOptionValue("begin"), Long.MIN_VALUE);
+		to = QueryCmd.parseTime(cl.getOptionValue("end"), Long.MAX_VALUE);
+	    }
+	    catch (NumberFormatException e) {
+		throw new TclException(interp, "Invalid time: " + e.getMessage(), TCL.ERROR);
+	    }
+
+	    Recording.Reader reader = new Recording.Reader(args[0]);
+	    List<Recording.Cursor> cursors = new ArrayList<Recording.Cursor>();
+	    for (Recording.Series series : reader.find(
+		     cl.getOptionValue("server"),
+		     Jmx.getInstance().getObjectName(cl.getOptionValue("mbean", "*:*")),
+		     cl.getOptionValue("attribute"))) {
+		cursors.add(reader.cursor(series, from, to));
+	    }
+
+	    long count = 0;
+	    if (cl.hasOption("command")) {
+		final TclObject command = TclString.newInstance(cl.getOptionValue("command"));
+		count = replay(cursors, new Target() {
+		    public void sample(Recording.Cursor cursor) throws TclException {
+			TclObject script = TclList.newInstance();
+			for (TclObject word : TclList.getElements(interp, command)) {
+			    TclList.append(interp, script, word);
+			}
+			TclList.append(interp, script, TclString.newInstance(String.valueOf(cursor.getTime())));
+			TclList.append(interp, script, TclString.newInstance(cursor.series.server));
+			TclList.append(interp, script, TclString.newInstance(cursor.series.mbean));
+			TclList.append(interp, script, TclString.newInstance(cursor.series.attribute));
+			TclList.append(interp, script, ResultConverter.scalar(cursor.getObject()));
+			interp.eval(script, 0);
+		    }
+		});
+	    }
+	    else {
+		SampleWriter.Format format = null;
+		try {
+		    format = SampleWriter.Format.valueOf(cl.getOptionValue("format", "csv").toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+		    throw new TclException(interp, "Invalid format: " + cl.getOptionValue("format"), TCL.ERROR);
+		}
+
+		String filename = cl.getOptionValue("output", "-");
+		boolean stdout = filename.equals("-");
+		OutputStream stream = stdout ? (OutputStream) System.out : new FileOutputStream(filename);
+		final SampleWriter writer = new SampleWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 65536), format);
+		try {
+		    writer.writeHeader();
+		    count = replay(cursors, new Target() {
+			public void sample(Recording.Cursor cursor) throws IOException {
+			    writer.sample(cursor.getTime(), cursor.series.server, cursor.series.mbean, cursor.series.attribute, cursor.getObject());
+			}
+		    });
+		}
+		finally {
+		    if (stdout) {
+			writer.flush();
+		    }
+		    else {
+			writer.close();
+		    }
+		}
+	    }
+	    interp.setResult(TclString.newInstance(String.valueOf(count)));
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(IOException e)        {
+	    throw new TclException(interp, "Error replaying recording: " + e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.openmbean.*;
+import tcl.lang.*;
+
+/**
+   Turns attribute values and operation results into Tcl lists, so
+   that scripts can take them apart with lindex, foreach and
+   'array set' instead of parsing toString() output.
+
+   <ul>
+   <li>CompositeData (e.g. MemoryUsage) becomes a name/value list.
+   <li>TabularData becomes a list of rows, each a name/value list;
+       the key/value tables MXBeans use for maps become a flat
+       key/value list instead.
+   <li>Arrays and Collections become lists, Maps name/value lists.
+   <li>Numbers and booleans become TclInteger, TclDouble or
+       TclBoolean objects, so that expr need not parse them again.
+       Jacl integers are 32 bits, so longs outside that range stay
+       strings.  Doubles keep Java's text, as Jacl would print them
+       with tcl_precision's 12 digits.
+   <li>Anything else becomes its toString().
+   </ul>
+
+   Nesting deeper than maxDepth is rendered with toString().  A
+   container with more than maxItems elements is cut short: a list
+   ends with "... N more", a name/value list with the pair
+   "..." "N more".
+*/
+
+class ResultConverter {
+
+    static final int DEFAULT_DEPTH = 8;
+    static final int DEFAULT_LIMIT = 10000;
+
+    static final String ELLIPSIS = "...";
+
+    private Interp interp;
+    private int maxDepth;
+    private int maxItems;
+
+    private ResultConverter(Interp interp, int maxDepth, int maxItems) {
+	this.interp = interp;
+	this.maxDepth = maxDepth;
+	this.maxItems = maxItems;
+    }
+
+    /** Convert a value, which may be null (giving an empty string). */
+    static TclObject convert(Interp interp, Object value, int maxDepth, int maxItems) {
+	try {
+	    return new ResultConverter(interp, maxDepth, maxItems).convert(value, 0);
+	}
+	catch (TclException e) {
+	    throw new IllegalArgumentException("Error converting result to a Tcl list.");
+	}
+    }
+
+    static TclObject convert(Interp interp, Object value) {
+	return convert(interp, value, DEFAULT_DEPTH, DEFAULT_LIMIT);
+    }
+
+    private TclObject convert(Object value, int depth)
+	throws TclException {
+
+	if (value == null) {
+	    return TclString.newInstance("");
+	}
+	if (value instanceof Number || value instanceof Boolean) {
+	    return scalar(value);
+	}
+	if (depth >= this.maxDepth || !isStructured(value)) {
+	    return TclString.newInstance(value.toString());
+	}
+
+	if (value instanceof CompositeData) {
+	    return composite((CompositeData) value, depth);
+	}
+	if (value instanceof TabularData) {
+	    return tabular((TabularData) value, depth);
+	}
+	if (value instanceof Map<?, ?>) {
+	    return map((Map<?, ?>) value, depth);
+	}
+	if (value instanceof Collection<?>) {
+	    return list(((Collection<?>) value).iterator(), ((Collection<?>) value).size(), depth);
+	}
+	if (value instanceof Object[]) {
+	    return list(Arrays.asList((Object[]) value).iterator(), ((Object[]) value).length, depth);
+	}
+	return primitives(value);
+    }
+
+    /** A number or boolean as a native Tcl object. */
+    static TclObject scalar(Object value) {
+	if (value instanceof Boolean) {
+	    return TclBoolean.newInstance(((Boolean) value).booleanValue());
+	}
+	if (value instanceof Double || value instanceof Float) {
+	    return decimal(value.toString());
+	}
+	if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+	    return TclInteger.newInstance(((Number) value).intValue());
+	}
+	if (value instanceof Long || value instanceof AtomicLong || value instanceof AtomicInteger
+	    || (value instanceof BigInteger && ((BigInteger) value).bitLength() < 32)) {
+	    return integer(((Number) value).longValue());
+	}
+	// BigDecimal, and BigIntegers too large for a long.
+	return TclString.newInstance(value.toString());
+    }
+
+    /** A double that prints as Java wrote it, already parsed for expr. */
+    static private TclObject decimal(String text) {
+	TclObject result = TclString.newInstance(text);
+	try {
+	    // Sets the double rep and keeps the text as the string rep.
+	    TclDouble.get(null, result);
+	}
+	catch (TclException e) {
+	    // NaN and Infinity, which Tcl cannot parse, stay strings.
+	}
+	return result;
+    }
+
+    static private TclObject integer(long value) {
+	if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+	    return TclInteger.newInstance((int) value);
+	}
+	return TclString.newInstance(String.valueOf(value));
+    }
+
+    static private boolean isStructured(Object value) {
+	return value instanceof CompositeData
+	    || value instanceof TabularData
+	    || value instanceof Map<?, ?>
+	    || value instanceof Collection<?>
+	    || value.getClass().isArray();
+    }
+
+    private TclObject composite(CompositeData data, int depth)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	int count = 0;
+	for (String key : data.getCompositeType().keySet()) {
+	    if (count++ == this.maxItems) {
+		truncatePairs(result, data.getCompositeType().keySet().size() - this.maxItems);
+		break;
+	    }
+	    TclList.append(this.interp, result, TclString.newInstance(key));
+	    TclList.append(this.interp, result, convert(data.get(key), depth + 1));
+	}
+	return result;
+    }
+
+    private TclObject tabular(TabularData data, int depth)
+	throws TclException {
+
+	CompositeType rowType = data.getTabularType().getRowType();
+	boolean isMap = rowType.keySet().size() == 2
+	    && rowType.containsKey("key") && rowType.containsKey("value");
+
+	TclObject result = TclList.newInstance();
+	int count = 0;
+	for (Object row : data.values()) {
+	    if (count++ == this.maxItems) {
+		if (isMap) {
+		    truncatePairs(result, data.size() - this.maxItems);
+		}
+		else {
+		    truncate(result, data.size() - this.maxItems);
+		}
+		break;
+	    }
+	    CompositeData composite = (CompositeData) row;
+	    if (isMap) {
+		TclList.append(this.interp, result, convert(composite.get("key"), depth + 1));
+		TclList.append(this.interp, result, convert(composite.get("value"), depth + 1));
+	    }
+	    else {
+		TclList.append(this.interp, result, convert(composite, depth + 1));
+	    }
+	}
+	return result;
+    }
+
+    private TclObject map(Map<?, ?> map, int depth)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	int count = 0;
+	for (Map.Entry<?, ?> entry : map.entrySet()) {
+	    if (count++ == this.maxItems) {
+		truncatePairs(result, map.size() - this.maxItems);
+		break;
+	    }
+	    TclList.append(this.interp, result, convert(entry.getKey(), depth + 1));
+	    TclList.append(this.interp, result, convert(entry.getValue(), depth + 1));
+	}
+	return result;
+    }
+
+    private TclObject list(Iterator<?> elements, int size, int depth)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	int count = 0;
+	while (elements.hasNext()) {
+	    if (count++ == this.maxItems) {
+		truncate(result, size - this.maxItems);
+		break;
+	    }
+	    TclList.append(this.interp, result, convert(elements.next(), depth + 1));
+	}
+	return result;
+    }
+
+    /** A primitive array, in one pass. */
+    private TclObject primitives(Object array)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	int length = Array.getLength(array);
+	int count = Math.min(length, this.maxItems);
+
+	if (array instanceof long[]) {
+	    long[] values = (long[]) array;
+	    for (int i = 0; i < count; i++) {
+		TclList.append(this.interp, result, integer(values[i]));
+	    }
+	}
+	else if (array instanceof int[]) {
+	    int[] values = (int[]) array;
+	    for (int i = 0; i < count; i++) {
+		TclList.append(this.interp, result, TclInteger.newInstance(values[i]));
+	    }
+	}
+	else if (array instanceof double[]) {
+	    double[] values = (double[]) array;
+	    for (int i = 0; i < count; i++) {
+		TclList.append(this.interp, result, decimal(Double.toString(values[i])));
+	    }
+	}
+	else if (array instanceof boolean[]) {
+	    boolean[] values = (boolean[]) array;
+	    for (int i = 0; i < count; i++) {
+		TclList.append(this.interp, result, TclBoolean.newInstance(values[i]));
+	    }
+	}
+	else if (array instanceof char[]) {
+	    // Most likely text, e.g. a password attribute.
+	    return TclString.newInstance(new String((char[]) array));
+	}
+	else {
+	    // byte[], short[] and float[].
+	    for (int i = 0; i < count; i++) {
+		TclList.append(this.interp, result, scalar(Array.get(array, i)));
+	    }
+	}
+
+	if (length > count) {
+	    truncate(result, length - count);
+	}
+	return result;
+    }
+
+    private void truncate(TclObject list, int more)
+	throws TclException {
+
+	TclList.append(this.interp, list, TclString.newInstance(ELLIPSIS + " " + more + " more"));
+    }
+
+    private void truncatePairs(TclObject list, int more)
+	throws TclException {
+
+	TclList.append(this.interp, list, TclString.newInstance(ELLIPSIS));
+	TclList.append(this.interp, list, TclString.newInstance(more + " more"));
+    }
+
+}
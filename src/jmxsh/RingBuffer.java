@@ -0,0 +1,117 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   A bounded, lock-free queue for many producers and one consumer.
+
+   Each slot carries a sequence number that tells producers and the
+   consumer whose turn it is, so neither side ever blocks.  When the
+   buffer is full, offer() drops the element and counts it instead of
+   waiting: notification threads must never be held up by a slow
+   interpreter.
+*/
+
+class RingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private long tail = 0;
+
+    /** The capacity is rounded up to a power of two. */
+    RingBuffer(int capacity) {
+	if (capacity < 1 || capacity > (1 << 30)) {
+	    throw new IllegalArgumentException("Buffer size must be between 1 and " + (1 << 30) + ".");
+	}
+	int size = Integer.highestOneBit(capacity);
+	if (size < capacity) {
+	    size <<= 1;
+	}
+
+	this.slots = new AtomicReferenceArray<T>(size);
+	this.sequences = new AtomicLongArray(size);
+	this.mask = size - 1;
+	for (int i = 0; i < size; i++) {
+	    this.sequences.set(i, i);
+	}
+    }
+
+    /** Add an element; returns false, and counts a drop, if the buffer is full.  Any thread. */
+    boolean offer(T element) {
+	long position = this.head.get();
+	while (true) {
+	    int index = (int) (position & this.mask);
+	    long difference = this.sequences.get(index) - position;
+
+	    if (difference == 0) {
+		if (this.head.compareAndSet(position, position + 1)) {
+		    this.slots.lazySet(index, element);
+		    this.sequences.set(index, position + 1);
+		    return true;
+		}
+		position = this.head.get();
+	    }
+	    else if (difference < 0) {
+		this.dropped.incrementAndGet();
+		return false;
+	    }
+	    else {
+		position = this.head.get();
+	    }
+	}
+    }
+
+    /** Move up to max elements into the given list, oldest first.  Consumer thread only. */
+    int drain(List<T> into, int max) {
+	int count = 0;
+	while (count < max) {
+	    int index = (int) (this.tail & this.mask);
+	    if (this.sequences.get(index) != this.tail + 1) {
+		break;
+	    }
+	    into.add(this.slots.get(index));
+	    this.slots.lazySet(index, null);
+	    this.sequences.set(index, this.tail + this.mask + 1);
+	    this.tail++;
+	    count++;
+	}
+	return count;
+    }
+
+    /** Whether an element is ready for the consumer.  Consumer thread only. */
+    boolean isEmpty() {
+	return this.sequences.get((int) (this.tail & this.mask)) != this.tail + 1;
+    }
+
+    int capacity() { return this.mask + 1; }
+
+    long getDropped() { return this.dropped.get(); }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+   Writes timestamped attribute samples as CSV or NDJSON.
+
+   Numbers are formatted into a reusable buffer rather than through
+   String.valueOf(), so that writing a numeric sample allocates
+   nothing.  Doubles are written with at most six decimal places;
+   values too large for a long fall back to Double.toString().
+   Instances are not thread-safe.
+
+   A writer made with errors set also records values that could not
+   be read: CSV gets an extra error column, NDJSON an "error" field
+   in place of the value.
+*/
+
+class SampleWriter implements Dumper.Sink, Flushable, Closeable {
+
+    enum Format { CSV, NDJSON }
+
+    static final String CSV_HEADER = "timestamp,server,mbean,attribute,value";
+
+    private Writer out;
+    private Format format;
+    private boolean errors;
+    private char[] digits;
+
+    SampleWriter(Writer out, Format format) {
+	this(out, format, false);
+    }
+
+    SampleWriter(Writer out, Format format, boolean errors) {
+	this.out = out;
+	this.format = format;
+	this.errors = errors;
+	this.digits = new char[20];
+    }
+
+    void writeHeader() throws IOException {
+	if (this.format == Format.CSV) {
+	    this.out.write(CSV_HEADER);
+	    if (this.errors) {
+		this.out.write(",error");
+	    }
+	    this.out.write('\n');
+	}
+    }
+
+    public void sample(long timestamp, String server, String mbean, String attribute, Object value)
+	throws IOException {
+
+	if (this.format == Format.CSV) {
+	    writeLong(timestamp);
+	    this.out.write(',');
+	    writeCsv(server);
+	    this.out.write(',');
+	    writeCsv(mbean);
+	    this.out.write(',');
+	    writeCsv(attribute);
+	    this.out.write(',');
+	    if (value instanceof Number || value instanceof Boolean) {
+		writeScalar(value);
+	    }
+	    else if (value != null) {
+		writeCsv(value.toString());
+	    }
+	    if (this.errors) {
+		this.out.write(',');
+	    }
+	}
+	else {
+	    this.out.write("{\"timestamp\":");
+	    writeLong(timestamp);
+	    this.out.write(",\"server\":");
+	    writeJson(server);
+	    this.out.write(",\"mbean\":");
+	    writeJson(mbean);
+	    this.out.write(",\"attribute\":");
+	    writeJson(attribute);
+	    this.out.write(",\"value\":");
+	    if (value instanceof Number || value instanceof Boolean) {
+		writeScalar(value);
+	    }
+	    else if (value != null) {
+		writeJson(value.toString());
+	    }
+	    else {
+		this.out.write("null");
+	    }
+	    this.out.write('}');
+	}
+	this.out.write('\n');
+    }
+
+    /** Record that an attribute could not be read, and why. */
+    public void error(long timestamp, String server, String mbean, String attribute, String message)
+	throws IOException {
+
+	String text = (message == null) ? "" : message;
+	if (this.format == Format.CSV) {
+	    writeLong(timestamp);
+	    this.out.write(',');
+	    writeCsv(server);
+	    this.out.write(',');
+	    writeCsv(mbean);
+	    this.out.write(',');
+	    writeCsv(attribute);
+	    this.out.write(",,");
+	    writeCsv(text);
+	}
+	else {
+	    this.out.write("{\"timestamp\":");
+	    writeLong(timestamp);
+	    this.out.write(",\"server\":");
+	    writeJson(server);
+	    this.out.write(",\"mbean\":");
+	    writeJson(mbean);
+	    this.out.write(",\"attribute\":");
+	    writeJson(attribute);
+	    this.out.write(",\"error\":");
+	    writeJson(text);
+	    this.out.write('}');
+	}
+	this.out.write('\n');
+    }
+
+    public void flush() throws IOException {
+	this.out.flush();
+    }
+
+    public void close() throws IOException {
+	this.out.close();
+    }
+
+    private void writeScalar(Object value) throws IOException {
+	if (value instanceof Boolean) {
+	    this.out.write(((Boolean) value).booleanValue() ? "true" : "false");
+	}
+	else if (value instanceof Long || value instanceof Integer
+		 || value instanceof Short || value instanceof Byte) {
+	    writeLong(((Number) value).longValue());
+	}
+	else if (value instanceof BigDecimal || value instanceof BigInteger) {
+	    // Exact, however many digits; both forms are valid JSON numbers.
+	    this.out.write(value.toString());
+	}
+	else {
+	    writeDouble(((Number) value).doubleValue());
+	}
+    }
+
+    void writeLong(long value) throws IOException {
+	if (value == Long.MIN_VALUE) {
+	    this.out.write("-9223372036854775808");
+	    return;
+	}
+
+	long remaining = value;
+	if (remaining < 0) {
+	    this.out.write('-');
+	    remaining = -remaining;
+	}
+
+	int pos = this.digits.length;
+	do {
+	    this.digits[--pos] = (char) ('0' + (remaining % 10));
+	    remaining /= 10;
+	} while (remaining != 0);
+
+	this.out.write(this.digits, pos, this.digits.length - pos);
+    }
+
+    void writeDouble(double value) throws IOException {
+	if (Double.isNaN(value) || Double.isInfinite(value)) {
+	    // Neither CSV nor JSON has a numeric form for these.
+	    this.out.write(this.format == Format.CSV ? Double.toString(value) : "null");
+	    return;
+	}
+
+	if (Math.abs(value) >= 9.0e12) {
+	    this.out.write(Double.toString(value));
+	    return;
+	}
+
+	long scaled = Math.round(value * 1000000.0);
+	if (scaled / 1000000.0 != value) {
+	    // More than six decimals, as in 2.5e-7: don't round them off.
+	    this.out.write(Double.toString(value));
+	    return;
+	}
+	if (scaled < 0) {
+	    this.out.write('-');
+	    scaled = -scaled;
+	}
+	writeLong(scaled / 1000000L);
+
+	long fraction = scaled % 1000000L;
+	if (fraction != 0) {
+	    int width = 6;
+	    while (fraction % 10 == 0) {
+		fraction /= 10;
+		width--;
+	    }
+	    this.out.write('.');
+	    int pos = this.digits.length;
+	    for (int i = 0; i < width; i++) {
+		this.digits[--pos] = (char) ('0' + (fraction % 10));
+		fraction /= 10;
+	    }
+	    this.out.write(this.digits, pos, width);
+	}
+    }
+
+    private void writeCsv(String value) throws IOException {
+	boolean quote = false;
+	for (int i = 0; i < value.length() && !quote; i++) {
+	    char c = value.charAt(i);
+	    quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+	}
+
+	if (!quote) {
+	    this.out.write(value);
+	    return;
+	}
+
+	this.out.write('"');
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    if (c == '"') {
+		this.out.write('"');
+	    }
+	    this.out.write(c);
+	}
+	this.out.write('"');
+    }
+
+    private void writeJson(String value) throws IOException {
+	this.out.write('"');
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    switch (c) {
+	    case '"':  this.out.write("\\\""); break;
+	    case '\\': this.out.write("\\\\"); break;
+	    case '\n': this.out.write("\\n"); break;
+	    case '\r': this.out.write("\\r"); break;
+	    case '\t': this.out.write("\\t"); break;
+	    default:
+		if (c < 0x20) {
+		    this.out.write("\\u00");
+		    this.out.write(Character.forDigit(c >> 4, 16));
+		    this.out.write(Character.forDigit(c & 0xf, 16));
+		}
+		else {
+		    this.out.write(c);
+		}
+	    }
+	}
+	this.out.write('"');
+    }
+
+}
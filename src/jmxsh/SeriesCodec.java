@@ -0,0 +1,273 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.nio.ByteBuffer;
+
+/**
+   Compresses one series of (timestamp, double) samples into a bit
+   stream, as described in the Gorilla paper (Pelkonen et al., VLDB
+   2015), and reads it back.
+
+   Timestamps are stored as the difference between successive deltas
+   ("delta of delta"), which is zero or a few bits when samples are
+   taken at a fixed rate.  Each value is XORed with the one before;
+   a value that did not change costs one bit, and one that did costs
+   only its meaningful bits, often sharing the window of leading and
+   trailing zeros of the previous one.
+
+   The first timestamp is not in the stream: it is kept in the block
+   header by the caller and passed to the Decoder.
+
+   Integers are XORed the same way, as their own 64 bits rather than
+   a double's (addBits() and getBits()), so that they come back
+   exactly however large they are.
+*/
+
+class SeriesCodec {
+
+    /** Appends samples to a growing bit buffer. */
+    static class Encoder {
+	private byte[] bytes;
+	private long bitCount;
+
+	private int count;
+	private long firstTime;
+	private long lastTime;
+	private long lastDelta;
+	private long lastBits;
+	private int leading;
+	private int trailing;
+
+	Encoder() {
+	    this.bytes = new byte[64];
+	    this.leading = -1;
+	}
+
+	void add(long timestamp, double value) {
+	    addBits(timestamp, Double.doubleToLongBits(value));
+	}
+
+	void addBits(long timestamp, long bits) {
+	    if (this.count == 0) {
+		this.firstTime = timestamp;
+		write(bits, 64);
+	    }
+	    else {
+		long delta = timestamp - this.lastTime;
+		writeDeltaOfDelta(delta - this.lastDelta);
+		this.lastDelta = delta;
+		writeXor(bits ^ this.lastBits);
+	    }
+
+	    this.lastTime = timestamp;
+	    this.lastBits = bits;
+	    this.count++;
+	}
+
+	private void writeDeltaOfDelta(long dod) {
+	    if (dod == 0) {
+		write(0, 1);
+	    }
+	    else if (dod >= -64 && dod < 64) {
+		write(0x2, 2);
+		write(dod, 7);
+	    }
+	    else if (dod >= -256 && dod < 256) {
+		write(0x6, 3);
+		write(dod, 9);
+	    }
+	    else if (dod >= -2048 && dod < 2048) {
+		write(0xe, 4);
+		write(dod, 12);
+	    }
+	    else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+		write(0x1e, 5);
+		write(dod, 32);
+	    }
+	    else {
+		write(0x1f, 5);
+		write(dod, 64);
+	    }
+	}
+
+	private void writeXor(long xor) {
+	    if (xor == 0) {
+		write(0, 1);
+		return;
+	    }
+
+	    // Five bits hold the count of leading zeros, so cap it at 31.
+	    int lead = Math.min(Long.numberOfLeadingZeros(xor), 31);
+	    int trail = Long.numberOfTrailingZeros(xor);
+
+	    if (this.leading >= 0 && lead >= this.leading && trail >= this.trailing) {
+		write(0x2, 2);
+		write(xor >>> this.trailing, 64 - this.leading - this.trailing);
+	    }
+	    else {
+		int significant = 64 - lead - trail;
+		write(0x3, 2);
+		write(lead, 5);
+		write(significant - 1, 6);
+		write(xor >>> trail, significant);
+		this.leading = lead;
+		this.trailing = trail;
+	    }
+	}
+
+	/** Write the low n bits of value, most significant first. */
+	private void write(long value, int n) {
+	    int remaining = n;
+	    while (remaining > 0) {
+		int index = (int) (this.bitCount >>> 3);
+		if (index == this.bytes.length) {
+		    byte[] larger = new byte[this.bytes.length * 2];
+		    System.arraycopy(this.bytes, 0, larger, 0, this.bytes.length);
+		    this.bytes = larger;
+		}
+		int free = 8 - (int) (this.bitCount & 7);
+		int take = Math.min(free, remaining);
+		int chunk = (int) (value >>> (remaining - take)) & ((1 << take) - 1);
+		this.bytes[index] |= (byte) (chunk << (free - take));
+		this.bitCount += take;
+		remaining -= take;
+	    }
+	}
+
+	int getCount() { return this.count; }
+
+	long getFirstTime() { return this.firstTime; }
+
+	long getLastTime() { return this.lastTime; }
+
+	/** Bytes used so far; the last one may be partly filled. */
+	int getSize() { return (int) ((this.bitCount + 7) >>> 3); }
+
+	byte[] getBytes() { return this.bytes; }
+    }
+
+    /** Reads back the samples of one encoded block, in order. */
+    static class Decoder {
+	private ByteBuffer buffer;
+	private int offset;
+	private long bitPosition;
+
+	private int remaining;
+	private boolean first;
+	private long time;
+	private long delta;
+	private long bits;
+	private int leading;
+	private int trailing;
+
+	/**
+	   @param buffer Holds the block; it is read with absolute gets
+			 and not modified, so it may be shared.
+	   @param offset Where the encoded samples start in buffer.
+	*/
+	Decoder(ByteBuffer buffer, int offset, long firstTime, int count) {
+	    this.buffer = buffer;
+	    this.offset = offset;
+	    this.time = firstTime;
+	    this.remaining = count;
+	    this.first = true;
+	}
+
+	boolean hasNext() {
+	    return this.remaining > 0;
+	}
+
+	/** Advance to the next sample; then read getTime() and getValue(). */
+	void next() {
+	    if (this.remaining == 0) {
+		throw new IllegalStateException("No more samples in block.");
+	    }
+	    this.remaining--;
+
+	    if (this.first) {
+		this.first = false;
+		this.bits = read(64);
+		return;
+	    }
+
+	    this.delta += readDeltaOfDelta();
+	    this.time += this.delta;
+
+	    if (read(1) == 0) {
+		return;
+	    }
+	    if (read(1) == 1) {
+		this.leading = (int) read(5);
+		int significant = (int) read(6) + 1;
+		this.trailing = 64 - this.leading - significant;
+	    }
+	    this.bits ^= read(64 - this.leading - this.trailing) << this.trailing;
+	}
+
+	private long readDeltaOfDelta() {
+	    if (read(1) == 0) {
+		return 0;
+	    }
+	    if (read(1) == 0) {
+		return signed(read(7), 7);
+	    }
+	    if (read(1) == 0) {
+		return signed(read(9), 9);
+	    }
+	    if (read(1) == 0) {
+		return signed(read(12), 12);
+	    }
+	    if (read(1) == 0) {
+		return signed(read(32), 32);
+	    }
+	    return read(64);
+	}
+
+	static private long signed(long value, int n) {
+	    return (value << (64 - n)) >> (64 - n);
+	}
+
+	private long read(int n) {
+	    long value = 0;
+	    int remaining = n;
+	    while (remaining > 0) {
+		int current = this.buffer.get(this.offset + (int) (this.bitPosition >>> 3)) & 0xff;
+		int available = 8 - (int) (this.bitPosition & 7);
+		int take = Math.min(available, remaining);
+		int chunk = (current >>> (available - take)) & ((1 << take) - 1);
+		value = (value << take) | chunk;
+		this.bitPosition += take;
+		remaining -= take;
+	    }
+	    return value;
+	}
+
+	long getTime() { return this.time; }
+
+	double getValue() { return Double.longBitsToDouble(this.bits); }
+
+	long getBits() { return this.bits; }
+    }
+
+}
@@ -22,6 +22,9 @@
  */
 package jmxsh;
 
+import java.util.*;
+import java.util.concurrent.Callable;
+import javax.management.MBeanAttributeInfo;
 import org.apache.commons.cli.*;
 //import org.apache.log4j.Logger;
 import tcl.lang.*;
@@ -50,6 +53,22 @@ class SetCmd implements Command {
 		.create("m")
 	);
 
+	opts.addOption(
+	    OptionBuilder.withLongOpt("concurrency")
+		.withDescription("With several servers, update at most this many at once (default " + FanOut.DEFAULT_CONCURRENCY + ").")
+		.withArgName("COUNT")
+		.hasArg()
+		.create("c")
+	);
+
+	opts.addOption(
+	    OptionBuilder.withLongOpt("timeout")
+		.withDescription("Give up on a remote call after this many milliseconds (default " + Jmx.DEFAULT_CALL_TIMEOUT + ", or " + FanOut.DEFAULT_TIMEOUT + " per server when there are several).")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("t")
+	);
+
         opts.addOption(
 	    OptionBuilder.withLongOpt("help")
 		.withDescription("Display usage help.")
@@ -66,26 +85,69 @@ class SetCmd implements Command {
 	for(int i = 0; i < argv.length - 1; i++)
 	    args[i] = argv[i + 1].toString();
 	    
-	CommandLine cl = (new PosixParser()).parse(opts, args);
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
 	return cl;
     }
 
-    private void getDefaults(Interp interp) {
-	server = null;
-	//domain = null;
-	mbean = null;
-	attrop = null;
+    /** Update the attribute of mbean on each of several servers at once. */
+    private void setOnServers(Interp interp, String[] servers, final String mbeanName, final String attribute, TclObject newvalue, CommandLine cl)
+	throws TclException {
+
+	int concurrency = FanOut.DEFAULT_CONCURRENCY;
+	long timeout = FanOut.DEFAULT_TIMEOUT;
+
+	if (servers.length == 0) {
+	    throw new TclException(interp, "No servers to set the attribute on.", TCL.ERROR);
+	}
 
 	try {
-	    server = interp.getVar("SERVER", TCL.GLOBAL_ONLY).toString();
-	    //domain = interp.getVar("DOMAIN", TCL.GLOBAL_ONLY).toString();
-	    mbean  = interp.getVar("MBEAN",  TCL.GLOBAL_ONLY).toString();
-	    attrop = interp.getVar("ATTROP", TCL.GLOBAL_ONLY).toString();
+	    concurrency = Integer.parseInt(cl.getOptionValue("concurrency", String.valueOf(concurrency)));
+	    timeout = Long.parseLong(cl.getOptionValue("timeout", String.valueOf(timeout)));
+	}
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid number: " + e.getMessage(), TCL.ERROR);
 	}
-	catch (TclException e) { 
-	    /* If one doesn't exist, it will just be null. */
+
+	// Conversion uses the interpreter, so look the attribute up
+	// everywhere first and convert once, for the first server that
+	// answered.  A server that did not answer keeps that outcome.
+	Map<String, Callable<MBeanAttributeInfo>> lookups = new LinkedHashMap<String, Callable<MBeanAttributeInfo>>();
+	for (final String serverName : servers) {
+	    lookups.put(serverName, new Callable<MBeanAttributeInfo>() {
+		public MBeanAttributeInfo call() {
+		    return Jmx.getInstance().getWritableAttributeInfo(serverName, mbeanName, attribute);
+		}
+	    });
 	}
 
+	Map<String, FanOut.Outcome<MBeanAttributeInfo>> found = FanOut.run(lookups, concurrency, timeout);
+	MBeanAttributeInfo info = FanOut.firstValue(found);
+
+	Map<String, Callable<Object>> tasks = new LinkedHashMap<String, Callable<Object>>();
+	if (info != null) {
+	    final Object value = Jmx.getInstance().toAttributeValue(info, newvalue);
+	    for (final String serverName : servers) {
+		if (!found.get(serverName).succeeded()) {
+		    continue;
+		}
+		tasks.put(serverName, new Callable<Object>() {
+		    public Object call() {
+			Jmx.getInstance().setAttributeValue(serverName, mbeanName, attribute, value);
+			return null;
+		    }
+		});
+	    }
+	}
+
+	Map<String, FanOut.Outcome<Object>> outcomes = FanOut.run(tasks, concurrency, timeout);
+
+	TclObject result = TclList.newInstance();
+	for (String serverName : servers) {
+	    FanOut.Outcome<?> outcome = outcomes.containsKey(serverName) ? outcomes.get(serverName) : found.get(serverName);
+	    TclList.append(interp, result, TclString.newInstance(serverName));
+	    TclList.append(interp, result, Utils.outcome2list(outcome, null));
+	}
+	interp.setResult(result);
     }
 
     public void cmdProc(Interp interp, TclObject argv[]) 
@@ -93,13 +155,14 @@ class SetCmd implements Command {
 	
         try {
 	    CommandLine cl = parseCommandLine(argv);
+	    Utils.applyTimeout(interp, cl);
 	    String args[] = cl.getArgs();
 	    String attribute = null;
 	    TclObject newvalue = null;
 	    
 	    if (cl.hasOption("help")) {
 		new HelpFormatter().printHelp (
-		    "jmx_set [-?] [-s server] [-m mbean] [ATTRIBUTE] NEW_VALUE",
+		    "jmx_set [-?] [-c count] [-t millis] [-s server] [-m mbean] [ATTRIBUTE] NEW_VALUE",
 		    "======================================================================", 
 		    opts,
 		    "======================================================================",
@@ -109,14 +172,19 @@ class SetCmd implements Command {
 		System.out.println("If you do not specify server, mbean, or ATTRIBUTE, then the");
 		System.out.println("values in the global variables SERVER, MBEAN, and ATTROP,");
 		System.out.println("respectively, will be used.");
+		System.out.println("");
+		System.out.println("The -s option also accepts a Tcl list of servers, or '*' for every");
+		System.out.println("open connection.  The attribute is then updated on all of them in");
+		System.out.println("parallel (its type is taken from the first one that answers), and");
+		System.out.println("the result is a list of server/outcome pairs.  Each outcome is a");
+		System.out.println("list of 'status' (ok, error or timeout), 'millis', and possibly");
+		System.out.println("'error'.");
 		return;
 	    }
 
-	    getDefaults(interp);
-
-	    server = cl.getOptionValue("server", server);
-	    mbean  = cl.getOptionValue("mbean",  mbean);
-	    attrop = cl.getOptionValue("attrop", attrop);
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+	    String mbean  = cl.getOptionValue("mbean",  Utils.getGlobal(interp, "MBEAN"));
+	    String attrop = cl.getOptionValue("attrop", Utils.getGlobal(interp, "ATTROP"));
 
 	    if (args.length > 1) {
 		attribute = args[0];
@@ -143,6 +211,12 @@ class SetCmd implements Command {
 		throw new TclException(interp, "No new value provided for the attribute.", TCL.ERROR);
 	    }
 
+	    String[] servers = Utils.getServerList(interp, server);
+	    if (servers != null) {
+		setOnServers(interp, servers, mbean, attribute, newvalue, cl);
+		return;
+	    }
+
 	    Jmx.getInstance().setAttribute(server, mbean, attribute, newvalue);
 	}
 	catch(ParseException e)	{
@@ -151,13 +225,11 @@ class SetCmd implements Command {
         catch(RuntimeException e) {
 	    throw new TclException(interp, e.getMessage(), 1);
 	}
+	finally {
+	    Jmx.getInstance().setThreadTimeout(null);
+	}
     }
 
-    private String server;
-    //private String domain;
-    private String mbean;
-    private String attrop;
-
     //private static Logger logger = Logger.getLogger(SetCmd.class);
     private Options opts;
 }
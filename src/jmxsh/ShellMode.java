@@ -70,7 +70,7 @@ class ShellMode extends Mode {
 	TclEvent event = 
 	    new TclEvent() {
 		public int processEvent(int flags) {
-		    Interp interp = JInterp.instance;
+		    Interp interp = JInterp.getInstance();
 
 		    TclObject cmdObj = TclString.newInstance(command);
 		    cmdObj.preserve();
@@ -105,7 +105,7 @@ class ShellMode extends Mode {
 		}
 	    };
 
-	JInterp.instance.getNotifier().queueEvent(event, TCL.QUEUE_TAIL);
+	JInterp.getInstance().getNotifier().queueEvent(event, TCL.QUEUE_TAIL);
 	event.sync();
 
 	return command;
@@ -126,6 +126,19 @@ class ShellMode extends Mode {
 	sb.append("o  jmx_get     - read a JMX attribute\n");
 	sb.append("o  jmx_invoke  - invoke a JMX operation\n");
 	sb.append("o  jmx_list    - list attribs w/regex (NOT TESTED)\n");
+	sb.append("o  jmx_cache   - inspect or flush the MBeanInfo cache\n");
+	sb.append("o  jmx_poll    - sample attributes to a file in the background\n");
+	sb.append("o  jmx_subscribe   - call a proc when mbeans send notifications\n");
+	sb.append("o  jmx_unsubscribe - stop a notification subscription\n");
+	sb.append("o  jmx_health  - connection state and reconnect policy\n");
+	sb.append("o  jmx_timeout - connect timeout and remote call deadline\n");
+	sb.append("o  jmx_converter - how Tcl values become Java parameters\n");
+	sb.append("o  jmx_dump    - write every attribute of every mbean to a file\n");
+	sb.append("o  jmx_diff    - compare two servers, or a server and a dump\n");
+	sb.append("o  jmx_record  - sample attributes to a compact binary recording\n");
+	sb.append("o  jmx_replay  - play a recording back as CSV, NDJSON or Tcl calls\n");
+	sb.append("o  jmx_query   - read a time slice of a recording\n");
+	sb.append("o  jmx_export  - serve attributes as Prometheus metrics over HTTP\n");
 	sb.append("\n");
 	sb.append("To get further help on each command, invoke it with the\n");
 	sb.append("-? option.\n");
@@ -0,0 +1,512 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.ObjectName;
+
+/**
+   One side of a jmx_diff: the attributes of a server, one at a time,
+   in the order Dumper writes them (canonical ObjectName, then
+   attribute).
+
+   A live snapshot runs a Dumper on its own thread, handing entries
+   over through a small bounded queue, so both sides of a diff are
+   read at the same time and neither is held in memory.  A file
+   snapshot reads a dump written by jmx_dump, in either format.
+*/
+
+abstract class Snapshot implements Closeable {
+
+    static final int QUEUE_SIZE = 1024;
+
+    /** One attribute value, or the reason it could not be read. */
+    static class Entry implements Comparable<Entry> {
+	final String mbean;
+	final String attribute;
+	final Object value;
+	final String error;
+
+	Entry(String mbean, String attribute, Object value, String error) {
+	    this.mbean = mbean;
+	    this.attribute = attribute;
+	    this.value = value;
+	    this.error = error;
+	}
+
+	public int compareTo(Entry other) {
+	    int result = this.mbean.compareTo(other.mbean);
+	    return (result != 0) ? result : this.attribute.compareTo(other.attribute);
+	}
+
+	/** The value as shown in a report. */
+	public String toString() {
+	    if (this.error != null) {
+		return "error: " + this.error;
+	    }
+	    return (this.value == null) ? "" : this.value.toString();
+	}
+    }
+
+    private String name;
+
+    Snapshot(String name) {
+	this.name = name;
+    }
+
+    String getName() {
+	return this.name;
+    }
+
+    /** The next entry, or null when there are no more. */
+    abstract Entry next() throws IOException;
+
+    public abstract void close() throws IOException;
+
+    /** Attributes of mbeans matching pattern on a connected server. */
+    static Snapshot live(String server, String pattern, int concurrency) {
+	return new Live(server, pattern, concurrency);
+    }
+
+    /**
+       A dump file written by jmx_dump.  Only the first server in the
+       file is read.
+    */
+    static Snapshot file(String filename, String pattern)
+	throws IOException {
+
+	return new DumpFile(filename, pattern);
+    }
+
+    static private class Live extends Snapshot implements Dumper.Sink, Runnable {
+
+	static private final Entry END = new Entry("", "", null, null);
+
+	private String server;
+	private String pattern;
+	private int concurrency;
+	private BlockingQueue<Entry> queue;
+	private Thread thread;
+	private volatile RuntimeException failure;
+	private boolean done;
+
+	Live(String server, String pattern, int concurrency) {
+	    super(server);
+	    this.server = server;
+	    this.pattern = pattern;
+	    this.concurrency = concurrency;
+	    this.queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+	    this.thread = new FanOut.NamedThreadFactory("jmxsh-diff").newThread(this);
+	    this.thread.start();
+	}
+
+	public void run() {
+	    try {
+		Dumper.dump(new String[] { this.server }, this.pattern, this, this.concurrency);
+	    }
+	    catch (InterruptedIOException e) {
+		// Closed before the end; nobody is reading any more.
+		return;
+	    }
+	    catch (IOException e) {
+		this.failure = new IllegalStateException(e.getMessage(), e);
+	    }
+	    catch (RuntimeException e) {
+		this.failure = e;
+	    }
+
+	    try {
+		this.queue.put(END);
+	    }
+	    catch (InterruptedException e) {
+		/* Closed; nobody is waiting for the end. */
+	    }
+	}
+
+	public void sample(long timestamp, String server, String mbean, String attribute, Object value)
+	    throws IOException {
+
+	    put(new Entry(mbean, attribute, round(value), null));
+	}
+
+	public void error(long timestamp, String server, String mbean, String attribute, String message)
+	    throws IOException {
+
+	    put(new Entry(mbean, attribute, null, (message == null) ? "" : message));
+	}
+
+	private void put(Entry entry) throws IOException {
+	    try {
+		this.queue.put(entry);
+	    }
+	    catch (InterruptedException e) {
+		throw new InterruptedIOException("Snapshot closed.");
+	    }
+	}
+
+	/**
+	   Doubles to the six places SampleWriter keeps, so that a live
+	   value compares equal to the same value read from a dump.
+	*/
+	static private Object round(Object value) {
+	    if (value instanceof Double || value instanceof Float) {
+		double d = ((Number) value).doubleValue();
+		if (!Double.isNaN(d) && !Double.isInfinite(d) && Math.abs(d) < 9.0e12) {
+		    return Math.round(d * 1000000.0) / 1000000.0;
+		}
+	    }
+	    return value;
+	}
+
+	Entry next() throws IOException {
+	    if (this.done) {
+		return null;
+	    }
+
+	    Entry entry = null;
+	    try {
+		entry = this.queue.take();
+	    }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Interrupted while reading " + this.server + ".");
+	    }
+
+	    if (entry == END) {
+		this.done = true;
+		if (this.failure != null) {
+		    throw this.failure;
+		}
+		return null;
+	    }
+	    return entry;
+	}
+
+	public void close() {
+	    this.done = true;
+	    this.thread.interrupt();
+	}
+    }
+
+    static private class DumpFile extends Snapshot {
+
+	private BufferedReader in;
+	private boolean csv;
+	private ObjectName pattern;
+	private String server;
+	private Entry last;
+	private String lastMBean;
+	private boolean lastMatched;
+	private int line;
+
+	DumpFile(String filename, String pattern)
+	    throws IOException {
+
+	    super(filename);
+	    this.in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"), 65536);
+	    this.pattern = Jmx.getInstance().getObjectName(pattern);
+
+	    this.in.mark(1);
+	    int first = this.in.read();
+	    this.in.reset();
+	    this.csv = (first != '{');
+	    if (this.csv && first != -1) {
+		// The header.
+		readCsv();
+	    }
+	}
+
+	Entry next() throws IOException {
+	    while (true) {
+		Entry entry = this.csv ? nextCsv() : nextJson();
+		if (entry == null) {
+		    return null;
+		}
+
+		if (this.last != null && entry.compareTo(this.last) < 0) {
+		    throw new IllegalArgumentException(getName() + ", line " + this.line
+						       + ": entries out of order; is this a dump from jmx_dump?");
+		}
+		this.last = entry;
+
+		if (!entry.mbean.equals(this.lastMBean)) {
+		    this.lastMBean = entry.mbean;
+		    this.lastMatched = this.pattern.apply(Jmx.getInstance().getObjectName(entry.mbean));
+		}
+		if (this.lastMatched) {
+		    return entry;
+		}
+	    }
+	}
+
+	/**
+	   Checks that the entry is from the first server in the file,
+	   and returns false at the start of the next one.
+	*/
+	private boolean sameServer(String server) {
+	    if (this.server == null) {
+		this.server = server;
+	    }
+	    return this.server.equals(server);
+	}
+
+	private Entry nextCsv() throws IOException {
+	    String[] fields = readCsv();
+	    if (fields == null) {
+		return null;
+	    }
+	    if (fields.length < 5) {
+		throw new IllegalArgumentException(getName() + ", line " + this.line + ": expected at least 5 fields.");
+	    }
+	    if (!sameServer(fields[1])) {
+		return null;
+	    }
+	    if (fields.length > 5 && fields[5].length() > 0) {
+		return new Entry(fields[2], fields[3], null, fields[5]);
+	    }
+	    return new Entry(fields[2], fields[3], fields[4], null);
+	}
+
+	/** One CSV record, which may span lines; null at the end. */
+	private String[] readCsv() throws IOException {
+	    List<String> fields = new ArrayList<String>(6);
+	    StringBuilder field = new StringBuilder();
+	    boolean quoted = false;
+	    int c = this.in.read();
+	    if (c == -1) {
+		return null;
+	    }
+
+	    while (true) {
+		if (quoted) {
+		    if (c == -1) {
+			throw new IllegalArgumentException(getName() + ", line " + this.line + ": unterminated quote.");
+		    }
+		    if (c == '"') {
+			this.in.mark(1);
+			if (this.in.read() == '"') {
+			    field.append('"');
+			}
+			else {
+			    this.in.reset();
+			    quoted = false;
+			}
+		    }
+		    else {
+			if (c == '\n') {
+			    this.line++;
+			}
+			field.append((char) c);
+		    }
+		}
+		else if (c == '"') {
+		    quoted = true;
+		}
+		else if (c == ',') {
+		    fields.add(field.toString());
+		    field.setLength(0);
+		}
+		else if (c == '\n' || c == -1) {
+		    this.line++;
+		    fields.add(field.toString());
+		    return fields.toArray(new String[fields.size()]);
+		}
+		else if (c != '\r') {
+		    field.append((char) c);
+		}
+		c = this.in.read();
+	    }
+	}
+
+	private Entry nextJson() throws IOException {
+	    String text = this.in.readLine();
+	    while (text != null && text.trim().length() == 0) {
+		this.line++;
+		text = this.in.readLine();
+	    }
+	    if (text == null) {
+		return null;
+	    }
+	    this.line++;
+
+	    JsonLine json = new JsonLine(text);
+	    String server = null;
+	    String mbean = null;
+	    String attribute = null;
+	    Object value = null;
+	    String error = null;
+	    try {
+		json.expect('{');
+		if (!json.skip('}')) {
+		    do {
+			String key = json.string();
+			json.expect(':');
+			Object element = json.value();
+			if (key.equals("server")) {
+			    server = (String) element;
+			}
+			else if (key.equals("mbean")) {
+			    mbean = (String) element;
+			}
+			else if (key.equals("attribute")) {
+			    attribute = (String) element;
+			}
+			else if (key.equals("value")) {
+			    value = element;
+			}
+			else if (key.equals("error")) {
+			    error = (String) element;
+			}
+		    } while (json.skip(','));
+		    json.expect('}');
+		}
+	    }
+	    catch (RuntimeException e) {
+		throw new IllegalArgumentException(getName() + ", line " + this.line + ": " + e.getMessage());
+	    }
+
+	    if (server == null || mbean == null || attribute == null) {
+		throw new IllegalArgumentException(getName() + ", line " + this.line + ": expected server, mbean and attribute.");
+	    }
+	    if (!sameServer(server)) {
+		return null;
+	    }
+	    return new Entry(mbean, attribute, value, error);
+	}
+
+	public void close() throws IOException {
+	    this.in.close();
+	}
+    }
+
+    /**
+       Just enough JSON for the flat objects SampleWriter writes:
+       strings, numbers, true, false and null.
+    */
+    static private class JsonLine {
+	private String text;
+	private int pos;
+
+	JsonLine(String text) {
+	    this.text = text;
+	}
+
+	private void space() {
+	    while (this.pos < this.text.length() && Character.isWhitespace(this.text.charAt(this.pos))) {
+		this.pos++;
+	    }
+	}
+
+	boolean skip(char c) {
+	    space();
+	    if (this.pos < this.text.length() && this.text.charAt(this.pos) == c) {
+		this.pos++;
+		return true;
+	    }
+	    return false;
+	}
+
+	void expect(char c) {
+	    if (!skip(c)) {
+		throw new IllegalArgumentException("expected '" + c + "' at column " + (this.pos + 1) + ".");
+	    }
+	}
+
+	String string() {
+	    expect('"');
+	    StringBuilder sb = new StringBuilder();
+	    while (this.pos < this.text.length()) {
+		char c = this.text.charAt(this.pos++);
+		if (c == '"') {
+		    return sb.toString();
+		}
+		if (c != '\\') {
+		    sb.append(c);
+		    continue;
+		}
+		if (this.pos >= this.text.length()) {
+		    break;
+		}
+		c = this.text.charAt(this.pos++);
+		switch (c) {
+		case 'n': sb.append('\n'); break;
+		case 'r': sb.append('\r'); break;
+		case 't': sb.append('\t'); break;
+		case 'b': sb.append('\b'); break;
+		case 'f': sb.append('\f'); break;
+		case 'u':
+		    sb.append((char) Integer.parseInt(this.text.substring(this.pos, this.pos + 4), 16));
+		    this.pos += 4;
+		    break;
+		default: sb.append(c);
+		}
+	    }
+	    throw new IllegalArgumentException("unterminated string.");
+	}
+
+	Object value() {
+	    space();
+	    if (this.pos >= this.text.length()) {
+		throw new IllegalArgumentException("expected a value.");
+	    }
+	    char c = this.text.charAt(this.pos);
+	    if (c == '"') {
+		return string();
+	    }
+	    if (this.text.startsWith("true", this.pos)) {
+		this.pos += 4;
+		return Boolean.TRUE;
+	    }
+	    if (this.text.startsWith("false", this.pos)) {
+		this.pos += 5;
+		return Boolean.FALSE;
+	    }
+	    if (this.text.startsWith("null", this.pos)) {
+		this.pos += 4;
+		return null;
+	    }
+
+	    int start = this.pos;
+	    boolean integral = true;
+	    while (this.pos < this.text.length() && "+-0123456789.eE".indexOf(this.text.charAt(this.pos)) >= 0) {
+		integral &= Character.isDigit(this.text.charAt(this.pos)) || this.text.charAt(this.pos) == '-';
+		this.pos++;
+	    }
+	    String number = this.text.substring(start, this.pos);
+	    if (number.length() == 0) {
+		throw new IllegalArgumentException("unexpected '" + c + "' at column " + (start + 1) + ".");
+	    }
+	    try {
+		return integral ? (Object) Long.valueOf(number) : (Object) Double.valueOf(number);
+	    }
+	    catch (NumberFormatException e) {
+		// Wider than a long, as a BigInteger attribute may be.
+		return integral ? (Object) new BigInteger(number) : (Object) Double.valueOf(number);
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Subscribe a Tcl callback to the notifications of one or more mbeans. */
+class SubscribeCmd implements Command {
+
+    private final static SubscribeCmd instance = new SubscribeCmd();
+
+    private Options opts;
+
+    static SubscribeCmd getInstance() {
+	return instance;
+    }
+
+    private SubscribeCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("server")
+		.withDescription("Server containing mbean.")
+		.withArgName("SERVER")
+		.hasArg()
+		.create("s")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("mbean")
+		.withDescription("MBean, or ObjectName pattern, to listen to.")
+		.withArgName("MBEAN")
+		.hasArg()
+		.create("m")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("types")
+		.withDescription("List of notification type prefixes to accept (default all).")
+		.withArgName("TYPES")
+		.hasArg()
+		.create("t")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("buffer")
+		.withDescription("Notifications to hold before dropping (default " + Subscription.DEFAULT_BUFFER_SIZE + ").")
+		.withArgName("SIZE")
+		.hasArg()
+		.create("b")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("batch")
+		.withDescription("Most notifications passed to one callback (default " + Subscription.DEFAULT_BATCH_SIZE + ").")
+		.withArgName("SIZE")
+		.hasArg()
+		.create("n")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("list")
+		.withDescription("Return the counters of each subscription instead.")
+		.hasArg(false)
+		.create("l")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    private TclObject status(Interp interp, Subscription subscription)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	TclList.append(interp, result, TclString.newInstance("server"));
+	TclList.append(interp, result, TclString.newInstance(subscription.server));
+	TclList.append(interp, result, TclString.newInstance("mbean"));
+	TclList.append(interp, result, TclString.newInstance(subscription.pattern));
+	TclList.append(interp, result, TclString.newInstance("mbeans"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(subscription.getMBeans().length)));
+	TclList.append(interp, result, TclString.newInstance("callback"));
+	TclList.append(interp, result, TclString.newInstance(subscription.getCallback()));
+	TclList.append(interp, result, TclString.newInstance("buffer"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(subscription.getBufferSize())));
+	TclList.append(interp, result, TclString.newInstance("received"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(subscription.getReceived())));
+	TclList.append(interp, result, TclString.newInstance("delivered"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(subscription.getDelivered())));
+	TclList.append(interp, result, TclString.newInstance("dropped"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(subscription.getDropped())));
+	TclList.append(interp, result, TclString.newInstance("batches"));
+	TclList.append(interp, result, TclString.newInstance(String.valueOf(subscription.getBatches())));
+	return result;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help")) {
+		new HelpFormatter().printHelp (
+		    "jmx_subscribe [-?] [-l] [-s server] [-m mbean] [-t types] [-b size] [-n size] [CALLBACK | ID]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_subscribe listens for notifications from an mbean, or from");
+		System.out.println("every mbean matching an ObjectName pattern, and returns an id");
+		System.out.println("(e.g. sub1) for jmx_unsubscribe.");
+		System.out.println("");
+		System.out.println("Notifications are buffered as they arrive and handed to the");
+		System.out.println("callback in batches, from the Tcl event loop.  The callback is");
+		System.out.println("called with two more arguments: a list of notifications, each");
+		System.out.println("a name/value list suitable for 'array set' (type, source,");
+		System.out.println("sequence, timestamp, message, userData, and for attribute");
+		System.out.println("changes attribute, oldValue and newValue), and the number of");
+		System.out.println("notifications dropped since the last call because the buffer");
+		System.out.println("was full.  For example:");
+		System.out.println("");
+		System.out.println("  proc onGc {batch dropped} { puts \"[llength $batch] collections\" }");
+		System.out.println("  jmx_subscribe -m java.lang:type=GarbageCollector,* onGc");
+		System.out.println("");
+		System.out.println("A script must enter the event loop (vwait, update) for callbacks");
+		System.out.println("to run.  'jmx_subscribe -l [ID]' returns the counters of each");
+		System.out.println("subscription.");
+		return;
+	    }
+
+	    if (cl.hasOption("list")) {
+		if (args.length > 0) {
+		    interp.setResult(status(interp, Subscription.get(args[0])));
+		    return;
+		}
+		TclObject result = TclList.newInstance();
+		for (Subscription subscription : Subscription.getAll()) {
+		    TclList.append(interp, result, TclString.newInstance(subscription.id));
+		    TclList.append(interp, result, status(interp, subscription));
+		}
+		interp.setResult(result);
+		return;
+	    }
+
+	    if (Daemon.isWorker()) {
+		throw new TclException(interp, "The daemon cannot subscribe: it has no event loop to run callbacks.", TCL.ERROR);
+	    }
+
+	    String server = cl.getOptionValue("server", Utils.getGlobal(interp, "SERVER"));
+	    String mbean  = cl.getOptionValue("mbean",  Utils.getGlobal(interp, "MBEAN"));
+
+	    if (server == null) {
+		throw new TclException(interp, "No server specified; please set SERVER variable or use -s option.", TCL.ERROR);
+	    }
+
+	    if (mbean == null) {
+		throw new TclException(interp, "No mbean specified; please set MBEAN variable or use -m option.", TCL.ERROR);
+	    }
+
+	    if (args.length != 1) {
+		throw new TclException(interp, "Please specify a single callback.", TCL.ERROR);
+	    }
+
+	    String[] types = null;
+	    if (cl.hasOption("types")) {
+		List<String> prefixes = new ArrayList<String>();
+		for (TclObject element : TclList.getElements(interp, TclString.newInstance(cl.getOptionValue("types")))) {
+		    prefixes.add(element.toString());
+		}
+		types = prefixes.toArray(new String[prefixes.size()]);
+	    }
+
+	    int bufferSize = 0;
+	    int batchSize = 0;
+	    try {
+		bufferSize = Integer.parseInt(cl.getOptionValue("buffer", String.valueOf(Subscription.DEFAULT_BUFFER_SIZE)));
+		batchSize = Integer.parseInt(cl.getOptionValue("batch", String.valueOf(Subscription.DEFAULT_BATCH_SIZE)));
+	    }
+	    catch (NumberFormatException e) {
+		throw new TclException(interp, "Invalid buffer or batch size: " + e.getMessage(), TCL.ERROR);
+	    }
+
+	    Subscription subscription = Subscription.subscribe(server, mbean, types, TclString.newInstance(args[0]), bufferSize, batchSize);
+	    interp.setResult(subscription.id);
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import org.apache.log4j.*;
+import tcl.lang.*;
+
+/**
+   A notification subscription made by jmx_subscribe.
+
+   Notifications arrive on the connector's own threads and go into a
+   RingBuffer; nothing touches the interpreter there.  The first one
+   to arrive after the buffer was drained queues a single TclEvent,
+   and that event hands everything waiting, up to the batch size, to
+   the callback in one call.  A burst therefore costs a handful of
+   callbacks, not one per notification, and once the buffer is full
+   further notifications are dropped and counted.
+*/
+
+class Subscription implements NotificationListener {
+
+    static final int DEFAULT_BUFFER_SIZE = 4096;
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    static private Logger logger = Logger.getLogger(Subscription.class);
+
+    static private Map<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+    static private AtomicInteger nextId = new AtomicInteger(1);
+
+    final String id;
+    final String server;
+    final String pattern;
+    final int batchSize;
+
+    private volatile String[] mbeans;
+    private NotificationFilter filter;
+    private TclObject callback;
+    private RingBuffer<Notification> buffer;
+    private AtomicBoolean queued;
+    private AtomicLong received;
+    private volatile boolean active;
+
+    // Only touched on the interpreter thread.
+    private long delivered;
+    private long batches;
+    private long reportedDrops;
+
+    private Subscription(String server, String pattern, TclObject callback, int bufferSize, int batchSize) {
+	if (batchSize < 1) {
+	    throw new IllegalArgumentException("Batch size must be at least 1.");
+	}
+	this.id = "sub" + nextId.getAndIncrement();
+	this.server = server;
+	this.pattern = pattern;
+	this.batchSize = batchSize;
+	this.callback = callback;
+	this.buffer = new RingBuffer<Notification>(bufferSize);
+	this.queued = new AtomicBoolean(false);
+	this.received = new AtomicLong(0);
+    }
+
+    /**
+       Start listening to every MBean matching a pattern.  Must be
+       called on the interpreter thread.
+
+       @param types  Notification type prefixes to accept, or null for all.
+    */
+    static Subscription subscribe(String server, String pattern, String[] types, TclObject callback, int bufferSize, int batchSize) {
+	Subscription subscription = new Subscription(server, pattern, callback, bufferSize, batchSize);
+
+	NotificationFilterSupport filter = null;
+	if (types != null) {
+	    filter = new NotificationFilterSupport();
+	    for (String type : types) {
+		filter.enableType(type);
+	    }
+	}
+
+	subscription.filter = filter;
+	callback.preserve();
+	subscription.active = true;
+	try {
+	    subscription.mbeans = Jmx.getInstance().addNotificationListener(server, pattern, subscription, filter);
+	}
+	catch (RuntimeException e) {
+	    subscription.active = false;
+	    callback.release();
+	    throw e;
+	}
+
+	subscriptions.put(subscription.id, subscription);
+	logger.info("Subscribed " + subscription.id + " to " + subscription.mbeans.length + " mbeans on " + server);
+	return subscription;
+    }
+
+    static Subscription get(String id) {
+	Subscription subscription = subscriptions.get(id);
+	if (subscription == null) {
+	    throw new IllegalArgumentException("No such subscription '" + id + "'.");
+	}
+	return subscription;
+    }
+
+    static Collection<Subscription> getAll() {
+	return new TreeMap<String, Subscription>(subscriptions).values();
+    }
+
+    /**
+       Listen again to the mbeans of a server whose connection has been
+       replaced; the old connection took our listeners with it.  Any
+       thread.
+    */
+    static void reattach(String server) {
+	for (Subscription subscription : subscriptions.values()) {
+	    if (!subscription.server.equals(server) || !subscription.active) {
+		continue;
+	    }
+	    try {
+		subscription.mbeans = Jmx.getInstance().addNotificationListener(server, subscription.pattern, subscription, subscription.filter);
+		logger.info("Resubscribed " + subscription.id + " to " + subscription.mbeans.length + " mbeans on " + server);
+	    }
+	    catch (RuntimeException e) {
+		logger.warn("Could not resubscribe " + subscription.id + " after reconnecting.", e);
+	    }
+	}
+    }
+
+    /** Stop listening.  Notifications still buffered are discarded.  Interpreter thread only. */
+    void unsubscribe() {
+	if (subscriptions.remove(this.id) == null) {
+	    return;
+	}
+	this.active = false;
+	Jmx.getInstance().removeNotificationListener(this.server, this.mbeans, this);
+	this.callback.release();
+	logger.info("Unsubscribed " + this.id);
+    }
+
+    public void handleNotification(Notification notification, Object handback) {
+	this.received.incrementAndGet();
+	if (this.active && this.buffer.offer(notification)) {
+	    schedule();
+	}
+    }
+
+    private void schedule() {
+	if (this.queued.compareAndSet(false, true)) {
+	    JInterp.getInstance().getNotifier().queueEvent(new TclEvent() {
+		public int processEvent(int flags) {
+		    deliver();
+		    return 1;
+		}
+	    }, TCL.QUEUE_TAIL);
+	}
+    }
+
+    /** Pass one batch to the callback.  Runs as a TclEvent. */
+    private void deliver() {
+	// Cleared first: anything offered from here on queues a new event.
+	this.queued.set(false);
+	if (!this.active) {
+	    return;
+	}
+
+	List<Notification> batch = new ArrayList<Notification>(Math.min(this.batchSize, 64));
+	this.buffer.drain(batch, this.batchSize);
+
+	if (!this.buffer.isEmpty()) {
+	    schedule();
+	}
+	if (batch.isEmpty()) {
+	    return;
+	}
+
+	Interp interp = JInterp.getInstance();
+	long drops = this.buffer.getDropped();
+	TclObject command = TclList.newInstance();
+	command.preserve();
+	try {
+	    for (TclObject word : TclList.getElements(interp, this.callback)) {
+		TclList.append(interp, command, word);
+	    }
+	    TclObject list = TclList.newInstance();
+	    for (Notification notification : batch) {
+		TclList.append(interp, list, toTcl(interp, notification));
+	    }
+	    TclList.append(interp, command, list);
+	    TclList.append(interp, command, TclString.newInstance(String.valueOf(drops - this.reportedDrops)));
+	    this.reportedDrops = drops;
+	    this.delivered += batch.size();
+	    this.batches++;
+	    interp.eval(command, TCL.EVAL_GLOBAL);
+	}
+	catch (TclException e) {
+	    interp.addErrorInfo("\n    (notification callback for " + this.id + ")");
+	    interp.backgroundError();
+	}
+	finally {
+	    command.release();
+	}
+    }
+
+    /** A notification as a name/value list, for 'array set'. */
+    static private TclObject toTcl(Interp interp, Notification notification)
+	throws TclException {
+
+	TclObject result = TclList.newInstance();
+	append(interp, result, "type", notification.getType());
+	append(interp, result, "source", String.valueOf(notification.getSource()));
+	append(interp, result, "sequence", String.valueOf(notification.getSequenceNumber()));
+	append(interp, result, "timestamp", String.valueOf(notification.getTimeStamp()));
+	append(interp, result, "message", notification.getMessage());
+	append(interp, result, "userData", notification.getUserData());
+
+	if (notification instanceof AttributeChangeNotification) {
+	    AttributeChangeNotification change = (AttributeChangeNotification) notification;
+	    append(interp, result, "attribute", change.getAttributeName());
+	    append(interp, result, "attributeType", change.getAttributeType());
+	    append(interp, result, "oldValue", change.getOldValue());
+	    append(interp, result, "newValue", change.getNewValue());
+	}
+	return result;
+    }
+
+    static private void append(Interp interp, TclObject list, String name, Object value)
+	throws TclException {
+
+	TclList.append(interp, list, TclString.newInstance(name));
+	TclList.append(interp, list, TclString.newInstance(value == null ? "" : value.toString()));
+    }
+
+    String[] getMBeans() { return this.mbeans; }
+
+    String getCallback() { return this.callback.toString(); }
+
+    int getBufferSize() { return this.buffer.capacity(); }
+
+    long getReceived() { return this.received.get(); }
+
+    long getDropped() { return this.buffer.getDropped(); }
+
+    long getDelivered() { return this.delivered; }
+
+    long getBatches() { return this.batches; }
+
+}
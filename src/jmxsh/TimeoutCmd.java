@@ -0,0 +1,146 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Show or change the default connect timeout and call deadlines. */
+class TimeoutCmd implements Command {
+
+    private final static TimeoutCmd instance = new TimeoutCmd();
+
+    private Options opts;
+
+    static TimeoutCmd getInstance() {
+	return instance;
+    }
+
+    private TimeoutCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("connect")
+		.withDescription("Milliseconds to wait for a connection to open, 0 for no limit.")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("c")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("call")
+		.withDescription("Milliseconds to wait for a remote call, 0 for no limit.")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("o")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("invoke")
+		.withDescription("Milliseconds to wait for an operation called by jmx_invoke, 0 for no limit.")
+		.withArgName("MILLIS")
+		.hasArg()
+		.create("i")
+	);
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+
+	    if (cl.hasOption("help")) {
+		new HelpFormatter().printHelp (
+		    "jmx_timeout [-?] [-c millis] [-o millis] [-i millis]",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_timeout sets how long jmxsh waits for a connection to open");
+		System.out.println("and for each remote call, and returns the current values.  A");
+		System.out.println("call that takes longer fails with a timeout error; its result,");
+		System.out.println("if it ever arrives, is thrown away, and the connection is");
+		System.out.println("probed (see jmx_health).  Most commands also take -t to set");
+		System.out.println("the limit for that command only.");
+		System.out.println("");
+		System.out.println("Operations have a limit of their own, -i, which is none by");
+		System.out.println("default, as they may run long: one given up on by jmx_invoke");
+		System.out.println("may still run to completion on the server.");
+		return;
+	    }
+
+	    if ((cl.hasOption("connect") || cl.hasOption("call") || cl.hasOption("invoke")) && Daemon.inScript()) {
+		throw new TclException(interp, "The timeouts are shared by every daemon worker; set them in a -i file.", TCL.ERROR);
+	    }
+
+	    try {
+		if (cl.hasOption("connect")) {
+		    Jmx.getInstance().setConnectTimeout(Long.parseLong(cl.getOptionValue("connect")));
+		}
+		if (cl.hasOption("call")) {
+		    Jmx.getInstance().setCallTimeout(Long.parseLong(cl.getOptionValue("call")));
+		}
+		if (cl.hasOption("invoke")) {
+		    Jmx.getInstance().setInvokeTimeout(Long.parseLong(cl.getOptionValue("invoke")));
+		}
+	    }
+	    catch (NumberFormatException e) {
+		throw new TclException(interp, "Invalid timeout: " + e.getMessage(), TCL.ERROR);
+	    }
+
+	    TclObject result = TclList.newInstance();
+	    TclList.append(interp, result, TclString.newInstance("connect"));
+	    TclList.append(interp, result, TclString.newInstance(String.valueOf(Jmx.getInstance().getConnectTimeout())));
+	    TclList.append(interp, result, TclString.newInstance("call"));
+	    TclList.append(interp, result, TclString.newInstance(String.valueOf(Jmx.getInstance().getCallTimeout())));
+	    TclList.append(interp, result, TclString.newInstance("invoke"));
+	    TclList.append(interp, result, TclString.newInstance(String.valueOf(Jmx.getInstance().getInvokeTimeout())));
+	    interp.setResult(result);
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import org.apache.commons.cli.*;
+import tcl.lang.*;
+
+/** Cancel subscriptions made by jmx_subscribe. */
+class UnsubscribeCmd implements Command {
+
+    private final static UnsubscribeCmd instance = new UnsubscribeCmd();
+
+    private Options opts;
+
+    static UnsubscribeCmd getInstance() {
+	return instance;
+    }
+
+    private UnsubscribeCmd()  {
+	this.opts = new Options();
+
+	this.opts.addOption(
+	    OptionBuilder.withLongOpt("help")
+		.withDescription("Display usage help.")
+		.hasArg(false)
+		.create("?")
+	);
+    }
+
+    private CommandLine parseCommandLine(TclObject argv[])
+	throws ParseException {
+
+	String[] args = new String[argv.length - 1];
+
+	for(int i = 0; i < argv.length - 1; i++)
+	    args[i] = argv[i + 1].toString();
+
+	CommandLine cl = (new PosixParser()).parse(Utils.copyOptions(this.opts), args);
+	return cl;
+    }
+
+    public void cmdProc(Interp interp, TclObject argv[])
+	throws TclException {
+
+	try {
+	    CommandLine cl = parseCommandLine(argv);
+	    String args[] = cl.getArgs();
+
+	    if (cl.hasOption("help") || args.length == 0) {
+		new HelpFormatter().printHelp (
+		    "jmx_unsubscribe [-?] ID ...|all",
+		    "======================================================================",
+		    this.opts,
+		    "======================================================================",
+		    false
+		);
+		System.out.println("jmx_unsubscribe stops the given subscriptions ('all' stops every");
+		System.out.println("one).  Notifications still waiting to be delivered are discarded.");
+		return;
+	    }
+
+	    if (args.length == 1 && args[0].equals("all")) {
+		for (Subscription subscription : Subscription.getAll()) {
+		    subscription.unsubscribe();
+		}
+		return;
+	    }
+
+	    for (String id : args) {
+		Subscription.get(id).unsubscribe();
+	    }
+	}
+	catch(ParseException e)     {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+	catch(RuntimeException e)           {
+	    throw new TclException(interp, e.getMessage(), 1);
+	}
+    }
+
+}
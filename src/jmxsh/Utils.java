@@ -22,8 +22,9 @@
  */
 package jmxsh;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
 import tcl.lang.*;
 
 class Utils {
@@ -37,7 +38,7 @@ class Utils {
 	try {
 	    TclObject result = TclList.newInstance();
 	    for (String element : array) {
-		TclList.append(JInterp.instance, result, TclString.newInstance(element));
+		TclList.append(JInterp.current(), result, TclString.newInstance(element));
 	    }
 	    return result;
 	}
@@ -49,79 +50,149 @@ class Utils {
 
 
     /**
-       Create a Jacl java object reference.
+       Expand a server argument that names several servers.
 
-       @interp  The interpreter to create it in.
-       @obj     The Java object to reference.
+       The argument may be a Tcl list of server URLs, or '*' for every
+       open connection.
+
+       @return  null if the argument names a single server.
     */
-    static public String java2tcl(Object obj) {
-	TclObject tclobj = null;
-	try {
-	    tclobj = ReflectObject.newInstance(JInterp.instance, obj.getClass(), obj);
+    static public String[] getServerList(Interp interp, String server)
+	throws TclException {
+
+	if (server == null) {
+	    return null;
 	}
-	catch (TclException e) {
-	    throw new IllegalArgumentException("Error converting java object to tcl.");
+
+	if (server.equals("*")) {
+	    return Jmx.getInstance().getServers();
 	}
-	return tclobj.toString();
-    }
-    
 
-    /**
-       Create a Java object based on a tcl object and a string type.
+	TclObject[] elements = TclList.getElements(interp, TclString.newInstance(server));
+	if (elements.length < 2) {
+	    return null;
+	}
+
+	String[] servers = new String[elements.length];
+	for (int i=0; i<elements.length; i++) {
+	    servers[i] = elements[i].toString();
+	}
+	return servers;
+    }
 
-       @interp   Used to check if it's a Java object created in this interpreter.
-       @obj      Tcl object to convert.
-       @type     Java class to which the Tcl object should be converted.
-     */
-    static public Object tcl2java(TclObject obj, String type) {
-	Object result = null;
 
+    /**
+       The value of a global variable, or null if it is not set, as
+       used for the SERVER, MBEAN and ATTROP defaults.
+    */
+    static public String getGlobal(Interp interp, String name) {
 	try {
-	    result = ReflectObject.get(JInterp.instance, obj);
-	    return result;
+	    return interp.getVar(name, TCL.GLOBAL_ONLY).toString();
 	}
 	catch (TclException e) {
-	    JInterp.instance.setResult(TclString.newInstance(""));
+	    return null;
 	}
+    }
 
-	StringBuilder newType = new StringBuilder();
 
-	if (type.equals("char")) {
-	    newType.append("java.lang.Character");
+    /**
+       A copy of a command's options to parse one command line with.
+
+       commons-cli keeps what it parses in the Option objects, so
+       daemon workers running the same command at once must not share
+       them.
+    */
+    static public Options copyOptions(Options opts) {
+	Options copy = new Options();
+	for (Object option : opts.getOptions()) {
+	    copy.addOption((Option) ((Option) option).clone());
 	}
-	else if (type.equals("int")) {
-	    newType.append("java.lang.Integer");
+	return copy;
+    }
+
+
+    /**
+       Apply a command's -t option, if it has one, as the deadline for
+       the remote calls the command makes on this thread.  The command
+       must undo it with Jmx.setThreadTimeout(null) when it is done.
+    */
+    static public void applyTimeout(Interp interp, CommandLine cl)
+	throws TclException {
+
+	if (!cl.hasOption("timeout")) {
+	    return;
 	}
-	else if (type.indexOf('.') == -1) {
-	    newType = new StringBuilder("java.lang.");
-	    newType.append(Character.toUpperCase(type.charAt(0)));
-	    newType.append(type.substring(1));
+	try {
+	    Jmx.getInstance().setThreadTimeout(Long.valueOf(cl.getOptionValue("timeout")));
 	}
-	else {
-	    newType.append(type);
+	catch (NumberFormatException e) {
+	    throw new TclException(interp, "Invalid timeout: " + e.getMessage(), TCL.ERROR);
 	}
+    }
+
+
+    /**
+       Describe the outcome of a call made through FanOut.
+
+       The result is a list of name/value pairs: 'status' (one of ok,
+       error or timeout), 'millis', and then either 'value' or 'error'.
 
+       @value  The Tcl form of the value, used if the call succeeded.
+	       If null, there is no 'value' pair.
+    */
+    static public TclObject outcome2list(FanOut.Outcome<?> outcome, TclObject value) {
 	try {
-	    Constructor<?> ctor = Class.forName(newType.toString()).getConstructor(new Class[]{String.class});
-	    result = ctor.newInstance(new Object[]{obj.toString()});
-	}
-	catch (NoSuchMethodException e) {
-	    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + newType.toString() + "' - cannot convert from string.", e);
-	}
-	catch (ClassNotFoundException e) {
-	    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + newType.toString() + "' - class not found locally.", e);
+	    TclObject result = TclList.newInstance();
+	    String status = outcome.succeeded() ? "ok" : (outcome.timedOut ? "timeout" : "error");
+	    TclList.append(JInterp.current(), result, TclString.newInstance("status"));
+	    TclList.append(JInterp.current(), result, TclString.newInstance(status));
+	    TclList.append(JInterp.current(), result, TclString.newInstance("millis"));
+	    TclList.append(JInterp.current(), result, TclString.newInstance(String.valueOf(outcome.millis)));
+	    if (outcome.succeeded()) {
+		if (value != null) {
+		    TclList.append(JInterp.current(), result, TclString.newInstance("value"));
+		    TclList.append(JInterp.current(), result, value);
+		}
+	    }
+	    else {
+		TclList.append(JInterp.current(), result, TclString.newInstance("error"));
+		TclList.append(JInterp.current(), result, TclString.newInstance(outcome.error));
+	    }
+	    return result;
 	}
-	catch (InstantiationException e) {
-	    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + newType.toString() + "' - class cannot be instantiated.", e);
+	catch (TclException e) {
+	    throw new IllegalArgumentException("Error converting outcome to tcl list.");
 	}
-	catch (IllegalAccessException e) {
-	    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + newType.toString() + "' - cannot access constructor.", e);
+    }
+
+
+    /**
+       Create a Jacl java object reference.
+
+       @interp  The interpreter to create it in.
+       @obj     The Java object to reference.
+    */
+    static public String java2tcl(Object obj) {
+	TclObject tclobj = null;
+	try {
+	    tclobj = ReflectObject.newInstance(JInterp.current(), obj.getClass(), obj);
 	}
-	catch (InvocationTargetException e) {
- 	    throw new IllegalArgumentException("Cannot instantiate attribute of type: '" + newType.toString() + "' - exception thrown in constructor.", e);
+	catch (TclException e) {
+	    throw new IllegalArgumentException("Error converting java object to tcl.");
 	}
+	return tclobj.toString();
+    }
+    
 
-	return result;
+    /**
+       Create a Java object based on a tcl object and a string type.
+
+       @interp   Used to check if it's a Java object created in this interpreter.
+       @obj      Tcl object to convert.
+       @type     Java class to which the Tcl object should be converted.
+     */
+    static public Object tcl2java(TclObject obj, String type) {
+	return Converters.get(type).convert(obj);
     }
 
 }
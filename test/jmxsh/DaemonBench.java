@@ -0,0 +1,132 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.remote.*;
+import org.apache.log4j.*;
+
+/**
+ * Measures what a check costs through the daemon, leaving out the
+ * client's own JVM start.
+ *
+ * Starts a JMX connector server and a daemon in this JVM, then runs
+ * a script that connects and reads one attribute through Client,
+ * first one call at a time and then from several threads at once.
+ *
+ * Usage: java jmxsh.DaemonBench [CALLS [THREADS [WORKERS]]]
+ */
+public class DaemonBench {
+
+    public static void main(String[] args) throws Exception {
+	int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+	int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+	final int workers = (args.length > 2) ? Integer.parseInt(args[2]) : Daemon.DEFAULT_WORKERS;
+
+	BasicConfigurator.configure();
+	Logger.getRootLogger().setLevel(Level.FATAL);
+
+	JMXConnectorServer server = JMXConnectorServerFactory.newJMXConnectorServer(
+	    new JMXServiceURL("service:jmx:rmi://localhost"), null, ManagementFactory.getPlatformMBeanServer());
+	server.start();
+	final String url = server.getAddress().toString();
+	Jmx.getInstance().connect(url, null, null);
+
+	final File daemonFile = File.createTempFile("jmxsh-daemon", ".key");
+	File script = File.createTempFile("jmxsh-check", ".tcl");
+	Writer out = new FileWriter(script);
+	out.write("jmx_connect -s " + url + "\n");
+	out.write("if {[jmx_get -m java.lang:type=Runtime Uptime] <= 0} { exit 2 }\n");
+	out.close();
+	final String[] clientArgs = { "-F", daemonFile.getPath(), script.getPath() };
+
+	Thread daemon = new Thread() {
+	    public void run() {
+		try {
+		    Daemon.serve(0, workers, daemonFile.getPath(), null);
+		}
+		catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	daemon.setDaemon(true);
+	daemon.start();
+	while (daemonFile.length() == 0) {
+	    Thread.sleep(10);
+	}
+
+	for (int i = 0; i < calls / 4; i++) {
+	    check(Client.run(clientArgs));
+	}
+
+	long start = System.nanoTime();
+	for (int i = 0; i < calls; i++) {
+	    check(Client.run(clientArgs));
+	}
+	double serial = (System.nanoTime() - start) / 1e6 / calls;
+
+	final AtomicInteger remaining = new AtomicInteger(calls);
+	final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	start = System.nanoTime();
+	for (int t = 0; t < threads; t++) {
+	    pool.execute(new Runnable() {
+		public void run() {
+		    try {
+			while (remaining.getAndDecrement() > 0) {
+			    check(Client.run(clientArgs));
+			}
+		    }
+		    catch (Exception e) {
+			failure.set(e);
+		    }
+		}
+	    });
+	}
+	pool.shutdown();
+	pool.awaitTermination(10, TimeUnit.MINUTES);
+	double elapsed = (System.nanoTime() - start) / 1e9;
+	if (failure.get() != null) {
+	    throw failure.get();
+	}
+
+	System.err.printf("Workers:          %d%n", workers);
+	System.err.printf("One at a time:    %8.3f ms per check%n", serial);
+	System.err.printf("%2d threads:       %8.0f checks/s%n", threads, calls / elapsed);
+
+	script.delete();
+	daemonFile.delete();
+	server.stop();
+    }
+
+    static private void check(int code) {
+	if (code != 0) {
+	    throw new IllegalStateException("Check exited with " + code);
+	}
+    }
+
+}
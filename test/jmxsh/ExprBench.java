@@ -0,0 +1,99 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import tcl.lang.*;
+
+/**
+ * Measures what a threshold-checking loop pays for getting attribute
+ * values as strings rather than as native Tcl numbers.
+ *
+ * Each round converts a batch of Long and Double values the way
+ * jmx_get used to (toString) and the way it does now
+ * (ResultConverter), then runs the same expr-heavy script over each
+ * list.  The values are converted afresh every round, as they would
+ * be when read again from the server.
+ *
+ * Usage: java jmxsh.ExprBench [VALUES [ROUNDS]]
+ */
+public class ExprBench {
+
+    static final String SCRIPT =
+	"set n 0\n" +
+	"foreach {count ratio} $values {\n" +
+	"    if {$count > 500000 && $ratio * 100.0 > 42.0} { incr n }\n" +
+	"}\n" +
+	"set n";
+
+    public static void main(String[] args) throws Exception {
+	int count = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 40;
+	int warmup = 10;
+
+	Interp interp = new Interp();
+	Object[] raw = new Object[count * 2];
+	for (int i = 0; i < count; i++) {
+	    raw[2 * i] = Long.valueOf(i * 211L);
+	    raw[2 * i + 1] = Double.valueOf((i % 100) / 100.0);
+	}
+
+	long stringNanos = 0;
+	long nativeNanos = 0;
+
+	for (int round = 0; round < warmup + rounds; round++) {
+	    long start = System.nanoTime();
+	    TclObject strings = TclList.newInstance();
+	    for (Object value : raw) {
+		TclList.append(interp, strings, TclString.newInstance(value.toString()));
+	    }
+	    String before = run(interp, strings);
+	    long middle = System.nanoTime();
+
+	    TclObject natives = TclList.newInstance();
+	    for (Object value : raw) {
+		TclList.append(interp, natives, ResultConverter.convert(interp, value));
+	    }
+	    String after = run(interp, natives);
+	    long end = System.nanoTime();
+
+	    if (!before.equals(after)) {
+		throw new IllegalStateException("Mismatch: " + before + " vs " + after);
+	    }
+	    if (round >= warmup) {
+		stringNanos += middle - start;
+		nativeNanos += end - middle;
+	    }
+	}
+
+	System.out.printf("Strings: %8.1f us/round%n", stringNanos / 1000.0 / rounds);
+	System.out.printf("Native:  %8.1f us/round%n", nativeNanos / 1000.0 / rounds);
+	System.out.printf("Speed-up: %7.2fx%n", (double) stringNanos / nativeNanos);
+    }
+
+    static private String run(Interp interp, TclObject values) throws TclException {
+	interp.setVar("values", values, 0);
+	interp.eval(SCRIPT);
+	return interp.getResult().toString();
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.lang.management.*;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import javax.management.remote.*;
+import org.apache.log4j.*;
+
+/**
+ * Hammers the Jmx connection registry from many threads at once.
+ *
+ * Starts a JMX connector server in this JVM, then has every thread
+ * open, read from and close the same connection at random.  It
+ * fails if the server ever sees two connections from us at once, if
+ * the opens and closes reported by Jmx do not add up, or if any call
+ * fails with anything but "Not connected".
+ *
+ * Usage: java jmxsh.JmxStress [THREADS [SECONDS]]
+ */
+public class JmxStress {
+
+    public static void main(String[] args) throws Exception {
+	int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+	int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+	BasicConfigurator.configure();
+	Logger.getRootLogger().setLevel(Level.FATAL);
+
+	MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+	final JMXConnectorServer server = JMXConnectorServerFactory.newJMXConnectorServer(
+	    new JMXServiceURL("service:jmx:rmi://localhost"), null, mbs);
+	server.start();
+	final JMXServiceURL url = server.getAddress();
+	final String urlStr = url.toString();
+	System.out.println("Connector server at " + urlStr);
+
+	final Jmx jmx = Jmx.getInstance();
+	final AtomicLong opens = new AtomicLong();
+	final AtomicLong closes = new AtomicLong();
+	final AtomicLong reads = new AtomicLong();
+	final AtomicLong notConnected = new AtomicLong();
+	final AtomicLong failures = new AtomicLong();
+	final AtomicInteger maxConnections = new AtomicInteger();
+	final long deadline = System.currentTimeMillis() + seconds * 1000L;
+
+	Thread monitor = new Thread() {
+	    public void run() {
+		while (System.currentTimeMillis() < deadline) {
+		    int count = server.getConnectionIds().length;
+		    if (count > maxConnections.get()) {
+			maxConnections.set(count);
+		    }
+		    Thread.yield();
+		}
+	    }
+	};
+	monitor.start();
+
+	ExecutorService pool = Executors.newFixedThreadPool(threads);
+	for (int t = 0; t < threads; t++) {
+	    pool.execute(new Runnable() {
+		public void run() {
+		    Random random = new Random();
+		    while (System.currentTimeMillis() < deadline) {
+			try {
+			    int action = random.nextInt(10);
+			    if (action == 0) {
+				if (jmx.open(url, null, null)) {
+				    opens.incrementAndGet();
+				}
+			    }
+			    else if (action == 1) {
+				if (jmx.disconnect(urlStr)) {
+				    closes.incrementAndGet();
+				}
+			    }
+			    else {
+				jmx.getAttribute(urlStr, "java.lang:type=Runtime", "Uptime");
+				jmx.getMBI(urlStr, "java.lang:type=Memory");
+				reads.incrementAndGet();
+			    }
+			}
+			catch (IllegalArgumentException e) {
+			    if (String.valueOf(e.getMessage()).startsWith("Not connected")) {
+				notConnected.incrementAndGet();
+			    }
+			    else {
+				failures.incrementAndGet();
+				e.printStackTrace();
+			    }
+			}
+			catch (RuntimeException e) {
+			    // A read racing a close may see the connector shut
+			    // underneath it; anything else is a bug.
+			    if (e.getCause() instanceof java.io.IOException) {
+				notConnected.incrementAndGet();
+			    }
+			    else {
+				failures.incrementAndGet();
+				e.printStackTrace();
+			    }
+			}
+		    }
+		}
+	    });
+	}
+
+	pool.shutdown();
+	pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+	monitor.join();
+
+	boolean connected = jmx.isConnected(urlStr);
+	long expectedCloses = opens.get() - (connected ? 1 : 0);
+
+	System.out.println("Threads:          " + threads);
+	System.out.println("Opens:            " + opens.get());
+	System.out.println("Closes:           " + closes.get());
+	System.out.println("Reads:            " + reads.get());
+	System.out.println("Not connected:    " + notConnected.get());
+	System.out.println("Failures:         " + failures.get());
+	System.out.println("Max server conns: " + maxConnections.get());
+
+	jmx.disconnect(urlStr);
+	server.stop();
+
+	if (failures.get() > 0 || maxConnections.get() > 1 || closes.get() != expectedCloses) {
+	    System.out.println("FAILED");
+	    System.exit(1);
+	}
+	System.out.println("PASSED");
+	System.exit(0);
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+/**
+ * Compares String.matches() against the shared PatternCache on the
+ * kind of filtering jmx_list does: one expression tested against
+ * every ObjectName of a large server.
+ *
+ * Each round filters the same names both ways and checks that they
+ * agree; the first rounds are warm-up and are not reported.
+ *
+ * Usage: java jmxsh.PatternBench [NAMES [ROUNDS]]
+ */
+public class PatternBench {
+
+    static final String REGEX = ".*type=(ThreadPool|Connector),.*name=\"?http-.*";
+
+    public static void main(String[] args) throws Exception {
+	int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+	int warmup = 5;
+
+	String[] names = new String[count];
+	String[] types = { "ThreadPool", "Connector", "Manager", "RequestProcessor", "Cache" };
+	for (int i = 0; i < count; i++) {
+	    names[i] = "Catalina:type=" + types[i % types.length] + ",name=\"http-" + (8000 + i) + "\",worker=" + i;
+	}
+
+	long plainNanos = 0;
+	long cachedNanos = 0;
+
+	for (int round = 0; round < warmup + rounds; round++) {
+	    long start = System.nanoTime();
+	    int plain = 0;
+	    for (String name : names) {
+		if (name.matches(REGEX)) {
+		    plain++;
+		}
+	    }
+	    long middle = System.nanoTime();
+	    int cached = 0;
+	    java.util.regex.Matcher matcher = PatternCache.getInstance().matcher(REGEX);
+	    for (String name : names) {
+		if (matcher.reset(name).matches()) {
+		    cached++;
+		}
+	    }
+	    long end = System.nanoTime();
+
+	    if (plain != cached) {
+		throw new IllegalStateException("Mismatch: " + plain + " vs " + cached);
+	    }
+	    if (round >= warmup) {
+		plainNanos += middle - start;
+		cachedNanos += end - middle;
+	    }
+	}
+
+	long total = (long) count * rounds;
+	System.out.printf("String.matches: %8.1f ns/name%n", (double) plainNanos / total);
+	System.out.printf("PatternCache:   %8.1f ns/name%n", (double) cachedNanos / total);
+	System.out.printf("Speed-up:       %8.2fx%n", (double) plainNanos / cachedNanos);
+	System.out.printf("Cache: %d entries, %d hits, %d misses%n",
+			  PatternCache.getInstance().size(),
+			  PatternCache.getInstance().getHits(),
+			  PatternCache.getInstance().getMisses());
+    }
+
+}
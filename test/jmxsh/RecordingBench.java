@@ -0,0 +1,155 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes the same synthetic samples as NDJSON and as a Recording,
+ * reads the recording back to check every sample, and compares the
+ * sizes and the time taken to scan one series both ways.
+ *
+ * The samples imitate a poller: a fixed interval with a few
+ * milliseconds of jitter, and a mix of counters, gauges that wander
+ * and values that rarely change.
+ *
+ * Usage: java jmxsh.RecordingBench [SERIES [SAMPLES]]
+ */
+public class RecordingBench {
+
+    public static void main(String[] args) throws Exception {
+	int seriesCount = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+	int samples = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+
+	File directory = new File(System.getProperty("java.io.tmpdir"), "jmxsh-bench-" + System.nanoTime());
+	File ndjson = new File(directory.getPath() + ".ndjson");
+	Random random = new Random(42);
+
+	long[][] times = new long[seriesCount][samples];
+	Object[][] values = new Object[seriesCount][samples];
+	long start = 1200000000000L;
+	double[] level = new double[seriesCount];
+	for (int i = 0; i < samples; i++) {
+	    long tick = start + i * 10000L + random.nextInt(5);
+	    for (int s = 0; s < seriesCount; s++) {
+		times[s][i] = tick;
+		switch (s % 3) {
+		case 0:
+		    values[s][i] = Long.valueOf(i * 17L + random.nextInt(3));
+		    break;
+		case 1:
+		    level[s] += random.nextGaussian();
+		    values[s][i] = Double.valueOf(Math.round(level[s] * 100) / 100.0);
+		    break;
+		default:
+		    values[s][i] = Integer.valueOf(i / 1000);
+		}
+	    }
+	}
+
+	String server = "service:jmx:rmi:///jndi/rmi://localhost:9999/jmxrmi";
+	SampleWriter text = new SampleWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(ndjson), "UTF-8")), SampleWriter.Format.NDJSON);
+	Recording.Writer recording = new Recording.Writer(directory.getPath());
+	for (int i = 0; i < samples; i++) {
+	    for (int s = 0; s < seriesCount; s++) {
+		String mbean = "bench:type=Series,name=s" + s;
+		text.sample(times[s][i], server, mbean, "Value", values[s][i]);
+		recording.sample(times[s][i], server, mbean, "Value", values[s][i]);
+	    }
+	}
+	text.close();
+	recording.close();
+
+	long recorded = 0;
+	for (File file : directory.listFiles()) {
+	    recorded += file.length();
+	}
+
+	Recording.Reader reader = new Recording.Reader(directory.getPath());
+	for (Recording.Series series : reader.getSeries()) {
+	    int s = Integer.parseInt(series.mbean.substring(series.mbean.lastIndexOf('s') + 1));
+	    Recording.Cursor cursor = reader.cursor(series, Long.MIN_VALUE, Long.MAX_VALUE);
+	    for (int i = 0; i < samples; i++) {
+		if (!cursor.advance() || cursor.getTime() != times[s][i]
+		    || ((Number) cursor.getObject()).doubleValue() != ((Number) values[s][i]).doubleValue()) {
+		    throw new IllegalStateException("Mismatch in series " + s + " at sample " + i);
+		}
+	    }
+	    if (cursor.advance()) {
+		throw new IllegalStateException("Extra samples in series " + s);
+	    }
+	}
+
+	// One series, last tenth of the time: the index against a full scan.
+	long from = times[0][samples - samples / 10];
+	long indexNanos = 0;
+	long scanNanos = 0;
+	int rounds = 20;
+	for (int round = 0; round < rounds + 5; round++) {
+	    long t0 = System.nanoTime();
+	    Recording.Reader r = new Recording.Reader(directory.getPath());
+	    Recording.Cursor cursor = r.cursor(r.find(null, null, null).get(7), from, Long.MAX_VALUE);
+	    int found = 0;
+	    while (cursor.advance()) {
+		found++;
+	    }
+	    long t1 = System.nanoTime();
+	    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(ndjson), "UTF-8"));
+	    int scanned = 0;
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		if (line.contains("\"name=s7\"") || line.contains(",name=s7\"")) {
+		    int at = line.indexOf("\"timestamp\":") + 12;
+		    if (Long.parseLong(line.substring(at, line.indexOf(',', at))) >= from) {
+			scanned++;
+		    }
+		}
+	    }
+	    in.close();
+	    long t2 = System.nanoTime();
+	    if (found != scanned) {
+		throw new IllegalStateException("Query found " + found + ", scan " + scanned);
+	    }
+	    if (round >= 5) {
+		indexNanos += t1 - t0;
+		scanNanos += t2 - t1;
+	    }
+	}
+
+	long total = (long) seriesCount * samples;
+	System.out.printf("Samples:          %d (%d series)%n", total, seriesCount);
+	System.out.printf("NDJSON:           %10d bytes, %6.1f bytes/sample%n", ndjson.length(), (double) ndjson.length() / total);
+	System.out.printf("Recording:        %10d bytes, %6.2f bytes/sample%n", recorded, (double) recorded / total);
+	System.out.printf("Ratio:            %10.1fx%n", (double) ndjson.length() / recorded);
+	System.out.printf("Slice via index:  %10.2f ms%n", indexNanos / 1e6 / rounds);
+	System.out.printf("Slice via scan:   %10.2f ms%n", scanNanos / 1e6 / rounds);
+
+	for (File file : directory.listFiles()) {
+	    file.delete();
+	}
+	directory.delete();
+	ndjson.delete();
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * $URL$
+ * 
+ * $Revision$ 
+ * 
+ * $LastChangedDate$
+ *
+ * $LastChangedBy$
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package jmxsh;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.util.*;
+import javax.management.remote.*;
+
+/**
+ * Measures how long jmxsh takes from the start of its JVM to the
+ * answer of a script's first jmx_get, for each way of launching it
+ * that has been built, and against 'jmxsh get', which reads the same
+ * attribute without Tcl.
+ *
+ * Serves the platform mbeans of this JVM through an RMI registry,
+ * then runs "jmxsh -h localhost -p PORT SCRIPT" several times each
+ * way, where SCRIPT prints one attribute, and times the line it
+ * prints and the exit.  On Linux, also reports the peak resident set
+ * of each run, from /proc.  Run from the top of the tree:
+ *
+ *   classes    build/classes and lib/*, as 'ant compile' leaves them
+ *   one-jar    jmxsh.jar, from 'ant app'
+ *   flat       build/flat/jmxsh-flat.jar, from 'ant flat'
+ *   flat+cds   the same, with the class data sharing archive
+ *   get        'jmxsh get' from build/classes
+ *   get+cds    'jmxsh get' from the flat jar and archive
+ *
+ * Usage: java jmxsh.StartupBench [RUNS]
+ */
+public class StartupBench {
+
+    public static void main(String[] args) throws Exception {
+	int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+
+	ServerSocket socket = new ServerSocket(0);
+	int port = socket.getLocalPort();
+	socket.close();
+	LocateRegistry.createRegistry(port);
+	JMXConnectorServer server = JMXConnectorServerFactory.newJMXConnectorServer(
+	    new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi"), null, ManagementFactory.getPlatformMBeanServer());
+	server.start();
+
+	File script = File.createTempFile("jmxsh-startup", ".tcl");
+	Writer out = new FileWriter(script);
+	out.write("puts \"Uptime [jmx_get -m java.lang:type=Runtime Uptime]\"\n");
+	out.close();
+
+	String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+	String[] connect = { "-h", "localhost", "-p", String.valueOf(port), script.getPath() };
+	String[] get = { "get", "-h", "localhost", "-p", String.valueOf(port), "java.lang:type=Runtime", "Uptime" };
+	String classpath = "build/classes" + File.pathSeparator + "lib/*";
+
+	Map<String, List<String>> variants = new LinkedHashMap<String, List<String>>();
+	variants.put("classes", command(connect, java, "-cp", classpath, "jmxsh.Main"));
+	if (new File("jmxsh.jar").exists()) {
+	    variants.put("one-jar", command(connect, java, "-jar", "jmxsh.jar"));
+	}
+	if (new File("build/flat/jmxsh-flat.jar").exists()) {
+	    variants.put("flat", command(connect, java, "-jar", "build/flat/jmxsh-flat.jar"));
+	}
+	if (new File("build/flat/jmxsh.jsa").exists()) {
+	    variants.put("flat+cds", command(connect, java, "-XX:SharedArchiveFile=build/flat/jmxsh.jsa", "-jar", "build/flat/jmxsh-flat.jar"));
+	}
+	variants.put("get", command(get, java, "-cp", classpath, "jmxsh.Main"));
+	if (new File("build/flat/jmxsh.jsa").exists()) {
+	    variants.put("get+cds", command(get, java, "-XX:SharedArchiveFile=build/flat/jmxsh.jsa", "-jar", "build/flat/jmxsh-flat.jar"));
+	}
+
+	// One run each to warm the page cache and this JVM's side.
+	for (List<String> variant : variants.values()) {
+	    time(variant);
+	}
+
+	System.err.printf("%-10s %14s %14s %14s%n", "", "first jmx_get", "exit", "peak RSS");
+	for (Map.Entry<String, List<String>> entry : variants.entrySet()) {
+	    double answer = 0;
+	    double exit = 0;
+	    double rss = 0;
+	    for (int i = 0; i < runs; i++) {
+		double[] millis = time(entry.getValue());
+		answer += millis[0];
+		exit += millis[1];
+		rss += millis[2];
+	    }
+	    System.err.printf("%-10s %11.0f ms %11.0f ms %11.0f MB%n", entry.getKey(), answer / runs, exit / runs, rss / runs / 1024);
+	}
+
+	script.delete();
+	server.stop();
+	System.exit(0);
+    }
+
+    static private List<String> command(String[] connect, String... launch) {
+	List<String> result = new ArrayList<String>();
+	if (PROC) {
+	    // The shell prints its pid, which java then takes over.
+	    result.addAll(Arrays.asList("sh", "-c", "echo $$; exec \"$@\"", "sh"));
+	}
+	result.addAll(Arrays.asList(launch));
+	result.addAll(Arrays.asList(connect));
+	return result;
+    }
+
+    static private final boolean PROC = new File("/proc/self/status").exists();
+
+    /**
+       Milliseconds until the attribute is printed and until the exit,
+       and the peak resident set in kB, as last seen in /proc, or 0.
+    */
+    static private double[] time(List<String> command) throws Exception {
+	long start = System.nanoTime();
+	Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+	BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+	String status = PROC ? "/proc/" + in.readLine().trim() + "/status" : null;
+	double answer = -1;
+	double rss = 0;
+	StringBuilder output = new StringBuilder();
+	String line;
+	while ((line = in.readLine()) != null) {
+	    if (answer < 0 && (line.startsWith("Uptime ") || line.contains("\"Uptime\""))) {
+		answer = (System.nanoTime() - start) / 1e6;
+	    }
+	    if (status != null) {
+		rss = Math.max(rss, peak(status));
+	    }
+	    output.append(line).append('\n');
+	}
+	int code = process.waitFor();
+	double exit = (System.nanoTime() - start) / 1e6;
+
+	if (code != 0 || answer < 0) {
+	    throw new IllegalStateException(command + " exited with " + code + ":\n" + output);
+	}
+	return new double[] { answer, exit, rss };
+    }
+
+    /** VmHWM of a process, or 0 if it has gone. */
+    static private double peak(String status) {
+	try {
+	    BufferedReader in = new BufferedReader(new FileReader(status));
+	    try {
+		String line;
+		while ((line = in.readLine()) != null) {
+		    if (line.startsWith("VmHWM:")) {
+			return Double.parseDouble(line.substring(6).trim().split(" ")[0]);
+		    }
+		}
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch (IOException e) {
+	    // Exited already.
+	}
+	return 0;
+    }
+
+}